@@ -0,0 +1,138 @@
+package ru.bit.torrent;
+
+/**
+ * Estimates a peer's bandwidth-delay product from the blocks we request from it, so that each MessageHandler can keep
+ * just enough requests in flight to keep the peer busy: fast peers get deep queues, slow peers shallow ones.
+ *
+ * The round trip time is the lowest block round trip seen in a recent window of samples. Later blocks in a full
+ * pipeline also wait behind the blocks ahead of them, so the minimum is the best guess at the unloaded delay. The
+ * delivery rate is a moving average of bytes received per millisecond. It is only measured while requests are
+ * outstanding, so idle time between pieces doesn't drag it down.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class BandwidthEstimator {
+
+	/**
+	 * The shallowest queue we'll ever keep, so a single lost block can't stall the peer.
+	 */
+	public static final int MIN_DEPTH = 2;
+
+	/**
+	 * The deepest queue we'll ever keep, so one peer can't hoard every block of a piece.
+	 */
+	public static final int MAX_DEPTH = 64;
+
+	/**
+	 * How many round trip samples make up one window of the minimum filter.
+	 */
+	private static final int RTT_WINDOW = 64;
+
+	/**
+	 * The shortest period, in milliseconds, a delivery rate sample is taken over.
+	 */
+	private static final long RATE_INTERVAL = 250L;
+
+	/**
+	 * Weight of a new delivery rate sample in the moving average.
+	 */
+	private static final double RATE_GAIN = 0.25;
+
+	/**
+	 * The lowest round trip seen in the current window, in milliseconds, or -1 before the first sample.
+	 */
+	private long minRtt = -1;
+
+	/**
+	 * Samples taken in the current window.
+	 */
+	private int rttSamples = 0;
+
+	/**
+	 * Lowest round trip in the window being collected.
+	 */
+	private long windowMinRtt = Long.MAX_VALUE;
+
+	/**
+	 * Moving average of bytes delivered per millisecond, or -1 before the first sample.
+	 */
+	private double deliveryRate = -1;
+
+	/**
+	 * Start of the current delivery rate sample.
+	 */
+	private long rateStart;
+
+	/**
+	 * Bytes received in the current delivery rate sample.
+	 */
+	private long rateBytes;
+
+	/**
+	 * Called when the first request is queued into an empty pipeline, so the idle gap isn't counted.
+	 * @param now
+	 */
+	public void pipelineStarted(long now) {
+		this.rateStart = now;
+		this.rateBytes = 0;
+	}
+
+	/**
+	 * Records a block arriving in answer to a request queued at {@code queuedAt}.
+	 * @param queuedAt
+	 * @param now
+	 * @param length
+	 */
+	public void blockReceived(long queuedAt, long now, int length) {
+		long rtt = Math.max(1, now - queuedAt);
+		windowMinRtt = Math.min(windowMinRtt, rtt);
+		if (minRtt == -1 || rtt < minRtt)
+			minRtt = rtt;
+		if (++rttSamples >= RTT_WINDOW) {
+			//start a new window, so the estimate can rise again if the path gets slower
+			minRtt = windowMinRtt;
+			windowMinRtt = Long.MAX_VALUE;
+			rttSamples = 0;
+		}
+
+		rateBytes += length;
+		long elapsed = now - rateStart;
+		if (elapsed >= RATE_INTERVAL) {
+			double sample = (double) rateBytes / elapsed;
+			deliveryRate = (deliveryRate < 0) ? sample : deliveryRate + RATE_GAIN * (sample - deliveryRate);
+			rateStart = now;
+			rateBytes = 0;
+		}
+	}
+
+	/**
+	 * Returns the number of blocks of {@code blockSize} bytes that cover one bandwidth-delay product, plus one for
+	 * headroom, clamped to [MIN_DEPTH, MAX_DEPTH]. Returns {@code defaultDepth} until there is a measurement.
+	 * @param blockSize
+	 * @param defaultDepth
+	 * @return
+	 */
+	public int getQueueDepth(int blockSize, int defaultDepth) {
+		if (minRtt < 0 || deliveryRate < 0)
+			return defaultDepth;
+		int depth = (int) Math.ceil(deliveryRate * minRtt / blockSize) + 1;
+		return Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, depth));
+	}
+
+	/**
+	 * @return the current round trip estimate in milliseconds, or -1 before the first sample.
+	 */
+	public long getRtt() {
+		return minRtt;
+	}
+
+	/**
+	 * @return the current delivery rate in bytes per millisecond (kB/s), or -1 before the first sample.
+	 */
+	public double getDeliveryRate() {
+		return deliveryRate;
+	}
+}
@@ -26,7 +26,7 @@ import java.util.TreeMap;
 
 /**
  * Parses a Bencoded byte array and returns a combination of {@code Map},
- * {@code List}, {@code ByteBuffer}, and {@code Integer} objects.
+ * {@code List}, {@code ByteBuffer}, and {@code Long} objects.
  * 
  * @author Robert Moore II
  *
@@ -87,7 +87,7 @@ public final class Bencoder2
     /**
      * Decodes a bencoded object represented by the byte array.
      * @param bencoded_bytes the bencoded data to decode.
-     * @return either a {@code Map}, {@code List}, {@code ByteBuffer}, or {@code Integer}.
+     * @return either a {@code Map}, {@code List}, {@code ByteBuffer}, or {@code Long}.
      * @throws BencodingException if the bencoded data was improperly formatted.
      */
     public static final Object decode(byte[] bencoded_bytes) throws BencodingException
@@ -99,7 +99,7 @@ public final class Bencoder2
      * Decodes a bencoded object represented by the byte array, starting at the specified offset.
      * @param bencoded_bytes the bencoded data to decode.
      * @param offset the offset into {@code bencoded_bytes} at which to start decoding.
-     * @return a {@code Map}, {@code List}, {@code ByteBuffer}, or {@code Integer}.
+     * @return a {@code Map}, {@code List}, {@code ByteBuffer}, or {@code Long}.
      * @throws BencodingException if the bencoded object in {@code bencoded_bytes} at offset {@code offset} is incorrectly encoded. 
      */
     private static final Object[] decode(byte[] bencoded_bytes, int offset) throws BencodingException
@@ -125,7 +125,8 @@ public final class Bencoder2
      * @param offset the position of the 'i' indicating the start of the
      *        bencoded integer to be bdecoded.
      * @return an <code>Object[]</code> containing an <code>Integer</code> offset and the decoded
-     *          <code>Integer</code>, in positions 0 and 1, respectively
+     *          <code>Long</code>, in positions 0 and 1, respectively. Integers are decoded as longs so that
+     *          lengths of files over 2 GB survive.
      * @throws BencodingException if the bencoded integer in {@code bencoded_bytes} at offset {@code offset} is incorrectly encoded.
      */
     private static final Object[] decodeInteger(byte[] bencoded_bytes, int offset) throws BencodingException
@@ -141,7 +142,7 @@ public final class Bencoder2
         try 
         {
             offset++;   // Skip the 'e'
-            return new Object[] {new Integer(offset),new Integer(Integer.parseInt(int_chars.toString()))};
+            return new Object[] {new Integer(offset),Long.valueOf(Long.parseLong(int_chars.toString()))};
         }
         catch(NumberFormatException nfe)
         {
@@ -299,7 +300,7 @@ public final class Bencoder2
      * @param o the object to bencode.
      * @return the bencoded form of the object.
      * @throws BencodingException if {@code o} is not of type {@code HashMap}, {@code ArrayList},
-     *  		{@code Integer}, or {@code ByteBuffer}.
+     *  		{@code Integer}, {@code Long}, or {@code ByteBuffer}.
      */
     @SuppressWarnings({ "unchecked", "rawtypes" })
 	public static final byte[] encode(Object o) throws BencodingException
@@ -308,8 +309,8 @@ public final class Bencoder2
             return encodeDictionary((HashMap)o);
         else if(o instanceof ArrayList)
             return encodeList((ArrayList)o);
-        else if(o instanceof Integer)
-            return encodeInteger((Integer)o);
+        else if(o instanceof Integer || o instanceof Long)
+            return encodeInteger(((Number)o).longValue());
         else if(o instanceof ByteBuffer)
             return encodeString((ByteBuffer)o);
         else
@@ -324,43 +325,29 @@ public final class Bencoder2
      */
     private static final byte[] encodeString(ByteBuffer string)
     {
-        int length = string.array().length;
-        int num_digits = 1;
-        while((length /= 10) > 0)
-        {
-            num_digits++;
-        }
-        byte[] bencoded_string = new byte[length+num_digits+1];
-        bencoded_string[num_digits] = (byte)':';
-        System.arraycopy(string.array(), 0, bencoded_string, num_digits+1, length);
-        for(int i = num_digits-1; i >= 0; i--)
-        {
-            bencoded_string[i] = (byte)((length % 10)+48);
-            length /= 10;
-        }
+        byte[] bytes = string.array();
+        String digits = Integer.toString(bytes.length);
+        byte[] bencoded_string = new byte[digits.length()+1+bytes.length];
+        for(int i = 0; i < digits.length(); i++)
+            bencoded_string[i] = (byte)digits.charAt(i);
+        bencoded_string[digits.length()] = (byte)':';
+        System.arraycopy(bytes, 0, bencoded_string, digits.length()+1, bytes.length);
         return bencoded_string;
     }
     
     /**
-     * Bencodes the specified Integer.
-     * @param integer the Integer to bencode.
-     * @return a {@code byte[]} containing the bencoded form of the Integer.
+     * Bencodes the specified integer.
+     * @param integer the integer to bencode.
+     * @return a {@code byte[]} containing the bencoded form of the integer.
      */
-    private static final byte[] encodeInteger(Integer integer)
+    private static final byte[] encodeInteger(long integer)
     {
-        int num_digits = 1;
-        int int_val = integer.intValue();
-        while((int_val /= 10) > 0)
-            ++num_digits;
-        int_val = integer.intValue();
-        byte[] bencoded_integer = new byte[num_digits+2];
+        String digits = Long.toString(integer);
+        byte[] bencoded_integer = new byte[digits.length()+2];
         bencoded_integer[0] = (byte)'i';
         bencoded_integer[bencoded_integer.length - 1] = (byte)'e';
-        for(int i = num_digits; i > 0; i--)
-        {
-            bencoded_integer[i] = (byte)((int_val % 10)+48);
-            int_val /= 10;
-        }
+        for(int i = 0; i < digits.length(); i++)
+            bencoded_integer[i+1] = (byte)digits.charAt(i);
         return bencoded_integer;
     }
     
@@ -59,11 +59,14 @@ public class BitfieldMessage extends Message{
 	//end @author Robert Moore
 	
 	@Override
-	public byte[] generateByteArray(){
-		ByteBuffer bb = ByteBuffer.allocate(5+bitfield.length);
+	public int encodedLength(){
+		return 5 + bitfield.length;
+	}
+	
+	@Override
+	public void encode(ByteBuffer bb){
 		bb.putInt(1 + bitfield.length);
 		bb.put(this.id);
 		bb.put(this.bitfield);	
-		return bb.array();
 	}
 }
@@ -0,0 +1,63 @@
+package ru.bit.torrent;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A pool of equally sized direct ByteBuffers. Direct buffers are expensive to allocate and are only freed by the
+ * garbage collector, so rather than each MessageHandler allocating its own read buffer, handlers take one from the
+ * pool when they're created and give it back when their connection closes.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class BufferPool {
+
+	/**
+	 * The capacity of every buffer in the pool.
+	 */
+	private final int bufferSize;
+
+	/**
+	 * The most idle buffers kept around; any more given back are left to the garbage collector.
+	 */
+	private final int maxIdle;
+
+	private ConcurrentLinkedQueue<ByteBuffer> idle;
+
+	/**
+	 * @param bufferSize
+	 * @param maxIdle
+	 */
+	public BufferPool(int bufferSize, int maxIdle) {
+		this.bufferSize = bufferSize;
+		this.maxIdle = maxIdle;
+		this.idle = new ConcurrentLinkedQueue<ByteBuffer>();
+	}
+
+	/**
+	 * @return an empty buffer, from the pool if there's one idle, otherwise newly allocated.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = idle.poll();
+		if (buffer == null)
+			return ByteBuffer.allocateDirect(bufferSize);
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to the pool. The caller must not touch it afterwards.
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer != null && buffer.capacity() == bufferSize && idle.size() < maxIdle)
+			idle.offer(buffer);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
@@ -0,0 +1,51 @@
+package ru.bit.torrent;
+
+import java.nio.ByteBuffer;
+
+/**
+ * cancel: <len=0013><id=8><index><begin><length>
+ *
+ * The cancel message is fixed length, and is used to cancel block requests. The payload is identical to that of the
+ * request message. It is typically sent during endgame, once a block requested from several peers has arrived.
+ *
+ * @author Dylan Murray
+ * @author Charles Zuppe
+ * @author Jonas Schreiber
+ *
+ */
+public class CancelMessage extends Message {
+
+	int length;
+
+	int begin;
+
+	int index;
+
+	public CancelMessage(int index, int begin, int length){
+		super(Message.CANCEL);
+		this.index = index;
+		this.begin = begin;
+		this.length = length;
+	}
+
+	@Override
+	public int encodedLength(){
+		return 17;
+	}
+	
+	/**
+	 * Writes a CancelMessage object in byte format.
+	 */
+	@Override
+	public void encode(ByteBuffer bb){
+		bb.putInt(13);
+		bb.put(this.id);
+		bb.putInt(this.index);
+		bb.putInt(this.begin);
+		bb.putInt(this.length);
+	}
+
+	public String toString(){
+		return super.toString() + " @ index: " + index + " and begin: " + begin;
+	}
+}
@@ -0,0 +1,51 @@
+package ru.bit.torrent;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Keeps the download in a file accessed with positional FileChannel reads and writes, which don't use (or disturb)
+ * the channel's file pointer, so they need no lock.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class ChannelStorage implements Storage {
+
+	private FileChannel channel;
+
+	public ChannelStorage(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	public void read(long position, ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			int read = channel.read(dst, position);
+			if (read == -1)
+				throw new EOFException("Read at " + position + " runs past the end of the file.");
+			position += read;
+		}
+	}
+
+	public void write(long position, ByteBuffer src) throws IOException {
+		while (src.hasRemaining())
+			position += channel.write(src, position);
+	}
+
+	public long transferTo(long position, int length, WritableByteChannel target) throws IOException {
+		return channel.transferTo(position, length, target);
+	}
+
+	public void force() throws IOException {
+		channel.force(false);
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
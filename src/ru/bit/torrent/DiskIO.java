@@ -0,0 +1,345 @@
+package ru.bit.torrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs every read, write and hash of the download on its own pool of "Disk I/O" threads, so a slow disk, a page fault
+ * or an fsync holds up a disk thread rather than a PeerEngine thread and every socket it serves. Jobs wait in a
+ * bounded queue; a caller that mustn't block uses offer() and does the work itself if the queue is full.
+ *
+ * Queued jobs are taken in elevator order of their offset in the download: each thread takes the job at or after
+ * the last offset taken, going back to the start once it runs off the end, so the disk sweeps across the download
+ * rather than seeking back and forth in the order peers happen to ask, and no job waits more than one sweep.
+ *
+ * Every job is a Future, and can also be given a Callback, which is called on the disk thread when the job is done.
+ * The queue's depth and each kind of job's latency are kept for the exit statistics.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class DiskIO {
+
+	/**
+	 * Kinds of jobs, for the statistics.
+	 */
+	public static final int READ = 0;
+
+	public static final int WRITE = 1;
+
+	public static final int HASH = 2;
+
+	private static final String[] NAMES = { "reads", "writes", "hashes" };
+
+	/**
+	 * Told, on the disk thread, how a job went.
+	 */
+	public interface Callback<T> {
+
+		void completed(T result);
+
+		void failed(Exception e);
+	}
+
+	/**
+	 * Hashes on the disk threads; every thread gets its own.
+	 */
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-1 is not available.", e);
+			}
+		}
+	};
+
+	/**
+	 * A queued job.
+	 */
+	private static class Job<T> extends FutureTask<T> {
+
+		final int type;
+
+		final long position;
+
+		final Callback<T> callback;
+
+		/**
+		 * When the job was queued (ns).
+		 */
+		final long queued = System.nanoTime();
+
+		Job(int type, long position, Callable<T> work, Callback<T> callback) {
+			super(work);
+			this.type = type;
+			this.position = position;
+			this.callback = callback;
+		}
+
+		/**
+		 * Fails the job without running it, calling its callback's failed().
+		 */
+		void reject(Exception e) {
+			setException(e);
+		}
+
+		@Override
+		protected void done() {
+			if (callback == null || isCancelled())
+				return;
+			T result;
+			try {
+				result = get();
+			} catch (ExecutionException e) {
+				callback.failed(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+				return;
+			} catch (InterruptedException e) {
+				//can't happen, the job is done
+				return;
+			}
+			callback.completed(result);
+		}
+	}
+
+	/**
+	 * The most jobs queued at once.
+	 */
+	private final int capacity;
+
+	/**
+	 * Queued jobs by offset, each offset's jobs in the order they were queued. Guarded by the DiskIO itself.
+	 */
+	private TreeMap<Long, ArrayDeque<Job<?>>> queue = new TreeMap<Long, ArrayDeque<Job<?>>>();
+
+	private int depth;
+
+	private int maxDepth;
+
+	/**
+	 * The offset of the last job taken; the elevator carries on from there.
+	 */
+	private long head;
+
+	private boolean shutdown;
+
+	private Thread[] threads;
+
+	private AtomicLong[] jobs = new AtomicLong[NAMES.length];
+
+	/**
+	 * Nanoseconds from being queued to being done, summed per kind of job.
+	 */
+	private AtomicLong[] latency = new AtomicLong[NAMES.length];
+
+	/**
+	 * @param numThreads the number of disk threads.
+	 * @param capacity the most jobs queued at once.
+	 */
+	public DiskIO(int numThreads, int capacity) {
+		this.capacity = capacity;
+		for (int i = 0; i < NAMES.length; i++) {
+			jobs[i] = new AtomicLong();
+			latency[i] = new AtomicLong();
+		}
+		this.threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			});
+			threads[i].setName("Disk I/O " + i);
+			//never keeps the client alive on its own
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Queues a job, waiting for room if the queue is full. Must not be called from a PeerEngine thread.
+	 * @param type READ, WRITE or HASH.
+	 * @param position the job's offset in the download.
+	 * @param work done on a disk thread.
+	 * @param callback may be null.
+	 * @return the job's result. Errors are thrown from Future.get(); once the DiskIO has been shut down the job isn't
+	 * run, and fails straight away with an IOException, through the callback too.
+	 * @throws InterruptedException
+	 */
+	public <T> Future<T> submit(int type, long position, Callable<T> work, Callback<T> callback) throws InterruptedException {
+		Job<T> job = new Job<T>(type, position, work, callback);
+		synchronized (this) {
+			while (depth >= capacity && !shutdown)
+				wait();
+			if (!shutdown) {
+				enqueue(job);
+				return job;
+			}
+		}
+		//outside the lock, as it runs the callback
+		job.reject(new IOException("Disk I/O has been shut down."));
+		return job;
+	}
+
+	/**
+	 * Queues a job if there's room.
+	 * @return the job's result, or null if the queue is full or has been shut down, in which case the job hasn't
+	 * been queued.
+	 */
+	public <T> Future<T> offer(int type, long position, Callable<T> work, Callback<T> callback) {
+		Job<T> job = new Job<T>(type, position, work, callback);
+		synchronized (this) {
+			if (depth >= capacity || shutdown)
+				return null;
+			enqueue(job);
+		}
+		return job;
+	}
+
+	/**
+	 * Queues a piece to be checked against its hash.
+	 * @param position the piece's offset in the download.
+	 * @param expected the piece's hash from the torrent.
+	 * @param piece reads the piece's bytes; called on the disk thread.
+	 * @return whether the piece matches its hash. Reading errors, and the DiskIO having been shut down, are thrown
+	 * from Future.get().
+	 * @throws InterruptedException
+	 */
+	public Future<Boolean> hash(long position, final ByteBuffer expected, final Callable<ByteBuffer> piece) throws InterruptedException {
+		return submit(HASH, position, new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				MessageDigest digest = digests.get();
+				digest.reset();
+				digest.update(piece.call());
+				return PieceVerifier.matches(digest.digest(), expected);
+			}
+		}, null);
+	}
+
+	/**
+	 * Must hold the DiskIO's lock, and the DiskIO mustn't have been shut down.
+	 */
+	private void enqueue(Job<?> job) {
+		ArrayDeque<Job<?>> atPosition = queue.get(job.position);
+		if (atPosition == null) {
+			atPosition = new ArrayDeque<Job<?>>(2);
+			queue.put(job.position, atPosition);
+		}
+		atPosition.add(job);
+		maxDepth = Math.max(maxDepth, ++depth);
+		notifyAll();
+	}
+
+	/**
+	 * Takes the next job in elevator order, waiting for one if need be.
+	 * @return null once shut down and the queue is empty.
+	 */
+	private synchronized Job<?> take() throws InterruptedException {
+		while (depth == 0) {
+			if (shutdown)
+				return null;
+			wait();
+		}
+		Map.Entry<Long, ArrayDeque<Job<?>>> next = queue.ceilingEntry(head);
+		if (next == null)
+			next = queue.firstEntry();
+		Job<?> job = next.getValue().poll();
+		if (next.getValue().isEmpty())
+			queue.remove(next.getKey());
+		head = job.position;
+		depth--;
+		notifyAll();
+		return job;
+	}
+
+	private void work() {
+		while (true) {
+			Job<?> job;
+			try {
+				job = take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (job == null)
+				return;
+			try {
+				job.run();
+			} catch (RuntimeException e) {
+				//thrown by a callback; the job itself is done
+				System.err.println("Disk I/O callback failed: " + e);
+			}
+			jobs[job.type].incrementAndGet();
+			latency[job.type].addAndGet(System.nanoTime() - job.queued);
+		}
+	}
+
+	/**
+	 * @return how many jobs are waiting.
+	 */
+	public synchronized int getQueueDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the most jobs that have waited at once.
+	 */
+	public synchronized int getMaxQueueDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * @param type READ, WRITE or HASH.
+	 * @return how many jobs of that kind have been done.
+	 */
+	public long getJobs(int type) {
+		return jobs[type].get();
+	}
+
+	/**
+	 * @param type READ, WRITE or HASH.
+	 * @return the average time (ms) from a job of that kind being queued to it being done.
+	 */
+	public double getAverageLatency(int type) {
+		long count = jobs[type].get();
+		return count == 0 ? 0 : latency[type].get() / 1e6 / count;
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < NAMES.length; i++)
+			sb.append(String.format("%d %s (%.2f ms), ", getJobs(i), NAMES[i], getAverageLatency(i)));
+		sb.append("queue depth " + getQueueDepth() + " (max " + getMaxQueueDepth() + ")");
+		return sb.toString();
+	}
+
+	/**
+	 * Stops the disk threads once the jobs already queued have been done. Jobs submitted afterwards fail without
+	 * being run, and offer() refuses them.
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		notifyAll();
+	}
+
+	/**
+	 * Waits for the disk threads to stop after shutdown(), once every job queued before it has been done.
+	 * @throws InterruptedException
+	 */
+	public void awaitTermination() throws InterruptedException {
+		for (Thread thread : threads)
+			thread.join();
+	}
+}
@@ -1,11 +1,17 @@
 package ru.bit.torrent;
 
 import java.io.*;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * This class is used to interact with the file we're downloading to/ uploading from - it contains methods 
- * to read and write specific pieces from the file.
+ * to read and write blocks of specific pieces from the file.
  * 
  * @author Jonas Schreiber
  * @author Charles Zuppe
@@ -14,13 +20,42 @@ import java.util.Arrays;
  */
 public class FileAccess {
 	
+	/**
+	 * Allocation modes; see Manager.ALLOCATION_MODE.
+	 */
+	public static final int ALLOCATE_SPARSE = 0;
+	
+	public static final int ALLOCATE_FULL = 1;
+	
+	public static final int ALLOCATE_LAZY = 2;
+	
+	/**
+	 * The size of each write when a file is zero-filled.
+	 */
+	private static final int ZERO_FILL_SIZE = 1024 * 1024;
+	
 	/** 
-	 * The RAF used to write to and read from file
+	 * The RAF used to write to and read from a single-file torrent's file; null if the download is in a SpanStorage
 	 */
 	private RandomAccessFile raf;
 	
 	/**
-	 * The file which the torrent ultimately creates
+	 * Where the bytes are actually read and written, by absolute offset; see Manager.MAPPED_STORAGE.
+	 */
+	private Storage storage;
+	
+	/**
+	 * Recently uploaded pieces, or null if Manager.READ_CACHE_SIZE is 0.
+	 */
+	private PieceCache cache;
+	
+	/**
+	 * Received blocks waiting to be written, or null if Manager.WRITE_CACHE_SIZE is 0.
+	 */
+	private WriteCache writeCache;
+	
+	/**
+	 * The file which the torrent ultimately creates, or the directory the files of a multi-file torrent go in
 	 */
 	private File file;
 	
@@ -39,18 +74,31 @@ public class FileAccess {
 		this.file = new File(manager.getDlPath());
 		this.torrentInfo = torrentInfo;
 		this.manager = manager;
+		if (Manager.READ_CACHE_SIZE > 0)
+			this.cache = new PieceCache(this, manager, torrentInfo, Manager.READ_CACHE_SIZE);
 		//Very important to see whether file already exists or is being created anew, as different steps will be taken in each case.
-		if (!file.exists())
-		{
-			System.out.println("File doesn't exist, creating new file.");
-			this.raf = new RandomAccessFile(file, "rw");
-			raf.setLength(torrentInfo.file_length);
-			writeNulls();
-		}
-		else 
+		boolean exists = file.exists();
+		if (!exists)
+			System.out.println(torrentInfo.isMultiFile() ? "Directory doesn't exist, creating new files." : "File doesn't exist, creating new file.");
+		this.storage = openStorage();
+		//a new download has no pieces yet; which pieces an existing one has never depends on what the file holds
+		//where nothing has been written, only on the resume record or on hashing every piece
+		if (exists)
 		{
-			this.raf = new RandomAccessFile(file, "rw");
-			boolean[] myPieces = tallyPieces();
+			boolean[] myPieces = manager.resumeData.load();
+			if (myPieces == null)
+			{
+				System.out.println("No usable fast-resume record, checking pieces.");
+				myPieces = tallyPieces(null);
+				//the download hasn't changed, so next time this check can be skipped
+				manager.resumeData.save(myPieces, true);
+			}
+			else if (manager.resumeData.needsCheck())
+			{
+				System.out.println("Fast-resume record was written while downloading, checking the pieces it lists.");
+				myPieces = tallyPieces(myPieces);
+				manager.resumeData.save(myPieces, true);
+			}
 			StringBuffer sb = new StringBuffer();
 			sb.append("The pieces this client already has are: ");
 			for(int i=0; i < myPieces.length; i++){
@@ -63,101 +111,325 @@ public class FileAccess {
 	}
 	
 	/**
-	 * Utilizes RandomAccessFile to write a piece 
-	 * @param pieceIndex
-	 * @param pieceBytes
+	 * Allocates the download's file(s) as Manager.ALLOCATION_MODE says and opens them. A single file is mapped in 
+	 * windows if Manager.MAPPED_STORAGE is set, otherwise it uses positional channel I/O; the files of a multi-file
+	 * torrent, and a single file that is allocated lazily, are spanned by a SpanStorage.
 	 * @return
+	 * @throws IOException
 	 */
-	public synchronized boolean writePiece(int pieceIndex, byte[] pieceBytes)
+	private Storage openStorage() throws IOException
 	{
-		try {
-			raf.seek(pieceIndex * torrentInfo.piece_length);
-			raf.write(pieceBytes);
-		} catch (IOException e) {
-			return false;
+		Storage storage;
+		if (torrentInfo.isMultiFile() || Manager.ALLOCATION_MODE == ALLOCATE_LAZY)
+		{
+			SpanStorage spans = new SpanStorage(downloadFiles(manager.getDlPath(), torrentInfo), torrentInfo.file_lengths, 
+					Manager.MAX_OPEN_FILES, Manager.ALLOCATION_MODE);
+			spans.allocate();
+			storage = spans;
+		}
+		else
+		{
+			this.raf = new RandomAccessFile(file, "rw");
+			allocate(raf, torrentInfo.file_length, Manager.ALLOCATION_MODE);
+			if (Manager.MAPPED_STORAGE)
+				storage = new MappedStorage(raf.getChannel(), Manager.MAP_WINDOW_SIZE, Manager.MAX_MAPPED_WINDOWS);
+			else
+				storage = new ChannelStorage(raf.getChannel());
 		}
-		return true;
+		if (Manager.WRITE_CACHE_SIZE > 0)
+			this.writeCache = new WriteCache(storage, manager.disk, Manager.WRITE_CACHE_SIZE);
+		return storage;
 	}
 	
 	/**
-	 * Utilizes RandomAccessFile to read a piece
+	 * Writes a block at its final offset in the file as soon as it arrives, or hands it to the write cache to be
+	 * written in the background. Blocks of different pieces can be written at once.
 	 * @param pieceIndex
-	 * @return
+	 * @param begin offset within the piece
+	 * @param block the block's bytes, which are consumed
+	 * @throws IOException
+	 */
+	public void writeBlock(int pieceIndex, int begin, ByteBuffer block) throws IOException
+	{
+		long position = (long) pieceIndex * torrentInfo.piece_length + begin;
+		if (writeCache != null)
+			writeCache.submit(position, block);
+		else
+			storage.write(position, block);
+	}
+	
+	/**
+	 * Calls the listener once every block written so far has reached the file: right away without a write cache,
+	 * otherwise from the write cache's thread, which fails it if any of the piece's blocks couldn't be written.
+	 * @param pieceIndex the piece the listener is waiting on.
+	 * @param listener
+	 */
+	public void afterWritten(int pieceIndex, WriteCache.WriteListener listener)
+	{
+		if (writeCache != null)
+			writeCache.afterWritten((long) pieceIndex * torrentInfo.piece_length, manager.picker.pieceLength(pieceIndex), listener);
+		else
+			listener.written();
+	}
+	
+	public WriteCache getWriteCache()
+	{
+		return writeCache;
+	}
+	
+	/**
+	 * Reads part of a piece back from the file into a buffer the caller owns, so serving a REQUEST reads only the 
+	 * requested block rather than the whole piece.
+	 * @param pieceIndex
+	 * @param begin offset within the piece
+	 * @param length
+	 * @param dst receives {@code length} bytes at its position, which is advanced past them.
+	 * @throws IOException
 	 */
-	public synchronized byte[] readPiece(int pieceIndex)
+	public void readBlock(int pieceIndex, int begin, int length, ByteBuffer dst) throws IOException
 	{
+		ByteBuffer block = dst.duplicate();
+		block.limit(block.position() + length);
+		storage.read((long) pieceIndex * torrentInfo.piece_length + begin, block);
+		dst.position(block.position());
+	}
+	
+	/**
+	 * Reads part of a piece back from the file.
+	 * @param pieceIndex
+	 * @param begin offset within the piece
+	 * @param length
+	 * @return the bytes read, flipped for reading.
+	 * @throws IOException
+	 */
+	public ByteBuffer readBlock(int pieceIndex, int begin, int length) throws IOException
+	{
+		ByteBuffer block = ByteBuffer.allocate(length);
+		readBlock(pieceIndex, begin, length, block);
+		block.flip();
+		return block;
+	}
+	
+	/**
+	 * Sends part of a piece we're uploading straight to the target channel, without copying it onto the heap. The
+	 * block is sent from the read cache if its piece is there, otherwise from the file: with FileChannel.transferTo
+	 * in ChannelStorage, or from the mapping in MappedStorage. Either way only the block is touched, never the whole
+	 * piece, as this runs on a PeerEngine thread.
+	 * @param pieceIndex
+	 * @param begin offset within the piece
+	 * @param length
+	 * @param target
+	 * @return the number of bytes transferred, possibly 0 if the target is a non-blocking channel that is full.
+	 * @throws IOException
+	 */
+	public long transferBlock(int pieceIndex, int begin, int length, WritableByteChannel target) throws IOException
+	{
+		if (cache != null)
+		{
+			long sent = cache.transferTo(pieceIndex, begin, length, target);
+			if (sent >= 0)
+				return sent;
+		}
+		return storage.transferTo((long) pieceIndex * torrentInfo.piece_length + begin, length, target);
+	}
+	
+	/**
+	 * Reads part of a piece we're uploading, through the read cache when there is one.
+	 * @param pieceIndex
+	 * @param begin offset within the piece
+	 * @param length
+	 * @param dst receives {@code length} bytes at its position, which is advanced past them.
+	 * @throws IOException
+	 */
+	public void serveBlock(int pieceIndex, int begin, int length, ByteBuffer dst) throws IOException
+	{
+		if (cache != null)
+			cache.read(pieceIndex, begin, length, dst);
+		else
+			readBlock(pieceIndex, begin, length, dst);
+	}
+	
+	/**
+	 * Gets a block a peer has requested ready to be sent, so the PeerEngine thread sending it never waits on the 
+	 * disk. With a read cache, the block's piece is read into the cache on a DiskIO thread if it isn't there yet, 
+	 * and the block is then sent from memory. Without one, a copied block is read on a DiskIO thread; a zero-copy 
+	 * block is ready straight away, as it's sent from the file by the kernel.
+	 * 
+	 * If the disk queue is full, or DiskIO has been shut down, the block is read on the calling thread instead.
+	 * @param pieceIndex
+	 * @param begin offset within the piece
+	 * @param length
+	 * @param callback called, possibly before this returns, once the block can be sent. Its result is the block's 
+	 * bytes if they had to be read for a copied block, otherwise null and the block is sent through serveBlock() or
+	 * transferBlock().
+	 */
+	public void prepareBlock(final int pieceIndex, final int begin, final int length, DiskIO.Callback<ByteBuffer> callback)
+	{
+		Callable<ByteBuffer> read;
+		if (cache != null)
+		{
+			if (cache.isLoaded(pieceIndex))
+			{
+				callback.completed(null);
+				return;
+			}
+			read = new Callable<ByteBuffer>() {
+				public ByteBuffer call() throws IOException {
+					cache.load(pieceIndex);
+					return null;
+				}
+			};
+		}
+		else if (Manager.ZERO_COPY_UPLOADS)
+		{
+			callback.completed(null);
+			return;
+		}
+		else
+		{
+			read = new Callable<ByteBuffer>() {
+				public ByteBuffer call() throws IOException {
+					return readBlock(pieceIndex, begin, length);
+				}
+			};
+		}
+		long position = (long) pieceIndex * torrentInfo.piece_length + begin;
+		if (manager.disk.offer(DiskIO.READ, position, read, callback) != null)
+			return;
+		ByteBuffer block;
 		try {
-			raf.seek(pieceIndex * torrentInfo.piece_length);
-			byte[] piece = new byte[torrentInfo.piece_length];
-			raf.read(piece, 0, torrentInfo.piece_length);
-			return piece;
-		} catch (IOException e) {
-			return null;
+			block = read.call();
+		} catch (Exception e) {
+			callback.failed(e);
+			return;
 		}
+		callback.completed(block);
+	}
+	
+	public PieceCache getCache()
+	{
+		return cache;
 	}
 	
 	/**
-	 * Called upoon creation of a new torrent file. Ensures that RandomAccessFile will not 
-	 * try to access parts of the file that haven't been written. Also utilized in the 
-	 * TallyPieces() method. 
-	 * @throws IOException 
+	 * Gives a file its length from the torrent. Unless the mode is ALLOCATE_FULL, only the length is set, which 
+	 * leaves a sparse file on most file systems; otherwise the part of the file that doesn't exist yet is written 
+	 * with zeros from start to end, in large sequential writes. A file longer than the torrent says is truncated.
+	 * @param raf
+	 * @param length
+	 * @param mode
+	 * @throws IOException
 	 */
-	public void writeNulls() throws IOException
+	static void allocate(RandomAccessFile raf, long length, int mode) throws IOException
 	{
-		byte[] nullBytes = new byte[]{ 0, 0, 0, 0,};
-		for (int i = 0; i < torrentInfo.file_length; i += torrentInfo.piece_length)
+		long size = raf.length();
+		if (size == length)
+			return;
+		if (size > length || mode != ALLOCATE_FULL)
+		{
+			raf.setLength(length);
+			return;
+		}
+		FileChannel channel = raf.getChannel();
+		ByteBuffer zeros = ByteBuffer.allocateDirect((int) Math.min(ZERO_FILL_SIZE, length - size));
+		while (size < length)
 		{
-			raf.seek(i);
-			raf.write(nullBytes);
+			zeros.clear();
+			if (length - size < zeros.capacity())
+				zeros.limit((int) (length - size));
+			while (zeros.hasRemaining())
+				size += channel.write(zeros, size);
 		}
 	}
 	
 	/**
 	 * Called upon resuming a torrent download. This is used to determine which pieces have already
 	 * been downloaded and written to file. A boolean array is created, length <number of pieces>, 
-	 * and that in turn can be used to set manager's myPieces field. 
+	 * and that in turn can be used to set manager's myPieces field. The pieces are hashed in parallel
+	 * on the Manager's DiskIO threads; this is only needed when there's no fast-resume record that can be trusted.
+	 * @param candidates the only pieces worth checking, as listed by a fast-resume record written while downloading,
+	 * or null to check every piece.
 	 * @return
 	 * @throws IOException
 	 */
-	public boolean[] tallyPieces() throws IOException
+	public boolean[] tallyPieces(boolean[] candidates) throws IOException
 	{
 		boolean[] myPieces = new boolean[torrentInfo.piece_hashes.length];
-		byte[] comparator = new byte[]{ 0, 0, 0, 0,};
-		byte[] temp = new byte[4];
-		int i = 0;
-		for (i = 0; i < torrentInfo.piece_hashes.length; i += 1)
-		{
-			raf.seek(i * torrentInfo.piece_length);
-			raf.read(temp, 0, 4);
-			if (Arrays.equals(comparator, temp))
-			{
-				myPieces[i] = false;
-//				System.out.println("tallyPieces has found that piece: " + i + " is " + myPieces[i]);
-			}
-			else
+		ArrayList<Future<Boolean>> checks = new ArrayList<Future<Boolean>>(myPieces.length);
+		try {
+			for (int i = 0; i < torrentInfo.piece_hashes.length; i += 1)
 			{
-				byte[] piece;
-				if (i == torrentInfo.piece_hashes.length - 1)
+				if (candidates != null && !candidates[i])
 				{
-					piece = new byte[torrentInfo.file_length % torrentInfo.piece_length];
-//					System.out.println("Last Piece, piece index: " + i + " is " + piece.length + " bytes long.");
+					checks.add(null);
+					continue;
 				}
-				else
-					piece = new byte[torrentInfo.piece_length];
-				raf.seek(i * torrentInfo.piece_length);
-				raf.read(piece, 0, piece.length);
-				PieceMessage tempPM = new PieceMessage(i, 0, piece);
-				if(manager.verifyPiece(tempPM))
-					myPieces[i] = true;
-				else
+				final int pieceIndex = i;
+				final int pieceLength = manager.picker.pieceLength(i);
+				checks.add(manager.disk.hash((long) i * torrentInfo.piece_length, torrentInfo.piece_hashes[i], 
+						new Callable<ByteBuffer>() {
+					public ByteBuffer call() throws IOException {
+						return readBlock(pieceIndex, 0, pieceLength);
+					}
+				}));
+			}
+			for (int i = 0; i < myPieces.length; i++)
+			{
+				if (checks.get(i) == null)
+					continue;
+				try {
+					myPieces[i] = checks.get(i).get();
+				} catch (ExecutionException e) {
+					System.err.println("Unable to check piece " + i + ": " + e.getCause());
 					myPieces[i] = false;
-//				System.out.println("tallyPieces has found that piece: " + i + " is " + myPieces[i]);
+				}
 			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while checking pieces.");
 		}
 		return myPieces;
 	}
 	
+	/**
+	 * Makes sure everything written so far has reached the disk.
+	 * @throws IOException
+	 */
+	public void force() throws IOException
+	{
+		storage.force();
+	}
+	
+	/**
+	 * The files a torrent downloads to: the download path itself for a single-file torrent, otherwise each file's
+	 * path within the download path.
+	 * @param dlPath
+	 * @param torrentInfo
+	 * @return
+	 */
+	public static File[] downloadFiles(String dlPath, TorrentInfo torrentInfo)
+	{
+		if (!torrentInfo.isMultiFile())
+			return new File[] { new File(dlPath) };
+		File[] files = new File[torrentInfo.file_paths.length];
+		for (int i = 0; i < files.length; i++)
+			files[i] = new File(dlPath, torrentInfo.file_paths[i]);
+		return files;
+	}
+	
+	/**
+	 * Closes the download once whatever the write cache holds has been written, making sure it has all reached the
+	 * disk. Nothing else may be reading or writing the download any more, including on the DiskIO threads.
+	 * @throws IOException
+	 */
 	public void close() throws IOException {
-		raf.close();
+		if (cache != null)
+			cache.close();
+		if (writeCache != null)
+			writeCache.close();
+		//MappedStorage unmaps without forcing, so a crash straight after exiting could lose what it still held
+		storage.force();
+		storage.close();
+		if (raf != null)
+			raf.close();
 	}
 }
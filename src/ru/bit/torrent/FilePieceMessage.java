@@ -0,0 +1,95 @@
+package ru.bit.torrent;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * piece: <len=0009+X><id=7><index><begin><block>
+ *
+ * A PieceMessage whose block is never copied onto the heap. Only the 13 byte header is generated in memory; the block
+ * itself is written to the peer's socket straight from the file, or from the read cache (see FileAccess.transferBlock).
+ *
+ * @author Dylan Murray
+ * @author Charles Zuppe
+ * @author Jonas Schreiber
+ *
+ */
+public class FilePieceMessage extends Message {
+
+	int index;
+
+	int begin;
+
+	int length;
+
+	/**
+	 * The file the block is read from.
+	 */
+	private FileAccess fa;
+
+	public FilePieceMessage(int index, int begin, int length, FileAccess fa){
+		super(Message.PIECE);
+		this.index = index;
+		this.begin = begin;
+		this.length = length;
+		this.fa = fa;
+	}
+
+	/**
+	 * Writes the length prefix, id, index and begin of the message - everything but the block.
+	 * @param bb
+	 */
+	public void encodeHeader(ByteBuffer bb){
+		bb.putInt(9 + length);
+		bb.put(Message.PIECE);
+		bb.putInt(index);
+		bb.putInt(begin);
+	}
+
+	/**
+	 * Sends as much of the block as the target will take, starting {@code offset} bytes into the block.
+	 * @param target
+	 * @param offset
+	 * @return the number of bytes sent, which may be 0 if the target is a non-blocking channel that is full.
+	 * @throws IOException
+	 */
+	public long transferTo(WritableByteChannel target, int offset) throws IOException {
+		return fa.transferBlock(index, begin + offset, length - offset, target);
+	}
+
+	@Override
+	public int blockLength() {
+		return length;
+	}
+
+	@Override
+	boolean isBlock(byte id, int index, int begin) {
+		return id == Message.PIECE && this.index == index && this.begin == begin;
+	}
+	
+	public String toString(){
+		return super.toString() + "@ index: " + index + ", begin: " + begin;
+	}
+
+	@Override
+	public int encodedLength(){
+		return 13 + length;
+	}
+
+	/**
+	 * Falls back to copying the block into the buffer, for callers that need the whole message in memory.
+	 */
+	@Override
+	public void encode(ByteBuffer bb){
+		int start = bb.position();
+		encodeHeader(bb);
+		try {
+			fa.serveBlock(index, begin, length, bb);
+		} catch (IOException e) {
+			bb.position(start);
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -17,16 +17,18 @@ public class HaveMessage extends Message{
 		this.pieceIndex = pieceIndex;
 	}
 	
+	@Override
+	public int encodedLength(){
+		return 9;
+	}
+	
 	/**
-	 * Generates a HaveMessage object in byte array format. 
-	 * @return
+	 * Writes a HaveMessage object in byte format. 
 	 */
 	@Override
-	public byte[] generateByteArray(){
-		ByteBuffer bb = ByteBuffer.allocate(17);
+	public void encode(ByteBuffer bb){
 		bb.putInt(5);
 		bb.put(this.id);
 		bb.putInt(this.pieceIndex);
-		return bb.array();
 	}
 }
@@ -1,11 +1,7 @@
 package ru.bit.torrent;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
 
 import ru.gui.PeerDisplay;
 
@@ -43,9 +39,10 @@ public class Manager {
 	private Tracker tracker;
 
 	/**
-	 * The list of valid peers (currently RUBT11) that have a piece of the file we're trying to download.
+	 * The valid peers (currently RUBT11) that have a piece of the file we're trying to download, indexed by peer ID
+	 * and address.
 	 */
-	public ArrayList<Peer> peers = new ArrayList<Peer>();
+	public PeerRegistry peers = new PeerRegistry();
 
 	/**
 	 * A boolean array used to store all the pieces we download. This ensures that even when we download pieces out of order
@@ -53,11 +50,31 @@ public class Manager {
 	 */
 	public boolean[] myPieces;
 	
+	/**
+	 * The same pieces as myPieces, as a bitset, so they can be compared against a peer's pieces a word at a time.
+	 */
+	public PieceSet havePieces;
+	
 	/**
 	 * Pieces in progress - any pieces that are currently being downloaded from a peer will be kept track of here.
 	 */
 	public boolean[] piecesInProg;
+	
+	/**
+	 * Hands out blocks to request to every MessageHandler, and assembles the pieces they arrive in.
+	 */
+	public PiecePicker picker;
     
+	/**
+	 * Does the download's disk reads, writes and hashing on its own threads.
+	 */
+	public DiskIO disk;
+	
+	/**
+	 * The fast-resume record, so pieces don't have to be re-hashed on the next start-up.
+	 */
+	public ResumeData resumeData;
+	
     /**
      *  FileAccess provides this Random Access
      */
@@ -104,6 +121,11 @@ public class Manager {
 	 */
 	private Thread paThread;
 	
+	/**
+	 * A Thread that rewrites the fast-resume record as pieces are completed.
+	 */
+	private Thread resumeThread;
+	
 	/**
 	 * A Thread to run GUI to keep track of peer status.
 	 */
@@ -120,9 +142,170 @@ public class Manager {
 	public int numUnchoked = 0;
 
 	/**
-	 * An array of pieces ordered by rarity/
+	 * The number of PeerEngine threads all peer connections are spread across.
+	 */
+	public static final int NUM_IO_THREADS = 2;
+	
+	/**
+	 * When true, PIECE responses are written to the socket straight from the read cache, or from the file if the
+	 * piece isn't cached (with FileChannel.transferTo, or from the mapping with MAPPED_STORAGE), instead of being
+	 * copied onto the heap first.
+	 */
+	public static final boolean ZERO_COPY_UPLOADS = true;
+	
+	/**
+	 * When true, FileAccess memory-maps the download in windows (MappedStorage) rather than using positional
+	 * FileChannel reads and writes (ChannelStorage).
+	 */
+	public static final boolean MAPPED_STORAGE = true;
+	
+	/**
+	 * The size of each window of the download that is memory-mapped at once.
+	 */
+	public static final int MAP_WINDOW_SIZE = 16 * 1024 * 1024;
+	
+	/**
+	 * The most windows of the download kept mapped at once; the least recently used is unmapped to make room.
+	 */
+	public static final int MAX_MAPPED_WINDOWS = 64;
+	
+	/**
+	 * The most files of a multi-file torrent kept open at once; the least recently used is closed to make room.
+	 */
+	public static final int MAX_OPEN_FILES = 128;
+	
+	/**
+	 * How the files of a new download are allocated: FileAccess.ALLOCATE_SPARSE only sets their length and lets the
+	 * file system allocate space as blocks are written, ALLOCATE_FULL zero-fills them up front with large sequential
+	 * writes, and ALLOCATE_LAZY doesn't create a file until a block is first written to it. A lazily allocated
+	 * single-file download uses positional channel I/O rather than being mapped.
+	 */
+	public static final int ALLOCATION_MODE = FileAccess.ALLOCATE_SPARSE;
+	
+	/**
+	 * The most bytes of recently uploaded pieces kept in memory (see PieceCache); 0 turns the cache off.
 	 */
-	public ArrayList<Integer> piecesByRarity;
+	public static final long READ_CACHE_SIZE = 64L * 1024 * 1024;
+	
+	/**
+	 * The most bytes of received blocks held in memory waiting to be written (see WriteCache); 0 writes each block as
+	 * it arrives.
+	 */
+	public static final long WRITE_CACHE_SIZE = 32L * 1024 * 1024;
+	
+	/**
+	 * The number of threads doing disk reads, writes and hashing (see DiskIO): one per core, as hashing is done
+	 * there too, but at least two so one slow read doesn't hold up every other.
+	 */
+	public static final int DISK_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * The most disk jobs waiting at once.
+	 */
+	public static final int DISK_QUEUE_SIZE = 256;
+	
+	/**
+	 * How many block requests each MessageHandler keeps in flight to its peer.
+	 */
+	public static final int PIPELINE_DEPTH = 8;
+	
+	/**
+	 * The most messages that can be waiting to be sent to a single peer. A peer that lets its queue fill up is
+	 * disconnected, since the message that didn't fit can't be dropped.
+	 */
+	public static final int MESSAGE_QUEUE_CAPACITY = 512;
+	
+	/**
+	 * Once this many messages are waiting to be sent to a peer, we stop reading its requests until the queue has been
+	 * written out, and queue no more requests of our own. The rest of the queue is kept for CHOKEs, HAVEs, CANCELs and
+	 * the like, which are queued from other threads and must never be dropped.
+	 */
+	public static final int MESSAGE_QUEUE_HIGH_WATER = 192;
+	
+	/**
+	 * How often (ms) the fast-resume record is rewritten while pieces are being completed.
+	 */
+	public static final long RESUME_SAVE_INTERVAL = 60000L;
+	
+	/**
+	 * Upload and download limits in bytes per second, 0 for unlimited: for the whole client, for this torrent, and
+	 * for each peer (see TokenBucket). They can be changed while running with the "limit" command.
+	 */
+	public static final long GLOBAL_UPLOAD_LIMIT = 0;
+	
+	public static final long GLOBAL_DOWNLOAD_LIMIT = 0;
+	
+	public static final long TORRENT_UPLOAD_LIMIT = 0;
+	
+	public static final long TORRENT_DOWNLOAD_LIMIT = 0;
+	
+	public static final long PEER_UPLOAD_LIMIT = 0;
+	
+	public static final long PEER_DOWNLOAD_LIMIT = 0;
+	
+	/**
+	 * The upload and download limits shared by every torrent.
+	 */
+	public static final TokenBucket globalUpload = new TokenBucket(null, GLOBAL_UPLOAD_LIMIT);
+	
+	public static final TokenBucket globalDownload = new TokenBucket(null, GLOBAL_DOWNLOAD_LIMIT);
+	
+	/**
+	 * This torrent's upload and download limits, shared by its peers.
+	 */
+	public TokenBucket uploadLimit = new TokenBucket(globalUpload, TORRENT_UPLOAD_LIMIT);
+	
+	public TokenBucket downloadLimit = new TokenBucket(globalDownload, TORRENT_DOWNLOAD_LIMIT);
+	
+	/**
+	 * The limits each peer's own buckets are given.
+	 */
+	private volatile long peerUploadRate = PEER_UPLOAD_LIMIT;
+	
+	private volatile long peerDownloadRate = PEER_DOWNLOAD_LIMIT;
+	
+	/**
+	 * Read buffers for the MessageHandlers, handed back when a connection closes so the next one can reuse it.
+	 */
+	public BufferPool readBuffers;
+	
+	/**
+	 * The engines that multiplex I/O for all of our peer connections.
+	 */
+	private PeerEngine[] engines;
+	
+	/**
+	 * The threads the engines run on, so exit() can wait for them.
+	 */
+	private Thread[] engineThreads;
+	
+	/**
+	 * The engine the next peer connection will be handed to (round robin).
+	 */
+	private int nextEngine = 0;
+
+	/**
+	 * How many connected peers have each piece we still need, kept up to date as BITFIELD and HAVE messages arrive
+	 * and peers disconnect. The PiecePicker starts the rarest piece first.
+	 */
+	public PieceAvailability availability;
+
+	/**
+	 * Sets up only the bookkeeping of which pieces we have and are downloading, for the unit tests. The download
+	 * isn't opened and no thread is started; fa, disk and the rest stay null.
+	 * @param dlPath
+	 * @param torrentInfo
+	 */
+	Manager(String dlPath, TorrentInfo torrentInfo) {
+		this.dlPath = dlPath;
+		this.torrentInfo = torrentInfo;
+		this.myPieces = new boolean[torrentInfo.piece_hashes.length];
+		this.havePieces = new PieceSet(torrentInfo.piece_hashes.length);
+		this.piecesInProg = new boolean[torrentInfo.piece_hashes.length];
+		this.picker = new PiecePicker(this, torrentInfo);
+		this.availability = new PieceAvailability(myPieces);
+	}
+
 	/**
 	 * Constructor for Manager class. Initializes instance variables, sets up Threads
 	 * facilitates the connection to tracker and peers, and downloads the file.
@@ -136,10 +319,42 @@ public class Manager {
 		this.torrentInfo = torrentInfo;
 		this.peerID = peerID;
 		this.myPieces = new boolean[torrentInfo.piece_hashes.length];
+		this.havePieces = new PieceSet(torrentInfo.piece_hashes.length);
 		this.piecesInProg = new boolean[torrentInfo.piece_hashes.length];
+		this.picker = new PiecePicker(this, torrentInfo);
+		this.disk = new DiskIO(DISK_THREADS, DISK_QUEUE_SIZE);
+		this.resumeData = new ResumeData(this, torrentInfo);
 		this.fa = new FileAccess(this,  torrentInfo);
+		this.availability = new PieceAvailability(myPieces);
+		this.peers.addListener(new PeerRegistry.PeerListener() {
+			public void peerConnected(Peer peer) {
+				System.out.println("Connecting to peer " + peer + " (" + peers.size() + " peers known).");
+			}
+
+			public void peerDisconnected(Peer peer) {
+				//its pieces no longer count towards rarity
+				availability.removePeer(peer.availablePieces);
+			}
+		});
 		this.listeningPort = 0;
 
+		this.resumeThread = new Thread(resumeData);
+		resumeThread.setName("Resume Writer");
+		resumeThread.setDaemon(true);
+		resumeThread.start();
+
+		this.readBuffers = new BufferPool(MessageHandler.readBufferSize(torrentInfo), 16);
+		this.engines = new PeerEngine[NUM_IO_THREADS];								//PeerEngine Threads Setup
+		this.engineThreads = new Thread[NUM_IO_THREADS];
+		for (int i = 0; i < engines.length; i++) {
+			this.engines[i] = new PeerEngine(this);
+			Thread engineThread = new Thread(engines[i]);
+			engineThread.setName("Peer Engine " + i);
+			Runtime.getRuntime().addShutdownHook(engineThread);
+			engineThread.start();
+			this.engineThreads[i] = engineThread;
+		}
+
 		this.socketListener = new SocketListener(this, this.torrentInfo); 			//SocketListener Thread Setup
 		Thread socketListenerThread = new Thread(socketListener);
 		socketListenerThread.setName("Socket Listener");
@@ -160,7 +375,7 @@ public class Manager {
 		populatePeers(this.tracker.getPeerList());									//Peers Setup
 		connectToPeers();
 		
-		this.pa = new PerformanceAnalyzer(this, torrentInfo.piece_hashes.length); 	//Performance Analyzer Thread Setup
+		this.pa = new PerformanceAnalyzer(this); 								//Performance Analyzer Thread Setup
 		this.paThread = new Thread(pa);
 		this.paThread.setName("Performance Analyzer");
 		Runtime.getRuntime().addShutdownHook(paThread);
@@ -194,8 +409,7 @@ public class Manager {
 			//Rob's filter
 			if(id.substring(0, 6).equals("RUBT11") && (currPeer.getIp().equals("128.6.5.130") || currPeer.getIp().equals("128.6.5.131"))){
 				//If we already have this peer in our list, don't add it, we only want new peers.
-				if(!Tracker.containsPeer(this.peers, currPeer)){
-					this.peers.add(trackerPeers.get(currPeerIndex));
+				if(this.peers.add(currPeer)){
 					System.out.print("**");
 				}
 			}
@@ -204,23 +418,30 @@ public class Manager {
 	}
 	
 	/**
-	 * Sets up a TCP connection with each valid peer (creates sockets).
+	 * Sets up a TCP connection with each valid peer (hands each one to a PeerEngine, which opens the channel).
 	 */
 	public void connectToPeers() {
 		for(Peer p: peers){
 			if(!p.amConnected()){
-				MessageHandler mH = new MessageHandler(this, p, torrentInfo);
-				Thread messageHandler = new Thread(mH);
-				messageHandler.setName(p.toString());
-				Runtime.getRuntime().addShutdownHook(messageHandler);
-				p.setMessageHandler(messageHandler);
-				p.setmH(mH);
-				messageHandler.start();
-				p.setConnected(true);
+				attachPeer(p);
 			}
 		}	
 	}
 	
+	/**
+	 * Creates a MessageHandler for the peer and registers it with the next PeerEngine. If the peer already has a
+	 * channel (it connected to us), that channel is used; otherwise the engine connects to the peer.
+	 * @param p
+	 */
+	public synchronized void attachPeer(Peer p) {
+		MessageHandler mH = new MessageHandler(this, p, torrentInfo);
+		p.setmH(mH);
+		p.setConnected(true);
+		peers.connected(p);
+		engines[nextEngine].register(mH);
+		nextEngine = (nextEngine + 1) % engines.length;
+	}
+	
 	/**
      * Checks to see if we've successfully received all pieces of the file so we can send Event Complete to Tracker.
      * @return
@@ -236,45 +457,18 @@ public class Manager {
     }
 
 	/**
-	 * Checks the received piece's hashcode against the torrent file's to see if the piece is valid.
-	 * Some of this code is attributable to Rob Moore
-	 * @param block
-	 */
-	public boolean verifyPiece(PieceMessage piece){
-		ByteBuffer all_hashes = (ByteBuffer)torrentInfo.info_map.get(TorrentInfo.KEY_PIECES);
-        byte[] all_hashes_array = all_hashes.array();
-        byte[] temp_buff = new byte[20];
-        int index = piece.index;
-        System.arraycopy(all_hashes_array,index*20,temp_buff,0,20);
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-1");
-            digest.update(piece.block);
-            byte[] info_hash = digest.digest();
-            if (Arrays.equals(temp_buff, info_hash))
-                return true;
-            else
-            {
-                System.out.println("Hash mismatch, retrying piece.");
-                return false;
-            }
-        } catch (NoSuchAlgorithmException e) {
-        	System.err.println("Error verifying the piece.");
-            e.printStackTrace();
-        }
-        return true;
-	}
-	
-	/**
-	 * Saves a piece into our byte[] fileBytes (that will eventually be written to file).
-	 * @param piece
+	 * Records a piece whose blocks have all been written to the file and verified.
+	 * @param pieceIndex
 	 * @throws IOException 
 	 */
-	public void savePiece(PieceMessage piece) throws IOException {
-		myPieces[piece.index] = true;
-		fa.writePiece(piece.index, piece.block);
+	public void savePiece(int pieceIndex) throws IOException {
+		myPieces[pieceIndex] = true;
+		havePieces.set(pieceIndex);
+		availability.pieceCompleted(pieceIndex);
+		resumeData.pieceCompleted();
 		//Tell all connected peers of your new piece.
 		isDownloadComplete();
-		sendHaveMessages(piece.index);
+		sendHaveMessages(pieceIndex);
 	}
 	
 	/**
@@ -283,8 +477,9 @@ public class Manager {
 	 * @throws IOException
 	 */
 	public void sendHaveMessages(int pieceIndex) throws IOException{
+		//a peer whose queue is too full to take the HAVE is disconnected rather than left not knowing
 		for(Peer p: peers){
-				p.messageQueue.add(new HaveMessage(pieceIndex));
+				p.queueMessage(new HaveMessage(pieceIndex));
 		}
 	}
 	
@@ -308,6 +503,7 @@ public class Manager {
 		trackerThread.interrupt();
 		socketListener.disconnect();
 		paThread.interrupt();
+		resumeData.stop();
 		peerDisplay.interrupt();
 		
 		for (Peer p : peers)
@@ -317,8 +513,10 @@ public class Manager {
 
 		}
 		
-		//Sleep long enough for our message handlers to finish up and our file access to close properly
-		Thread.sleep(1000L);
+		//Wait for the engines to close their connections, so nothing more is received and written
+		for (Thread engineThread : engineThreads)
+			engineThread.join(1000L);
+		resumeThread.join();
 		
 		System.out.println("\nStats:");
 		if (trackerStats.getUploaded() == 0)
@@ -333,12 +531,66 @@ public class Manager {
 			trackerStats.setDownloaded(tracker.getDownloaded());
 		System.out.println("Downloaded:\t" + trackerStats.getDownloaded());
 		System.out.println("Left:\t\t" + (torrentInfo.file_length - trackerStats.getDownloaded()));
+		if (fa.getCache() != null)
+			System.out.println("Read cache:\t" + fa.getCache().getHits() + " hits, " + fa.getCache().getMisses() + " misses");
+		//write out what the write cache holds and let the disk threads finish every job already queued; only then
+		//can the download be closed, and the record of what it holds be written
+		if (fa.getWriteCache() != null)
+			fa.getWriteCache().close();
+		disk.shutdown();
+		disk.awaitTermination();
+		System.out.println("Disk I/O:\t" + disk);
 		fa.close();
+		resumeData.save(myPieces, true);
 		trackerStats.close();
 		System.out.println("\nGoodbye!");
 
 	}
 
+	/**
+	 * Changes a rate limit while running.
+	 * @param upload true for the upload limit, false for the download limit.
+	 * @param scope "global", "torrent" or "peer"; a peer limit applies to every peer separately.
+	 * @param rate bytes per second, or 0 for unlimited.
+	 * @throws IllegalArgumentException if the scope isn't one of those.
+	 */
+	public void setRateLimit(boolean upload, String scope, long rate) {
+		if (scope.equals("global")) {
+			(upload ? globalUpload : globalDownload).setRate(rate);
+		} else if (scope.equals("torrent")) {
+			(upload ? uploadLimit : downloadLimit).setRate(rate);
+		} else if (scope.equals("peer")) {
+			if (upload)
+				peerUploadRate = rate;
+			else
+				peerDownloadRate = rate;
+			for (Peer p : peers) {
+				MessageHandler mH = p.getmH();
+				if (mH != null)
+					mH.setRateLimit(upload, rate);
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown scope " + scope + ".");
+		}
+	}
+	
+	/**
+	 * @return every rate limit, for printing.
+	 */
+	public String describeRateLimits() {
+		return "global up " + TokenBucket.describe(globalUpload.getRate()) + ", down " + TokenBucket.describe(globalDownload.getRate())
+				+ "; torrent up " + TokenBucket.describe(uploadLimit.getRate()) + ", down " + TokenBucket.describe(downloadLimit.getRate())
+				+ "; each peer up " + TokenBucket.describe(peerUploadRate) + ", down " + TokenBucket.describe(peerDownloadRate);
+	}
+	
+	public long getPeerUploadRate() {
+		return peerUploadRate;
+	}
+	
+	public long getPeerDownloadRate() {
+		return peerDownloadRate;
+	}
+	
 	/**
 	 * Used by FileAccess
 	 * @return
@@ -354,6 +606,8 @@ public class Manager {
 	 */
 	public void setMyPieces(boolean[] myPieces) {
 		this.myPieces = myPieces;
+		this.havePieces = PieceSet.fromBooleans(myPieces);
+		picker.recount();
 	}
 
 	/**
@@ -371,7 +625,7 @@ public class Manager {
 	
 	
 	public void setTrackerStatsDownloaded() {
-		this.trackerStats.incrementDownloaded(getNumPiecesWeHave() * this.torrentInfo.piece_length);
+		this.trackerStats.incrementDownloaded((long) getNumPiecesWeHave() * this.torrentInfo.piece_length);
 	}
 	
 	public int getNumPiecesWeHave() {
@@ -384,26 +638,6 @@ public class Manager {
 		return numPiecesWeHave;
 	}
 	
-	public int getNumPiecesWeNeed() {
-		int numPiecesWeNeed = 0;
-		for (int i = 0; i < torrentInfo.piece_hashes.length; i++)
-		{
-			if (!myPieces[i] && !piecesInProg[i])
-				numPiecesWeNeed++;
-		}
-		return numPiecesWeNeed;
-	}
-	
-	public ArrayList<Integer> getUnsortedNeededPieces() {
-		ArrayList<Integer> unsortedNeededPieces = new ArrayList<Integer>();
-		for (int i = 0; i < torrentInfo.piece_hashes.length; i++)
-		{
-			if (!myPieces[i]  && !piecesInProg[i])
-				unsortedNeededPieces.add(i);
-		}
-		return unsortedNeededPieces;
-	}
-
 	/**
 	 * Returns the performance analyzer
 	 * @return
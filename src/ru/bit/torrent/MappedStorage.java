@@ -0,0 +1,247 @@
+package ru.bit.torrent;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the download in a file that is memory-mapped a window at a time with FileChannel.map. Reads and writes copy
+ * straight to or from the mapping, so no system call is made once a window is mapped, and threads working on
+ * different regions never wait on each other; the only lock is held just long enough to look a window up.
+ *
+ * At most {@code maxWindows} windows stay mapped. Each window counts the operations using it, and when another one
+ * is needed the least recently used window is unmapped, or, if it's still in use, as soon as the last operation on
+ * it finishes. A mapping is never handed out beyond a single read, write or transfer.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class MappedStorage implements Storage {
+
+	/**
+	 * Unmaps a buffer right away rather than leaving it to the garbage collector (sun.misc.Unsafe.invokeCleaner), or
+	 * null if this JVM doesn't offer it.
+	 */
+	private static final Method INVOKE_CLEANER;
+
+	private static final Object UNSAFE;
+
+	static {
+		Method invokeCleaner = null;
+		Object unsafe = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Exception e) {
+			//older JVM; mappings are released when they're garbage collected
+		}
+		INVOKE_CLEANER = invokeCleaner;
+		UNSAFE = unsafe;
+	}
+
+	/**
+	 * A mapped region of the file.
+	 */
+	private static class Window {
+
+		final long start;
+
+		final MappedByteBuffer buffer;
+
+		/**
+		 * How many operations are using the window. Guarded by the windows map.
+		 */
+		int refs;
+
+		/**
+		 * True once the window has been evicted; it's unmapped when the last operation using it finishes.
+		 */
+		boolean retired;
+
+		Window(long start, MappedByteBuffer buffer) {
+			this.start = start;
+			this.buffer = buffer;
+		}
+	}
+
+	private FileChannel channel;
+
+	/**
+	 * The length of the file, which is fixed once the download has been allocated.
+	 */
+	private final long length;
+
+	private final int windowSize;
+
+	private final int maxWindows;
+
+	/**
+	 * The mapped windows by window number, least recently used first.
+	 */
+	private LinkedHashMap<Long, Window> windows;
+
+	/**
+	 * @param channel the download, already at its full length.
+	 * @param windowSize the size of each mapping.
+	 * @param maxWindows the most windows kept mapped at once.
+	 * @throws IOException
+	 */
+	public MappedStorage(FileChannel channel, int windowSize, int maxWindows) throws IOException {
+		this.channel = channel;
+		this.length = channel.size();
+		this.windowSize = windowSize;
+		this.maxWindows = maxWindows;
+		this.windows = new LinkedHashMap<Long, Window>(16, 0.75f, true);
+	}
+
+	public void read(long position, ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			Window window = acquire(position);
+			try {
+				ByteBuffer src = view(window, position, dst.remaining());
+				position += src.remaining();
+				dst.put(src);
+			} finally {
+				release(window);
+			}
+		}
+	}
+
+	public void write(long position, ByteBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			Window window = acquire(position);
+			try {
+				ByteBuffer dst = view(window, position, src.remaining());
+				position += dst.remaining();
+				ByteBuffer chunk = src.duplicate();
+				chunk.limit(chunk.position() + dst.remaining());
+				dst.put(chunk);
+				src.position(chunk.position());
+			} finally {
+				release(window);
+			}
+		}
+	}
+
+	/**
+	 * Sends from a single window at a time; the caller keeps calling until the region has been sent.
+	 */
+	public long transferTo(long position, int length, WritableByteChannel target) throws IOException {
+		Window window = acquire(position);
+		try {
+			return target.write(view(window, position, length));
+		} finally {
+			release(window);
+		}
+	}
+
+	/**
+	 * Forces the windows still mapped, then the file itself: an evicted window is unmapped without being forced, and
+	 * its dirty pages are only written back by the file's own fsync.
+	 */
+	public void force() throws IOException {
+		ArrayList<Window> mapped;
+		synchronized (windows) {
+			mapped = new ArrayList<Window>(windows.values());
+			for (Window window : mapped)
+				window.refs++;
+		}
+		for (Window window : mapped) {
+			try {
+				window.buffer.force();
+			} finally {
+				release(window);
+			}
+		}
+		channel.force(false);
+	}
+
+	public void close() throws IOException {
+		synchronized (windows) {
+			for (Window window : windows.values()) {
+				window.retired = true;
+				if (window.refs == 0)
+					unmap(window.buffer);
+			}
+			windows.clear();
+		}
+		channel.close();
+	}
+
+	/**
+	 * @return the part of a window from {@code position}, at most {@code max} bytes long.
+	 */
+	private ByteBuffer view(Window window, long position, int max) {
+		ByteBuffer view = window.buffer.duplicate();
+		int offset = (int) (position - window.start);
+		view.position(offset);
+		view.limit(offset + Math.min(max, view.capacity() - offset));
+		return view;
+	}
+
+	/**
+	 * Finds the window holding {@code position}, mapping it if need be, and marks it in use.
+	 */
+	private Window acquire(long position) throws IOException {
+		if (position < 0 || position >= length)
+			throw new EOFException("Position " + position + " is outside of the file (" + length + " bytes).");
+		long number = position / windowSize;
+		synchronized (windows) {
+			Window window = windows.get(number);
+			if (window == null) {
+				long start = number * windowSize;
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, start,
+						Math.min(windowSize, length - start));
+				window = new Window(start, buffer);
+				windows.put(number, window);
+				evict();
+			}
+			window.refs++;
+			return window;
+		}
+	}
+
+	private void release(Window window) {
+		synchronized (windows) {
+			if (--window.refs == 0 && window.retired)
+				unmap(window.buffer);
+		}
+	}
+
+	/**
+	 * Drops the least recently used windows until no more than maxWindows are mapped. Must hold the windows lock.
+	 */
+	private void evict() {
+		Iterator<Window> eldest = windows.values().iterator();
+		while (windows.size() > maxWindows && eldest.hasNext()) {
+			Window window = eldest.next();
+			eldest.remove();
+			window.retired = true;
+			if (window.refs == 0)
+				unmap(window.buffer);
+		}
+	}
+
+	private static void unmap(MappedByteBuffer buffer) {
+		if (INVOKE_CLEANER == null)
+			return;
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+		} catch (Exception e) {
+			//left to the garbage collector
+		}
+	}
+}
@@ -1,13 +1,11 @@
 package ru.bit.torrent;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * Message class represents a Peer-to-Peer message in the protocol (Unchoke, Interested, Piece, etc.). 
- * Has static methods to encode and decode to/from Input/Output streams. Handles all p2p communication.
+ * Messages received from a peer are decoded by its MessageHandler's MessageDecoder. Handles all p2p communication.
  * 
  *
  * @author Dylan Murray
@@ -42,140 +40,111 @@ public class Message {
 	
 	public byte id;
 	
+	/**
+	 * QUEUED until a message in a peer's MessageQueue is either taken by the sender or cancelled, whichever happens
+	 * first.
+	 */
+	private volatile int state;
+	
+	private static final int QUEUED = 0;
+	
+	private static final int CLAIMED = 1;
+	
+	private static final int CANCELLED = 2;
+	
+	private static final AtomicIntegerFieldUpdater<Message> STATE = AtomicIntegerFieldUpdater.newUpdater(Message.class, "state");
+	
 	public Message(byte id) {
 		this.id = id;
 	}
 	
 	/**
-	 * Sends a handshake out and expects a handshake back. If it does not receive a handshake back or if the
-	 * peer ID/ infoHash is not as expected, it will return false.
-	 * 
-	 * @param in
-	 * @param out
-	 * @param handshake
-	 * @param infoHash
+	 * Called by the MessageSender as it takes the message off the queue.
+	 * @return false if the message was cancelled first and must not be sent.
+	 */
+	boolean claim() {
+		return STATE.compareAndSet(this, QUEUED, CLAIMED);
+	}
+	
+	/**
+	 * Cancels a queued message.
+	 * @return false if the MessageSender has already taken it.
+	 */
+	boolean cancel() {
+		return STATE.compareAndSet(this, QUEUED, CANCELLED);
+	}
+	
+	/**
+	 * Returns true if this is a message of the given type for the given block. Only REQUEST and PIECE messages are
+	 * ever for a block.
+	 * @param id
+	 * @param index
+	 * @param begin
 	 * @return
 	 */
-//	public static boolean doHandshake(DataInputStream in, DataOutputStream out, byte[] handshake, byte[] infoHash) throws IOException{
-//		sendHandshake(out, handshake);
-//		receiveHandshake(in, infoHash);
-//		return true;
-//	}
-
-	public static void sendHandshake(DataOutputStream out, byte[] handshake) throws IOException{
-		out.write(handshake);
-		out.flush();
-
+	boolean isBlock(byte id, int index, int begin) {
+		return false;
 	}
-
-	public static boolean receiveHandshake(DataInputStream in, byte[] infoHash) throws IOException {
-		//Verifies the infohash of responded handshake.
-				byte[] input = new byte[68];
-		        in.readFully(input);	        
-				for (int i = 28; i < 48; i++)
-
-				{
-					if (input[i] != infoHash[i-28])
-
-					{
-						return false;
-
-
-					}
-				}
-				return true;
+	
+	/**
+	 * @return the length of the block a PIECE message carries, or 0 for any other message.
+	 */
+	public int blockLength() {
+		return 0;
 	}
 	
 	/**
-	 * Method used to decode incoming message from peer. Returns a Message object with all relevant information.
+	 * Verifies the infohash of a handshake received from a peer. Consumes the 68 bytes of the handshake from the
+	 * buffer.
 	 * 
 	 * @param in
-	 * @return
-	 * @throws IOException 
+	 * @param infoHash
+	 * @return true if the peer's info hash matches ours.
 	 */
-	public static Message decode(DataInputStream in) {
-		//declare local variables
-		int index;
-		int begin;
-		int length;
-		byte[] bitfield;
-		byte[] block;
-		
-		int msgLength;
-		try {
-			msgLength = in.readInt();
-			
-			
-			//Check to see if it's keep alive
-			if(msgLength == 0){
-				//System.out.println("Keep Alive Message received.");
-				return new Message(Message.KEEPALIVE);
+	public static boolean receiveHandshake(ByteBuffer in, byte[] infoHash) {
+		byte[] input = new byte[68];
+		in.get(input);
+		for (int i = 28; i < 48; i++)
+		{
+			if (input[i] != infoHash[i-28])
+			{
+				return false;
 			}
-			
-			//We checked for Keep Alive, so the next byte will be the id. Find out what message we're dealing with.
-			switch(in.readByte()){
-			case CHOKE:
-				return new Message(CHOKE);
-			case UNCHOKE:
-				return new Message(UNCHOKE);
-			case INTERESTED:
-				return new Message(INTERESTED);
-			case UNINTERESTED:
-				return new Message(UNINTERESTED);
-			case HAVE:
-				return new HaveMessage(in.readInt());
-			case BITFIELD:
-				bitfield = new byte[msgLength - 1]; //full message length - the one byte id.
-				in.readFully(bitfield);
-				return new BitfieldMessage(bitfield);
-			case REQUEST:
-				index = in.readInt();
-				begin = in.readInt();
-				length = in.readInt();
-				return new RequestMessage(index, begin, length);
-			case PIECE:
-				index = in.readInt();
-				begin = in.readInt();
-				block = new byte[msgLength - 9];
-				in.readFully(block);
-				return new PieceMessage(index, begin, block);
-			case CANCEL:
-				//TODO: implement a cancel message
-				break;
-			case PORT:
-				//TODO: implement a port message
-				break;
-			default:
-				System.out.println("Unrecognized message type.");
-			}
-		} catch (IOException e) {
-//			System.out.println("Message threw an IOException");
 		}
-//		System.out.println("Message wasn't read, returning null");
-		return null;
+		return true;
 	}
 	
 	/**
-	 * Takes a message passed to it by the client, encodes it, and sents it off to the peer.
-	 * @param out
-	 * @param message
-	 * @throws IOException 
+	 * Generates the message in byte array format.
+	 * @return
 	 */
-	public static void encode(DataOutputStream out, Message message) throws IOException{
-		byte[] toSend = message.generateByteArray();
-		out.write(toSend);
-		out.flush();
+	public byte[] generateByteArray(){
+		ByteBuffer bb = ByteBuffer.allocate(encodedLength());
+		encode(bb);
+		return bb.array();
 	}
 	
 	/**
-	 * Generates the generic message in byte array format. (ie Choke, Unchoke, Interested, Not interested. Special messages will override).
+	 * The number of bytes the message takes on the wire, length prefix included. (ie Choke, Unchoke, Interested, Not
+	 * interested. Special messages will override).
 	 * @return
 	 */
-	public byte[] generateByteArray(){
-		ByteBuffer bb = ByteBuffer.allocate(5);
-		bb.putInt(1);
-		bb.put(this.id);
-		return bb.array();
+	public int encodedLength(){
+		return (this.id == KEEPALIVE) ? 4 : 5;
+	}
+	
+	/**
+	 * Writes the message into a buffer, which must have at least encodedLength() bytes remaining. Lets the
+	 * MessageSender pack many messages into one buffer without allocating for each. Special messages will override.
+	 * @param out
+	 */
+	public void encode(ByteBuffer out){
+		if (this.id == KEEPALIVE) {
+			out.putInt(0);
+			return;
+		}
+		out.putInt(1);
+		out.put(this.id);
 	}
 	
 	public String toString(){
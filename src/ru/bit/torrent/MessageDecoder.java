@@ -0,0 +1,119 @@
+package ru.bit.torrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Frames and decodes the messages a peer sends us out of its MessageHandler's read buffer without allocating for
+ * each one. Messages without a payload are shared constants, and every decoder owns one reusable HAVE, REQUEST,
+ * PIECE and CANCEL message that is overwritten by each decode. A PIECE message's block is a view of the read buffer
+ * rather than a copy; it is copied once, straight into the piece being assembled.
+ *
+ * A decoded message is therefore only valid until the next call to decode() or until the read buffer is compacted,
+ * and must never be queued to a peer or kept.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class MessageDecoder {
+
+	private static final Message CHOKE = new Message(Message.CHOKE);
+
+	private static final Message UNCHOKE = new Message(Message.UNCHOKE);
+
+	private static final Message INTERESTED = new Message(Message.INTERESTED);
+
+	private static final Message UNINTERESTED = new Message(Message.UNINTERESTED);
+
+	private static final Message KEEPALIVE = new Message(Message.KEEPALIVE);
+
+	private HaveMessage have = new HaveMessage(0);
+
+	private RequestMessage request = new RequestMessage(0, 0, 0);
+
+	private PieceMessage piece = new PieceMessage(0, 0, (byte[]) null);
+
+	private CancelMessage cancel = new CancelMessage(0, 0, 0);
+
+	/**
+	 * Decodes the next message out of a buffer of received bytes, or returns null if the buffer does not yet hold a
+	 * complete message, in which case the buffer's position is left untouched.
+	 *
+	 * @param in the read buffer, flipped for reading.
+	 * @return
+	 * @throws IOException if the peer sent a length no message could have.
+	 */
+	public Message decode(ByteBuffer in) throws IOException {
+		if (in.remaining() < 4)
+			return null;
+		int msgLength = in.getInt(in.position());
+		if (msgLength < 0 || msgLength > in.capacity() - 4)
+			throw new IOException("Message length " + msgLength + " is larger than we can accept.");
+		if (in.remaining() < 4 + msgLength)
+			return null;
+		in.getInt();
+
+		//Check to see if it's keep alive
+		if (msgLength == 0)
+			return KEEPALIVE;
+
+		//We checked for Keep Alive, so the next byte will be the id. Find out what message we're dealing with.
+		int start = in.position();
+		byte id = in.get();
+		switch (id) {
+		case Message.CHOKE:
+			return CHOKE;
+		case Message.UNCHOKE:
+			return UNCHOKE;
+		case Message.INTERESTED:
+			return INTERESTED;
+		case Message.UNINTERESTED:
+			return UNINTERESTED;
+		case Message.HAVE:
+			checkLength(id, msgLength, 5);
+			have.pieceIndex = in.getInt();
+			return have;
+		case Message.BITFIELD:
+			//sent once per connection, and kept by the peer, so it is copied.
+			byte[] bitfield = new byte[msgLength - 1];
+			in.get(bitfield);
+			return new BitfieldMessage(bitfield);
+		case Message.REQUEST:
+			checkLength(id, msgLength, 13);
+			request.index = in.getInt();
+			request.begin = in.getInt();
+			request.length = in.getInt();
+			return request;
+		case Message.PIECE:
+			if (msgLength < 9)
+				throw new IOException("Piece message of length " + msgLength + " is too short.");
+			piece.index = in.getInt();
+			piece.begin = in.getInt();
+			ByteBuffer view = in.slice();
+			view.limit(msgLength - 9);
+			piece.setBlockView(view);
+			in.position(start + msgLength);
+			return piece;
+		case Message.CANCEL:
+			checkLength(id, msgLength, 13);
+			cancel.index = in.getInt();
+			cancel.begin = in.getInt();
+			cancel.length = in.getInt();
+			return cancel;
+		default:
+			//PORT or a message we don't recognize; skip the payload so the next message can be read.
+			in.position(start + msgLength);
+			return new Message(id);
+		}
+	}
+
+	/**
+	 * Makes sure a fixed length message is as long as it should be, so we never read into the next message.
+	 */
+	private static void checkLength(byte id, int msgLength, int expected) throws IOException {
+		if (msgLength != expected)
+			throw new IOException("Message " + id + " has length " + msgLength + ", expected " + expected + ".");
+	}
+}
@@ -1,24 +1,27 @@
 package ru.bit.torrent;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
-import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class is used to facilitate communication between a "Manager" and each one of its' peers; that is, for every Peer that
  * Manager wants to connect to, a new MessageHandler is created. MessageHandler is responsible for requesting and sending
- * all the various methods and pieces of the file.
+ * all the various methods and pieces of the file. It does not own a thread; the PeerEngine its peer is registered with 
+ * calls it whenever the peer's channel can be connected, read or written.
  * 
  * @author Dylan Murray
  * @author Jonas Schreiber
  * @author Charles Zuppe
  *
  */
-public class MessageHandler implements Runnable{
+public class MessageHandler {
 	
 	/**
 	 * The Manager to which this MessageHandler is communicating with.
@@ -31,24 +34,110 @@ public class MessageHandler implements Runnable{
 	private Peer peer;
 	
 	/**
-	 * The output stream we'll use to interact with a peer.
+	 * Idle time, in milliseconds, after which we give up on a peer that has sent us nothing.
 	 */
-	private DataOutputStream out;
+	private static final long PEER_TIMEOUT = 120000L;
 	
 	/**
-	 * The input stream we'll use to interact with a peer.
+	 * The largest block we will request or serve.
 	 */
-	private DataInputStream in;
+	private static final int MAX_BLOCK_SIZE = 32768;
 	
 	/**
-	 * The TorrenInfo object corresponding to the torrent we're dealing with.
+	 * The engine whose selector our peer's channel is registered with.
 	 */
-	private TorrentInfo torrentInfo;
+	private PeerEngine engine;
+	
+	/**
+	 * The channel we'll use to interact with a peer.
+	 */
+	private SocketChannel channel;
+	
+	/**
+	 * Our peer's channel's registration with the engine's selector.
+	 */
+	private SelectionKey key;
+	
+	/**
+	 * Bytes received from the peer that haven't been decoded into messages yet. A direct buffer borrowed from the
+	 * Manager's pool for as long as the connection is open.
+	 */
+	private ByteBuffer readBuffer;
+	
+	/**
+	 * Decodes the messages in readBuffer into reusable message objects.
+	 */
+	private MessageDecoder decoder;
+	
+	/**
+	 * Set while messages in readBuffer are being processed, so closing the connection meanwhile leaves the buffer
+	 * alone until processing is done.
+	 */
+	private boolean reading;
+	
+	/**
+	 * The last time we received anything from the peer.
+	 */
+	private long lastReceived;
+	
+	/**
+	 * Set once the connection has been closed, so we only clean up once.
+	 */
+	private boolean closed;
+	
+	/**
+	 * Set from any thread when the connection has to be closed; the engine closes it on its own thread.
+	 */
+	private volatile boolean closeRequested;
+	
+	/**
+	 * Set once the peer has sent any message but a keep-alive. A BITFIELD is only allowed before that, so a peer's
+	 * pieces are only ever counted once towards their availability.
+	 */
+	private boolean receivedMessage;
+	
+	/**
+	 * Set while we've stopped reading from the peer because too many messages are waiting to be sent to it.
+	 */
+	private boolean readPaused;
+	
+	/**
+	 * Requested blocks being read on a DiskIO thread, which will be queued to the peer once they've been read. They
+	 * count towards MESSAGE_QUEUE_HIGH_WATER, so reading stops before their answers can overflow the queue.
+	 */
+	private AtomicInteger blocksReading = new AtomicInteger(0);
 	
 	/**
-	 * The subdivisions of pieces. 
+	 * The same blocks by blockKey(), each mapped to true once the peer has cancelled it, so it's dropped rather than
+	 * sent once it's been read.
 	 */
-	private ArrayList<PieceMessage> partialPieces;
+	private ConcurrentHashMap<Long, Boolean> pendingReads = new ConcurrentHashMap<Long, Boolean>();
+	
+	/**
+	 * This peer's upload and download limits, under the torrent's (see TokenBucket).
+	 */
+	private TokenBucket uploadLimit;
+	
+	private TokenBucket downloadLimit;
+	
+	/**
+	 * Set while we've stopped reading from or writing to the peer because its download or upload limit has run out,
+	 * until the engine retries us.
+	 */
+	private boolean readThrottled;
+	
+	private boolean writeThrottled;
+	
+	/**
+	 * Set while our engine has been asked to turn on OP_WRITE and hasn't done so yet, so a burst of queued messages
+	 * only wakes the engine once.
+	 */
+	private AtomicBoolean writeScheduled = new AtomicBoolean(false);
+	
+	/**
+	 * The TorrenInfo object corresponding to the torrent we're dealing with.
+	 */
+	private TorrentInfo torrentInfo;
 	
 	/**
 	 * Subdivision size
@@ -56,10 +145,22 @@ public class MessageHandler implements Runnable{
 	private int subdivisionSize;
 	
 	/**
-	 * Current Piece (so that the decode on the last piece doesn't think it is still standard pieceLength), is set to -1
-	 * when we are not currently in the middle of a piece reception.
+	 * How many block requests we keep in flight to this peer at once. Sized from the peer's measured
+	 * bandwidth-delay product.
+	 */
+	private int pipelineDepth;
+	
+	/**
+	 * Measures the round trip and delivery rate of the blocks we request from this peer.
 	 */
-	private int currentPieceIndex;
+	private BandwidthEstimator bandwidthEstimator;
+	
+	/**
+	 * Requests for blocks that we've sent and haven't received a PieceMessage for yet. The blocks may belong to any
+	 * of the pieces the PiecePicker has in progress. Guarded by its own monitor, since during endgame other peers'
+	 * handlers cancel blocks in it.
+	 */
+	private ArrayList<RequestMessage> outstandingRequests;
 	
 	/**
 	 * Used in calculating the peer's download speed
@@ -84,100 +185,305 @@ public class MessageHandler implements Runnable{
 		this.manager = manager;
 		this.peer = peer;
 		this.torrentInfo = torrentInfo;
-		this.partialPieces = new ArrayList<PieceMessage>();
-		this.subdivisionSize = 16384;
-		this.currentPieceIndex = -1;
+		this.subdivisionSize = PiecePicker.BLOCK_SIZE;
+		this.pipelineDepth = Manager.PIPELINE_DEPTH;
+		this.bandwidthEstimator = new BandwidthEstimator();
+		this.uploadLimit = new TokenBucket(manager.uploadLimit, manager.getPeerUploadRate());
+		this.downloadLimit = new TokenBucket(manager.downloadLimit, manager.getPeerDownloadRate());
+		peer.setRequestQueueDepth(pipelineDepth);
+		this.outstandingRequests = new ArrayList<RequestMessage>();
+		this.readBuffer = manager.readBuffers.acquire();
+		this.decoder = new MessageDecoder();
+		this.lastReceived = System.currentTimeMillis();
+		this.closed = false;
+	}
+	
+	/**
+	 * @param torrentInfo
+	 * @return a read buffer size big enough for the largest block plus its header, or our bitfield, whichever is
+	 * larger.
+	 */
+	public static int readBufferSize(TorrentInfo torrentInfo) {
+		int bitfieldLength = (torrentInfo.piece_hashes.length + 7) / 8;
+		return Math.max(13 + MAX_BLOCK_SIZE, 5 + bitfieldLength);
 	}
 	
 	/**
-	 * Manages all p2p I/O. (ie sends/ verifies handshake and sends/receives messages)
+	 * Registers our peer's channel with the engine's selector, starting a connection to the peer if we don't already
+	 * have one. Called on the engine thread.
 	 * 
-	 * @param p
-	 * @throws Exception 
+	 * @param engine
+	 * @param selector
+	 * @throws IOException if the connection could not be started.
 	 */
-	private void managePeerConnection() throws Exception{	        
-		//Send/ receive handshake
-        if(!manageHandshake()){
-        	//handshake failed - quit connection to this peer.
-        	return;
-        }
-        
-        //After handshake, instantiates a message sender;
-        this.messageSender = new MessageSender(peer, out);
-        Thread thread = new Thread(this.messageSender);
-        thread.start();
-        
-        //Keep connection with peer up sending/receiving messages until the user initiates the shutdown sequence
-		while(!manager.stopThreads){
-        	try{
-        		if(!peer.amConnected()){
-        			disposeCurrPiece();
-        			closeConnections();
-        			return;
-        		}
-        		processMessage(Message.decode(in), peer);
-        		Thread.sleep(10);
-        	} catch (EOFException eofe){
-        		System.err.println("EOFException from peer " + this.peer + "... disconnecting from peer.");
-        		disposeCurrPiece();
-        		closeConnections();
-        		return;
-        	}
-        }
-        
-        //close streams/ Socket
-        System.out.println("Closing streams and socket for Peer: " + peer.toString());
-        closeConnections();
-    }
-	
-	/**
-	 * Closes input/output streams and closes the socket.
-	 * @throws IOException 
+	public void attach(PeerEngine engine, Selector selector) throws IOException {
+		this.engine = engine;
+		if (peer.getChannel() == null) {
+			peer.connect();
+		} else {
+			peer.getChannel().configureBlocking(false);
+		}
+		this.channel = peer.getChannel();
+		//the MessageSender batches messages itself, so don't let Nagle hold back the tail of a batch or a block
+		channel.socket().setTcpNoDelay(true);
+		if (channel.isConnectionPending()) {
+			key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+		} else {
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+			onConnected();
+		}
+	}
+	
+	/**
+	 * Finishes a pending connection once the channel becomes connectable.
+	 * @throws IOException
 	 */
-	private void closeConnections() throws IOException {
-		if(!peer.amChoking()){
-			manager.numUnchoked--;
+	public void onConnectable() throws IOException {
+		try {
+			if (!channel.finishConnect())
+				return;
+		} catch (IOException e) {
+			System.err.println("Unable to establish TCP connection to peer: " + peer);
+			closeConnections();
+			return;
 		}
-		messageSender.quit();
-		//Sleep for a second while message Sender finishes sending whatever it's in the middle of.
+		key.interestOps(SelectionKey.OP_READ);
+		onConnected();
+	}
+	
+	/**
+	 * Once we're connected, instantiates a message sender that starts with our handshake and bitfield.
+	 */
+	private void onConnected() {
+		System.out.println("Sending handshake and Bitfield Message to peer: " + peer + "...");
+		byte[] handshake = generateHandshake();
+		byte[] bitfield = new BitfieldMessage(manager.myPieces).generateByteArray();
+		byte[] preamble = new byte[handshake.length + bitfield.length];
+		System.arraycopy(handshake, 0, preamble, 0, handshake.length);
+		System.arraycopy(bitfield, 0, preamble, handshake.length, bitfield.length);
+		this.messageSender = new MessageSender(peer, preamble, uploadLimit);
+		this.lastReceived = System.currentTimeMillis();
+		enableWrite();
+	}
+	
+	/**
+	 * Reads whatever the peer has sent us, verifies its handshake if we haven't received it yet, and processes every
+	 * complete message. Reading only goes ahead while the download limit has tokens for a whole block, and reads no
+	 * more than it has tokens for; otherwise we stop reading until the engine retries us.
+	 * @throws Exception
+	 */
+	public void onReadable() throws Exception {
+		long allowed = downloadLimit.available();
+		if (allowed < PiecePicker.BLOCK_SIZE) {
+			readThrottled = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			engine.throttle(this);
+			return;
+		}
+		int limit = readBuffer.limit();
+		if (allowed < readBuffer.remaining())
+			readBuffer.limit(readBuffer.position() + (int) allowed);
+		int read;
 		try {
-			Thread.sleep(1000);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			read = channel.read(readBuffer);
+		} finally {
+			readBuffer.limit(limit);
 		}
-		in.close();
-		out.close();
-		peer.disconnect();
-		manager.peers.remove(peer);
+		if (read == -1) {
+			System.err.println("EOFException from peer " + this.peer + "... disconnecting from peer.");
+			closeConnections();
+			return;
+		}
+		downloadLimit.take(read);
+		this.lastReceived = System.currentTimeMillis();
+		processReadBuffer();
 	}
-
+	
 	/**
-	 * Performs a handshake, returns false if unsuccessful.
-	 * @return
-	 * @throws IOException 
+	 * Verifies the peer's handshake if we haven't received it yet, then processes every complete message in the
+	 * read buffer. If the peer's outgoing queue fills up, stops reading until it has been written out, so a peer
+	 * asking for blocks faster than it takes them is pushed back through TCP rather than piling up messages here.
+	 * Likewise if the write cache fills up, so peers can't send blocks faster than the disk takes them.
+	 * @throws Exception
 	 */
-	private boolean manageHandshake() throws IOException{
+	private void processReadBuffer() throws Exception {
+		readBuffer.flip();
+		reading = true;
 		try {
-			System.out.println("Sending handshake to peer: " + peer + "...");
-			Message.sendHandshake(out, generateHandshake());
-			if(!peer.receivedHandshake){
+			if (!peer.receivedHandshake) {
+				if (readBuffer.remaining() < 68)
+					return;
 				System.out.println("Receiving handshake from peer: " + peer);
-				Message.receiveHandshake(in, this.torrentInfo.info_hash.array());
+				if (!Message.receiveHandshake(readBuffer, this.torrentInfo.info_hash.array())) {
+					System.err.println("Handshake to peer: " + peer.toString() + " unsuccessful. Info hashes did not match.");
+					closeConnections();
+					return;
+				}
 				peer.receivedHandshake = true;
+				System.out.println("Handshake success! -- " + peer);
+			}
+			Message message;
+			while (!closed && !manager.stopThreads) {
+				if (peer.messageQueue.size() + blocksReading.get() >= Manager.MESSAGE_QUEUE_HIGH_WATER) {
+					readPaused = true;
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+					break;
+				}
+				WriteCache writeCache = manager.fa.getWriteCache();
+				if (writeCache != null && writeCache.isFull()) {
+					readPaused = true;
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+					writeCache.wakeWhenRoom(this);
+					break;
+				}
+				if ((message = decoder.decode(readBuffer)) == null)
+					break;
+				processMessage(message, peer);
+			}
+		} finally {
+			reading = false;
+			if (closed)
+				releaseReadBuffer();
+			else
+				readBuffer.compact();
+		}
+	}
+	
+	/**
+	 * Writes queued messages until the channel fills up, then stops asking for OP_WRITE once the queue is empty.
+	 * @throws IOException
+	 */
+	public void onWritable() throws Exception {
+		try {
+			if (messageSender.write(channel)) {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			} else if (messageSender.isThrottled()) {
+				writeThrottled = true;
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				engine.throttle(this);
 			}
-//			if(!Message.doHandshake(in, out, generateHandshake(), this.torrentInfo.info_hash.array())){
-//				//TODO: Handle a bad handshake/ unresponsive peer. Currently just quits program.
-//				System.err.println("Handshake to peer: " + peer.toString() + " unsuccessful. Info hashes did not match.");
-//				return false;
-//			}
 		} catch (IOException e) {
-			System.err.println("Handshake to peer: " + peer.toString() + " failed on IOException.");
-			return false;
+			System.err.println("The peer has disconnected from us!");
+			closeConnections();
+			return;
+		}
+		WriteCache writeCache = manager.fa.getWriteCache();
+		if (readPaused && peer.messageQueue.size() + blocksReading.get() < Manager.MESSAGE_QUEUE_HIGH_WATER / 2
+				&& (writeCache == null || writeCache.hasRoom())) {
+			readPaused = false;
+			this.lastReceived = System.currentTimeMillis();
+			if (!readThrottled)
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			//messages may already be waiting in the buffer, and the peer may have nothing more to send
+			processReadBuffer();
+		}
+	}
+	
+	/**
+	 * Called by the engine every so often while we're throttled, to start reading or writing again once there are
+	 * tokens for it. If there still aren't, onReadable() or onWritable() throttles us again.
+	 * @return true once we're no longer throttled.
+	 */
+	public boolean retryThrottled() {
+		if (closed || !key.isValid())
+			return true;
+		if (writeThrottled && uploadLimit.available() >= PiecePicker.BLOCK_SIZE) {
+			writeThrottled = false;
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
 		}
-        System.out.println("Handshake success! -- " + peer);
-        System.out.println("Sending Bitfield Message to " + peer);
-        sendBitfield();
-        return true;
+		if (readThrottled && downloadLimit.available() >= PiecePicker.BLOCK_SIZE) {
+			readThrottled = false;
+			this.lastReceived = System.currentTimeMillis();
+			if (!readPaused)
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+		return !readThrottled && !writeThrottled;
+	}
+	
+	/**
+	 * Changes this peer's own upload or download limit.
+	 * @param upload
+	 * @param rate bytes per second, or 0 for unlimited.
+	 */
+	public void setRateLimit(boolean upload, long rate) {
+		(upload ? uploadLimit : downloadLimit).setRate(rate);
+	}
+	
+	/**
+	 * Called on the engine thread when there are messages waiting to be written.
+	 */
+	public void enableWrite() {
+		writeScheduled.set(false);
+		if (closeRequested) {
+			closeConnections();
+			return;
+		}
+		if (key != null && key.isValid() && messageSender != null && !channel.isConnectionPending())
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+	
+	/**
+	 * Lets our engine know that a message has been queued. May be called from any thread.
+	 */
+	public void wakeWriter() {
+		if (engine != null && writeScheduled.compareAndSet(false, true))
+			engine.requestWrite(this);
+	}
+	
+	/**
+	 * Asks our engine to close the connection. May be called from any thread.
+	 */
+	public void requestClose() {
+		closeRequested = true;
+		wakeWriter();
+	}
+	
+	/**
+	 * Periodic housekeeping called by the engine: publishes speeds, picks up blocks other peers have given back if 
+	 * we're idle, and drops peers that have gone silent.
+	 * @param now
+	 * @throws IOException
+	 */
+	public void tick(long now) throws IOException {
+		if (messageSender != null)
+			messageSender.publishSpeeds();
+		if (messageSender != null && peer.amInterested() && outstandingRequests.isEmpty())
+			fillPipeline();
+		if (now - lastReceived > PEER_TIMEOUT) {
+			System.err.println("Socket for peer: " + this.peer + " timed out. Disconnecting from peer.");
+			closeConnections();
+		}
+	}
+	
+	/**
+	 * Closes the channel and removes the peer from the manager. Safe to call more than once.
+	 */
+	public void closeConnections() {
+		if (closed)
+			return;
+		closed = true;
+		if(!peer.amChoking()){
+			manager.numUnchoked--;
+		}
+		releaseOutstandingRequests();
+		if (key != null)
+			key.cancel();
+		if (!reading)
+			releaseReadBuffer();
+		peer.disconnect();
+		manager.peers.remove(peer);
+	}
+	
+	/**
+	 * Gives the read buffer back to the pool once the connection is closed.
+	 */
+	private void releaseReadBuffer() {
+		manager.readBuffers.release(readBuffer);
+		readBuffer = null;
+	}
+	
+	public Peer getPeer() {
+		return peer;
 	}
 	
 	/**
@@ -215,23 +521,6 @@ public class MessageHandler implements Runnable{
 		return handshake;
 	}
 	
-	/**
-	 * Calculates the length of a piece to request (it'll typically just be the regular piece length, but if it's the last
-	 * piece it's going to be a bit smaller.
-	 * 
-	 * @param pieceIndex
-	 * @return
-	 */
-	private int calcPieceLength(int pieceIndex){
-		int pieceLength;
-		if(pieceIndex == torrentInfo.piece_hashes.length-1){
-			pieceLength = torrentInfo.file_length % torrentInfo.piece_length;
-		} else {
-			pieceLength = torrentInfo.piece_length;
-		}
-		return pieceLength;
-	}
-	
 	/**
 	 * This method takes a message sent by a peer, and reacts to it depending on message type.
 	 * @param message The message received by peer.
@@ -244,20 +533,21 @@ public class MessageHandler implements Runnable{
 			//System.out.println("Received " + message.toString() + " from Peer: " + peer);
 		if (manager.stopThreads)
 			return;
+		boolean firstMessage = !receivedMessage;
+		if (message.id != Message.KEEPALIVE)
+			receivedMessage = true;
 		switch(message.id){
 		case Message.CHOKE:											//Choke Message, let our peer object know that it is now choking us.
 			peer.setPeerChoking(true);
 			peer.setInterested(false);
 			System.out.println(peer + " is now choking us.");
-			//We've been disconnected before we can get the full piece; throw out the partial pieces we got.
-			disposeCurrPiece();
+			//The peer has discarded our outstanding requests; put those blocks back up for other peers.
+			releaseOutstandingRequests();
 			break;
 		case Message.UNCHOKE: 										//Unchoke Message, let our peer object know that it is not choking us.
 			peer.setPeerChoking(false);
 			System.out.println(peer + " is no longer choking us.");
-			if(currentPieceIndex == -1){
-				checkPeersPieces();
-			}
+			checkPeersPieces();
 			break;
 		case Message.INTERESTED: 									//Interested Message, let our peer object know that it is interested in us.
 			peer.setPeerInterested(true);
@@ -265,9 +555,10 @@ public class MessageHandler implements Runnable{
 			//if we're choking the peer, unchoke
 			if(peer.amChoking() && manager.numUnchoked < 6){
 				resetUploadStats();
-				addToQueue(new Message(Message.UNCHOKE));
-				peer.setChoking(false);
-				manager.numUnchoked++;
+				if (addToQueue(new Message(Message.UNCHOKE))) {
+					peer.setChoking(false);
+					manager.numUnchoked++;
+				}
 			}
 			break;
 		case Message.UNINTERESTED: 									//Uninterested Message, let our peer object know that it is uninterested in us.
@@ -275,17 +566,37 @@ public class MessageHandler implements Runnable{
 			System.out.println(peer + " is no longer interested");
 			break;
 		case Message.HAVE:
-			peer.addAvailablePiece(((HaveMessage)message).pieceIndex);
+			//an index past the end would otherwise be counted as a piece the peer can give us
+			if (!peer.availablePieces.inRange(((HaveMessage)message).pieceIndex)) {
+				System.err.println(peer + " has a piece(" + ((HaveMessage)message).pieceIndex + ") that isn't in the torrent. Disconnecting from peer.");
+				closeConnections();
+				break;
+			}
+			if (peer.addAvailablePiece(((HaveMessage)message).pieceIndex))
+				manager.availability.peerHasPiece(((HaveMessage)message).pieceIndex);
 			System.out.println(peer + " has piece " + ((HaveMessage)message).pieceIndex  + ", adding to available pieces");
-			if( currentPieceIndex == -1){
+			if(outstandingRequests.isEmpty()){
 				checkPeersPieces();
+			} else {
+				fillPipeline();
 			}
 			break;
 		case Message.BITFIELD:
 			BitfieldMessage bitfieldMessage = (BitfieldMessage)message;
-			peer.setBitfield(bitfieldMessage.bitfield); 			//Sets the peer's bitfield as shown in message.
-			//If we aren't already in the middle of a piece, this should never happen since bitfield is only sent after handshake, but just to be safe
-			if( currentPieceIndex == -1){
+			if (!firstMessage) {
+				System.err.println(peer + " sent a bitfield after other messages. Disconnecting from peer.");
+				closeConnections();
+				break;
+			}
+			//Sets the peer's bitfield as shown in message.
+			if (!peer.setBitfield(bitfieldMessage.bitfield)) {
+				System.err.println(peer + " sent a bitfield of " + bitfieldMessage.bitfield.length + " bytes for " + torrentInfo.piece_hashes.length + " pieces. Disconnecting from peer.");
+				closeConnections();
+				break;
+			}
+			manager.availability.addPeer(peer.availablePieces);
+			//If we don't already have requests out, this should never happen since bitfield is only sent after handshake, but just to be safe
+			if(outstandingRequests.isEmpty()){
 				checkPeersPieces();
 			}
 			break;
@@ -297,25 +608,45 @@ public class MessageHandler implements Runnable{
 			}
 			break; 
 		case Message.PIECE:
-			int blockLength = ((PieceMessage)message).block.length;
-			this.currentPieceIndex = ((PieceMessage)message).index;
+			PieceMessage pieceMessage = (PieceMessage)message;
+			RequestMessage answered = removeOutstandingRequest(pieceMessage.index, pieceMessage.begin);
+			if (answered == null){
+				//a block we never asked for, or one we stopped waiting for when we were choked.
+				break;
+			}
+			int blockLength = pieceMessage.blockLength();
+			bandwidthEstimator.blockReceived(answered.queuedAt, System.currentTimeMillis(), blockLength);
+			pipelineDepth = bandwidthEstimator.getQueueDepth(subdivisionSize, Manager.PIPELINE_DEPTH);
+			peer.setRequestQueueDepth(pipelineDepth);
 			this.messageSender.addTotalBytesFromPeer(blockLength);
-			partialPieces.add((PieceMessage)message);
 			manager.addToDownloaded(blockLength);
-			if (partialPieces.size() * subdivisionSize >= calcPieceLength(currentPieceIndex)){ //ensures concatenation of last piece
-				//we finished downloading whole piece
-				concatenate();
-				//no longer occupied by specific piece index.
-				currentPieceIndex = -1;
-				//look for new pieces we need
+			PiecePicker.PartialPiece completed = manager.picker.blockReceived(pieceMessage.index, pieceMessage.begin, pieceMessage.blockView);
+			if (manager.picker.isEndgame()){
+				//other peers may have been asked for this block too; they needn't send it now.
+				cancelBlockEverywhere(answered);
+			}
+			if (completed != null){
+				//that was the last block of the piece, whichever peers the others came from
+				completePiece(completed);
+			}
+			//top the pipeline back up; if there's nothing left to ask this peer for, see whether we're still interested
+			fillPipeline();
+			if (outstandingRequests.isEmpty()){
 				checkPeersPieces();
-			} else {	// We're still in the middle of getting all the parts of a piece; request the next block
-				sendNextRequestMessage(((PieceMessage)message).index, ((PieceMessage)message).begin);
 			}
 			//System.out.println("Peer: " + this.peer.toString() + " is currently uploading to us at: " + this.peer.getUploadSpeed() + "kB/s");
 			break;
 		case Message.CANCEL:
-			break; 													//TODO: handle CANCEL message received.
+			CancelMessage cancel = (CancelMessage)message;
+			//a block still being read is dropped once it has been; otherwise it may still be waiting in the queue
+			if (!pendingReads.replace(blockKey(cancel.index, cancel.begin), Boolean.FALSE, Boolean.TRUE)) {
+				Message cancelled = peer.cancelQueuedMessage(Message.PIECE, cancel.index, cancel.begin);
+				if (cancelled != null){
+					//we hadn't started sending the block, so it no longer counts towards what we've uploaded.
+					countUploaded(-cancelled.blockLength());
+				}
+			}
+			break;
 		case Message.PORT:
 			break; 													//TODO: handle PORT message received.
 		case Message.KEEPALIVE:
@@ -331,95 +662,177 @@ public class MessageHandler implements Runnable{
 	 */
 	private void processRequestMessage(RequestMessage message) throws IOException{
 		//too big of piece
-		if(message.length > 32768){
+		if(message.length > MAX_BLOCK_SIZE){
 			System.err.println(peer + " request a piece larger than 32KB. Disconnecting from peer.");
-			disposeCurrPiece();
 			closeConnections();
 			return;
 		}
 		//we don't have the piece.
-		else if(manager.myPieces[message.index] == false){
+		else if(message.index < 0 || message.index >= manager.myPieces.length || manager.myPieces[message.index] == false){
 			System.err.println(peer + " has requested a piece(" + message.index + ") that we don't have! Disconnecting from peer.");
-			disposeCurrPiece();
 			closeConnections();
 			return;
 		} 
-		//TODO: Also need to handle the case in which they said us a bad offset
+		//they asked for a block that runs off the end of the piece.
+		else if(message.begin < 0 || message.length < 0 || message.begin + message.length > manager.picker.pieceLength(message.index)){
+			System.err.println(peer + " has requested a block outside of piece " + message.index + ". Disconnecting from peer.");
+			closeConnections();
+			return;
+		}
 		//we're good to go
 		else {
 			//System.out.println("Sending piece " + message.index + " at offset " + message.begin + " to peer " + peer);
-			byte[] wholePiece = manager.fa.readPiece(message.index);
-			byte[] partialPiece = new byte[message.length];
-			System.arraycopy(wholePiece, message.begin, partialPiece, 0, message.length);
-			addToQueue(new PieceMessage(message.index, message.begin, partialPiece));
-			this.messageSender.addToTotalBytesToPeer(partialPiece.length);
-			manager.addToUploaded(partialPiece.length);
+			//the decoder reuses the message, so the block is answered from copies of its fields
+			final int index = message.index;
+			final int begin = message.begin;
+			final int length = message.length;
+			//the block is queued once it's been read, on a DiskIO thread unless it's already in memory
+			blocksReading.incrementAndGet();
+			pendingReads.put(blockKey(index, begin), Boolean.FALSE);
+			manager.fa.prepareBlock(index, begin, length, new DiskIO.Callback<ByteBuffer>() {
+				public void completed(ByteBuffer block) {
+					//uncounted before it's queued: queueing it wakes the engine, which then looks again whether to
+					//start reading, and mustn't see it twice
+					blocksReading.decrementAndGet();
+					sendBlock(index, begin, length, block);
+				}
+				
+				public void failed(Exception e) {
+					blocksReading.decrementAndGet();
+					pendingReads.remove(blockKey(index, begin));
+					//nothing is queued, but the engine may be waiting on this block to start reading again
+					wakeWriter();
+					System.err.println("Unable to read piece " + index + " for " + peer + ": " + e.getMessage());
+				}
+			});
 			//System.out.println("Peer: " + this.peer.toString() + " is currently downloading from us at: " + this.peer.getDownloadSpeed() + "kB/s");
 		}
 	}
 	
 	/**
-	 * Disposes of any partially-downloaded pieces, and sets the inProg status of this index to false.
+	 * Queues a requested block once FileAccess.prepareBlock() has it ready, and counts it as uploaded once it's
+	 * queued, unless the peer cancelled it while it was being read. May be called from a DiskIO thread.
+	 * @param index
+	 * @param begin
+	 * @param length
+	 * @param block the block's bytes if they've been read, otherwise null.
+	 */
+	private void sendBlock(int index, int begin, int length, ByteBuffer block) {
+		Long key = blockKey(index, begin);
+		Message piece;
+		if (block == null && Manager.ZERO_COPY_UPLOADS) {
+			piece = new FilePieceMessage(index, begin, length, manager.fa);
+		} else {
+			byte[] bytes = new byte[length];
+			if (block != null) {
+				block.get(bytes);
+			} else {
+				try {
+					manager.fa.serveBlock(index, begin, length, ByteBuffer.wrap(bytes));
+				} catch (IOException e) {
+					pendingReads.remove(key);
+					System.err.println("Unable to read piece " + index + " for " + peer + ": " + e.getMessage());
+					return;
+				}
+			}
+			piece = new PieceMessage(index, begin, bytes);
+		}
+		if (!addToQueue(piece)) {
+			pendingReads.remove(key);
+			return;
+		}
+		countUploaded(length);
+		//only forgotten once it's queued, so a CANCEL either marks it here or finds it in the queue
+		if (Boolean.TRUE.equals(pendingReads.remove(key)) && piece.cancel())
+			countUploaded(-length);
+	}
+	
+	/**
+	 * @return the key of a block in pendingReads.
 	 */
-	private void disposeCurrPiece(){
-		if(currentPieceIndex != -1){
-			manager.piecesInProg[currentPieceIndex] = false;
-			currentPieceIndex = -1;
+	private static Long blockKey(int index, int begin) {
+		return ((long) index << 32) | (begin & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Counts a block that's been queued to the peer as uploaded; a CANCEL that catches it still queued takes it back.
+	 * @param length
+	 */
+	private void countUploaded(int length) {
+		this.messageSender.addToTotalBytesToPeer(length);
+		manager.addToUploaded(length);
+	}
+	
+	/**
+	 * Forgets the blocks we're waiting on from this peer and hands them back to the PiecePicker so other peers can
+	 * request them.
+	 */
+	public void releaseOutstandingRequests(){
+		synchronized (outstandingRequests) {
+			manager.picker.releaseBlocks(outstandingRequests);
+			outstandingRequests.clear();
 		}
-		partialPieces = new ArrayList<PieceMessage>();
 	}
 	
 	/**
-	 * Checks what pieces the peer has and if it has any worthwhile, then request it.
+	 * Stops waiting for a block from this peer because it arrived from another peer during endgame. If our request
+	 * is still in the queue it is simply dropped, otherwise a CancelMessage is sent. May be called from any thread.
+	 * @param index
+	 * @param begin
+	 */
+	public void cancelBlock(int index, int begin){
+		RequestMessage request = removeOutstandingRequest(index, begin);
+		if (request == null)
+			return;
+		if (peer.cancelQueuedMessage(Message.REQUEST, index, begin) == null)
+			addToQueue(new CancelMessage(index, begin, request.length));
+	}
+	
+	/**
+	 * Cancels a block that has just arrived at every other peer it was requested from.
+	 * @param request
+	 */
+	private void cancelBlockEverywhere(RequestMessage request){
+		for (Peer p : manager.peers){
+			if (p != null && p != this.peer && p.getmH() != null)
+				p.getmH().cancelBlock(request.index, request.begin);
+		}
+	}
+	
+	/**
+	 * Checks what pieces the peer has and if it has any worthwhile, then request blocks of them.
 	 * @throws IOException 
 	 */
-	private synchronized void checkPeersPieces() throws IOException{
+	private void checkPeersPieces() throws IOException{
 		System.out.println("Checking out peer " + this.peer + "'s pieces");
 		
-		//wait for pieces to become prioritized
-		boolean sentMessage = false;
-		while(manager.piecesByRarity == null)
-			try {
-				Thread.sleep(100L);
-			} catch (InterruptedException e) {}
-		
-		//iterate through list of prioritized pieces
-		for (int i : manager.piecesByRarity)
+		if (manager.picker.peerHasNeededPiece(peer))
 		{
-			if (sentMessage)
-				break;
-			if (this.peer.availablePieces.contains(i))
-			{
-				System.out.println("Peer " + this.peer + " has a desired piece at index " + i + "!");
-				//if the peer is choking us and we haven't sent an interested message yet
-				if(peer.isChoking() && !peer.amInterested()){
-					System.out.println("We're currently choked - sent interested message to peer " + this.peer);
-					addToQueue(new Message(Message.INTERESTED));
+			//if the peer is choking us and we haven't sent an interested message yet
+			if(peer.isChoking() && !peer.amInterested()){
+				System.out.println("We're currently choked - sent interested message to peer " + this.peer);
+				if (addToQueue(new Message(Message.INTERESTED))) {
 					peer.setInterested(true);
-					sentMessage = true;
-				}
-				else if(!peer.isChoking()){
-					System.out.println("Sent RequestMessage for first block of piece index: " + i + " to peer " + this.peer);
-					addToQueue(new RequestMessage(i, 0, subdivisionSize));
-					currentPieceIndex = i;
-					manager.piecesInProg[currentPieceIndex] = true;
-					sentMessage = true;
-				} 
-				else {
-					//The peer is choking us and we've already sent an interested message. Nothing we can do.
-					System.out.println(this.peer + " is choking us and we've already sent an interested message.");
-					sentMessage = true;
+					this.peer.sentUninterested = false;
 				}
 			}
+			else if(!peer.isChoking()){
+				fillPipeline();
+			} 
+			else {
+				//The peer is choking us and we've already sent an interested message. Nothing we can do.
+				System.out.println(this.peer + " is choking us and we've already sent an interested message.");
+			}
 		}
-		if (!sentMessage) {
+		else {
 			//This peer has no pieces we need right now, send uninterested
 			if(!this.peer.sentUninterested){
-				addToQueue(new Message(Message.UNINTERESTED));
-				this.peer.setInterested(false);
-				this.peer.sentUninterested = true;
-				this.peer.setDownloadSpeed(0);
-				this.peer.setUploadSpeed(0);
+				if (addToQueue(new Message(Message.UNINTERESTED))) {
+					this.peer.setInterested(false);
+					this.peer.sentUninterested = true;
+					this.peer.setDownloadSpeed(0);
+					this.peer.setUploadSpeed(0);
+				}
 			}
 		}
 	}
@@ -427,92 +840,100 @@ public class MessageHandler implements Runnable{
 	/**
 	 * Adds a message to this message handler's peer's queue
 	 * @param message
+	 * @return false if the message wasn't queued (see Peer.queueMessage()).
 	 */
-	public void addToQueue(Message message){
-		this.peer.messageQueue.add(message);
+	public boolean addToQueue(Message message){
+		return this.peer.queueMessage(message);
 	}
 	
 	/**
-	 * Takes the index and begin of PREVIOUS request message and USES it to calculate the NEXT request message.
-	 * The begin passed to this method is NOT the begin that will be requested.
+	 * Asks the PiecePicker for blocks this peer has until pipelineDepth requests are outstanding or there is nothing
+	 * left to ask this peer for.
 	 * 
-	 * @param index
-	 * @param begin
 	 * @throws IOException 
 	 */
-	private void sendNextRequestMessage(int index, int begin) throws IOException{
-		int newOffset = begin + subdivisionSize;
-		if (!(newOffset + subdivisionSize > calcPieceLength(currentPieceIndex))) {
-			//System.out.println("Sending Request Message to " + this.peer + " for piece " + index + " at offset " + newOffset);
-			addToQueue(new RequestMessage(index, newOffset, subdivisionSize));
+	private void fillPipeline() throws IOException{
+		if (peer.isChoking())
+			return;
+		long now = System.currentTimeMillis();
+		synchronized (outstandingRequests) {
+			if (outstandingRequests.isEmpty())
+				bandwidthEstimator.pipelineStarted(now);
+			while (outstandingRequests.size() < pipelineDepth) {
+				RequestMessage request = manager.picker.pickBlock(peer, outstandingRequests);
+				if (request == null)
+					break;
+				request.queuedAt = now;
+				//System.out.println("Sending Request Message to " + this.peer + " for piece " + request.index + " at offset " + request.begin);
+				if (!addToQueue(request)) {
+					//the queue is full; give the block back and try again once it drains
+					ArrayList<RequestMessage> unsent = new ArrayList<RequestMessage>();
+					unsent.add(request);
+					manager.picker.releaseBlocks(unsent);
+					break;
+				}
+				outstandingRequests.add(request);
+			}
 		}
-		else {
-			addToQueue(new RequestMessage(index, newOffset, calcPieceLength(currentPieceIndex) - newOffset));
+	}
+	
+	/**
+	 * Removes the outstanding request a received block answers.
+	 * @param index
+	 * @param begin
+	 * @return the request, or null if we weren't waiting for this block.
+	 */
+	private RequestMessage removeOutstandingRequest(int index, int begin){
+		synchronized (outstandingRequests) {
+			for (int i = 0; i < outstandingRequests.size(); i++) {
+				RequestMessage request = outstandingRequests.get(i);
+				if (request.index == index && request.begin == begin) {
+					return outstandingRequests.remove(i);
+				}
+			}
 		}
+		return null;
 	}
 	
 	/**
-	 * This stores the partial pieces until we have a full piece.
-	 * @param partialPieces
+	 * Verifies a piece whose last block has arrived, and saves it once its blocks are on disk if it is valid. If it 
+	 * isn't, the PiecePicker frees all of its blocks so they are downloaded again.
+	 * @param piece
 	 */
-	private void concatenate() throws Exception
+	private void completePiece(PiecePicker.PartialPiece piece) throws Exception
 	{
-		int index = partialPieces.get(0).index;
-		ByteBuffer bb;
-		if (index != (torrentInfo.piece_hashes.length - 1))
-			bb = ByteBuffer.allocate(torrentInfo.piece_length);
-		else
-			bb = ByteBuffer.allocate(torrentInfo.file_length % torrentInfo.piece_length);
-		for (PieceMessage pm: partialPieces)
-		{
-			bb.put(pm.block);
+		if(piece.verify()){							//Mark the piece as ours once the write cache has written it out.
+			final int index = piece.index;
+			manager.fa.afterWritten(index, new WriteCache.WriteListener() {
+				public void written() {
+					try {
+						manager.savePiece(index);
+					} catch (IOException e) {
+						System.err.println("Unable to announce piece " + index + ": " + e.getMessage());
+					}
+					manager.picker.pieceFinished(index);
+				}
+
+				public void failed(IOException e) {
+					System.out.println("Piece " + index + " couldn't be written, retrying piece.");
+					manager.picker.pieceFailed(index);
+				}
+			});
+		} else {
+			System.out.println("Hash mismatch, retrying piece.");
+			manager.picker.pieceFailed(piece.index);
 		}
-		byte[] pieceBytes = bb.array();
-		PieceMessage temp = new PieceMessage(index, 0, pieceBytes);
-		if(manager.verifyPiece(temp))				//Verify the piece we received to be valid, and save it if it is.
-			manager.savePiece(temp);
-		else 
-			disposeCurrPiece();
-		partialPieces = new ArrayList<PieceMessage>();
 	}
 
-	public void sendBitfield() throws IOException{
-		Message.encode(out, new BitfieldMessage(manager.myPieces));
-	}
-	
 	/**
 	 * This is necessary because PerformanceAnalyzer and Peer don't have a handle on MessageSender but they do have a handle
 	 * on MessageHandler, which has a handle on MessageSender. Therefore the call must go through the messageSender. 
 	 */
 	
 	public void resetUploadStats() {
+		if (this.messageSender == null)
+			return;
 		this.messageSender.resetTotalBytesToPeer();
 		this.messageSender.resetStart();
 	}
-
-	/**
-	 * The run() method of this runnable - where the thread gets started.
-	 */
-	@Override
-	public void run() {
-		try {
-			//opens sockets
-			peer.connect();
-			out = new DataOutputStream(peer.getSocket().getOutputStream());
-			in = new DataInputStream(peer.getSocket().getInputStream());	
-			managePeerConnection();
-		} catch(SocketTimeoutException ste){
-			System.err.println("Socket for peer: " + this.peer + " timed out. Disconnecting from peer.");
-			try {
-				closeConnections();
-			} catch (IOException e) {
-				System.err.println("meta-exception, couldnt close connections after exception was already thrown.");
-				e.printStackTrace();
-			}
-		} catch (IOException e){
-			e.printStackTrace();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-	}
 }
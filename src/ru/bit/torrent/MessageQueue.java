@@ -0,0 +1,145 @@
+package ru.bit.torrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The queue of messages waiting to be sent to one peer. Any thread may add to it (the peer's own MessageHandler, the
+ * Manager sending HAVEs, the PerformanceAnalyzer choking and unchoking, other handlers cancelling requests in
+ * endgame), but only the PeerEngine the peer is registered with takes messages out, so it is a bounded
+ * multi-producer, single-consumer ring buffer rather than a locked list.
+ *
+ * Every slot carries a sequence number. A producer claims a slot by advancing the tail with a compare-and-set once the
+ * slot's sequence says it is free, stores the message, then publishes it by bumping the sequence. The consumer only
+ * takes a slot whose sequence says it has been published, and hands the slot back to the producers one lap later.
+ * When the ring is full, {@link #offer(Message)} fails instead of growing, which is how producers are pushed back.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class MessageQueue {
+
+	/**
+	 * The queued messages. A slot is only read after its sequence number has been read, which orders the reads.
+	 */
+	private final Message[] slots;
+
+	/**
+	 * For every slot, the position it is free to be written at, or that position plus one once it has been written.
+	 */
+	private final AtomicLongArray sequences;
+
+	private final int mask;
+
+	/**
+	 * The next position a producer will write.
+	 */
+	private final AtomicLong tail;
+
+	/**
+	 * The next position the consumer will read. Only the consumer writes it.
+	 */
+	private volatile long head;
+
+	/**
+	 * @param capacity the most messages the queue will hold; rounded up to a power of two.
+	 */
+	public MessageQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.slots = new Message[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+		this.mask = size - 1;
+		this.tail = new AtomicLong(0);
+		this.head = 0;
+	}
+
+	/**
+	 * Adds a message to the end of the queue. May be called from any thread.
+	 * @param message
+	 * @return false if the queue is full and the message was not added.
+	 */
+	public boolean offer(Message message) {
+		long position = tail.get();
+		while (true) {
+			int slot = (int) position & mask;
+			long diff = sequences.get(slot) - position;
+			if (diff == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots[slot] = message;
+					sequences.set(slot, position + 1);
+					return true;
+				}
+				position = tail.get();
+			} else if (diff < 0) {
+				//the consumer hasn't freed this slot from the last lap yet
+				return false;
+			} else {
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Takes the first message that was added to the queue (FIFO), skipping any that have been cancelled. Must only be
+	 * called from the peer's PeerEngine.
+	 * @return the message, or null if the queue is empty.
+	 */
+	public Message poll() {
+		while (true) {
+			long position = head;
+			int slot = (int) position & mask;
+			if (sequences.get(slot) != position + 1)
+				return null;
+			Message message = slots[slot];
+			slots[slot] = null;
+			sequences.set(slot, position + slots.length);
+			head = position + 1;
+			if (message.claim())
+				return message;
+		}
+	}
+
+	/**
+	 * Cancels a queued REQUEST or PIECE message for the given block before it is sent. May be called from any thread;
+	 * a message the consumer has already taken can't be cancelled.
+	 * @param id Message.REQUEST or Message.PIECE
+	 * @param index
+	 * @param begin
+	 * @return the message that was cancelled, or null if none was.
+	 */
+	public Message cancel(byte id, int index, int begin) {
+		long end = tail.get();
+		for (long position = head; position < end; position++) {
+			int slot = (int) position & mask;
+			//only look at slots that have been published and not yet handed back
+			if (sequences.get(slot) != position + 1)
+				continue;
+			Message m = slots[slot];
+			if (m != null && m.isBlock(id, index, begin) && m.cancel())
+				return m;
+		}
+		return null;
+	}
+
+	/**
+	 * @return roughly how many messages are waiting, including cancelled ones that haven't been skipped yet.
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head);
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return the most messages the queue will hold.
+	 */
+	public int capacity() {
+		return slots.length;
+	}
+}
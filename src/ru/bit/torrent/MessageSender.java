@@ -1,36 +1,69 @@
 package ru.bit.torrent;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 /**
- * MessageSender is a thread instantiated in every MessageHandler who's duty is to send out all the messages in a given
- * peer's queue. This allows for true simultaneous sending and receiving.
- * 
+ * MessageSender is created in every MessageHandler once the connection to its peer is established. Its duty is to send
+ * out all the messages in a given peer's queue whenever the PeerEngine finds the peer's channel writable. Since the
+ * channel is non-blocking, a message may be only partly written; the remainder is kept until the next write.
+ *
+ * A PIECE is only started once the peer's upload TokenBucket (and the ones above it) has tokens for all of it, so
+ * uploads are limited in whole blocks. Until then the sender is throttled, and the MessageHandler stops writing
+ * until the PeerEngine retries it.
+ *
  * @author Dylan Murray
  */
-public class MessageSender implements Runnable {
-	
+public class MessageSender {
+
 	/**
 	 * The peer to which this message sender is sending messages to.
 	 */
 	Peer peer;
-	
+
+	/**
+	 * The smallest the send buffer will be: room for a batch of control messages and a block or two.
+	 */
+	private static final int SEND_BUFFER_SIZE = 65536;
+
+	/**
+	 * Encoded messages waiting to be written to the channel. Every message we can fit is packed into it and the whole
+	 * batch goes out in a single write, so a burst of HAVEs and REQUESTs leaves as a few full segments rather than one
+	 * small segment per message. Reused for every batch.
+	 */
+	private ByteBuffer sendBuffer;
+
 	/**
-	 * The dataoutput stream connected to our peer.
+	 * A message taken off the queue that didn't fit in the current batch; it starts the next one.
 	 */
-	DataOutputStream out;
+	private Message pending;
 	
 	/**
-	 * Boolean to tell whether or not this sender should be active.
+	 * If a FilePieceMessage's header is in the send buffer, the block still to be sent after it.
 	 */
-	boolean active = true;
+	private FilePieceMessage currentBlock;
 	
+	/**
+	 * How many bytes of currentBlock have been sent so far.
+	 */
+	private int blockSent;
+
+	/**
+	 * Limits the rate PIECEs are sent at.
+	 */
+	private TokenBucket uploadLimit;
+
+	/**
+	 * Set when the last write stopped because the upload limit had no tokens for the next PIECE.
+	 */
+	private boolean throttled;
+
 	/**
 	 * Used in calculating the peer's download speed
 	 */
 	private Long start;
-	
+
 	/**
 	 * Used in calculating the peer's download speed
 	 */
@@ -40,60 +73,137 @@ public class MessageSender implements Runnable {
 	 * Used in calculating the peer's download speed
 	 */
 	private int totalBytesFromPeer;
-	
+
 	/**
 	 * Used in calculating the peer's upload speed
 	 */
 	private int totalBytesToPeer;
-	
-	public MessageSender(Peer peer, DataOutputStream out){
+
+	/**
+	 * @param peer
+	 * @param preamble bytes that must go out before anything in the queue (our handshake and bitfield).
+	 * @param uploadLimit limits the rate PIECEs are sent at.
+	 */
+	public MessageSender(Peer peer, byte[] preamble, TokenBucket uploadLimit){
 		this.peer = peer;
-		this.out = out;
+		this.uploadLimit = uploadLimit;
+		this.sendBuffer = ByteBuffer.allocateDirect(Math.max(SEND_BUFFER_SIZE, preamble.length));
+		this.sendBuffer.put(preamble);
 		this.totalBytesFromPeer = 0;
 		this.totalBytesToPeer = 0;
 		this.start = System.currentTimeMillis();
 	}
-	
-	public void quit(){
-		this.active = false;
+
+	/**
+	 * Writes as much of the preamble and the peer's queue as the channel will take without blocking. Queued messages
+	 * are encoded into the send buffer a batch at a time, and each batch is written with one call.
+	 * @param channel
+	 * @return true if everything queued has been written, false if the channel filled up or the sender was throttled
+	 * (see isThrottled()) first.
+	 * @throws IOException
+	 */
+	public boolean write(SocketChannel channel) throws IOException {
+		throttled = false;
+		while (true) {
+			if (sendBuffer.position() > 0) {
+				sendBuffer.flip();
+				channel.write(sendBuffer);
+				sendBuffer.compact();
+				if (sendBuffer.position() > 0)
+					return false;
+			}
+			if (currentBlock != null) {
+				blockSent += currentBlock.transferTo(channel, blockSent);
+				if (blockSent < currentBlock.length)
+					return false;
+				currentBlock = null;
+			}
+			if (!fillSendBuffer())
+				return !throttled;
+		}
 	}
-	
-	@Override
-	public void run() {
-		//while we're not in exit mode
-		while(active){
-			//if there are no message to be sent, sleep for a second
-			if(peer.messageQueue.size() == 0){
-				try {
-					Thread.sleep(1000 * 1);
-					this.end = System.currentTimeMillis();
-					publishUploadSpeed();
-					publishDownloadSpeed();
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+
+	/**
+	 * @return true if the last write() stopped because the upload limit had run out; writing is pointless until it
+	 * has tokens again.
+	 */
+	public boolean isThrottled() {
+		return throttled;
+	}
+
+	/**
+	 * Encodes queued messages into the empty send buffer until it is full, the queue is empty, the header of a
+	 * FilePieceMessage has been added (its block has to follow straight from the file), or the upload limit has no
+	 * tokens for the next PIECE.
+	 * @return false if there was nothing to send.
+	 */
+	private boolean fillSendBuffer() {
+		boolean added = false;
+		while (true) {
+			Message message = (pending != null) ? pending : nextMessage();
+			pending = null;
+			if (message == null)
+				return added;
+			if (message instanceof FilePieceMessage) {
+				if (sendBuffer.remaining() < 13 || !takeTokens(message)) {
+					pending = message;
+					return added;
 				}
-			} 
-			//if there are messages to be sent, send the first message that was added to the queue (FIFO)
-			else {
-				try {
-					if(this.peer.messageQueue.get(0).id != (Message.PIECE) && this.peer.messageQueue.get(0).id != (Message.REQUEST)){
-						System.out.println("Sending " + this.peer.messageQueue.get(0) + " to " + this.peer);
-					}
-					Message.encode(out, this.peer.messageQueue.remove(0));
-				} catch (IOException e) {
-					e.printStackTrace();
-					System.err.println("The peer has disconnected from us!");
-					peer.disconnect();
-					quit();
+				//only the header goes through memory; the block is sent from the file once the batch is out.
+				currentBlock = (FilePieceMessage) message;
+				blockSent = 0;
+				currentBlock.encodeHeader(sendBuffer);
+				return true;
+			}
+			if (message.encodedLength() > sendBuffer.remaining()) {
+				if (!added) {
+					//too big for the buffer even on its own
+					sendBuffer = ByteBuffer.allocateDirect(message.encodedLength());
+				} else {
+					pending = message;
+					return true;
 				}
 			}
-			this.end = System.currentTimeMillis();
-			publishUploadSpeed();
-			publishDownloadSpeed();
+			if (!takeTokens(message)) {
+				pending = message;
+				return added;
+			}
+			if (message.id != Message.PIECE && message.id != Message.REQUEST) {
+				System.out.println("Sending " + message + " to " + this.peer);
+			}
+			message.encode(sendBuffer);
+			added = true;
 		}
 	}
-	
+
+	/**
+	 * Takes tokens for a PIECE from the upload limit; other messages are small and always go.
+	 * @return false, and marks the sender throttled, if there weren't enough.
+	 */
+	private boolean takeTokens(Message message) {
+		if (message.id != Message.PIECE || uploadLimit.tryTake(message.encodedLength()))
+			return true;
+		throttled = true;
+		return false;
+	}
+
+	/**
+	 * Takes the first message that was added to the queue (FIFO), or null if there is none.
+	 * @return
+	 */
+	private Message nextMessage() {
+		return peer.messageQueue.poll();
+	}
+
+	/**
+	 * Publishes this peer's upload and download speeds. Called periodically by the PeerEngine.
+	 */
+	public void publishSpeeds() {
+		this.end = System.currentTimeMillis();
+		publishUploadSpeed();
+		publishDownloadSpeed();
+	}
+
 	public void resetStart() {
 		this.start = System.currentTimeMillis();
 	}
@@ -109,26 +219,26 @@ public class MessageSender implements Runnable {
 	public void addToTotalBytesToPeer(int numBytes) {
 		this.totalBytesToPeer += numBytes;
 	}
-	
+
 	public void publishDownloadSpeed(){
 		double difference = (end - start);
 		int downloadSpeed = (int) (totalBytesToPeer/difference);
 		this.peer.setDownloadSpeed(downloadSpeed);
 	}
-	
+
 	public void publishUploadSpeed(){
 		double difference = (end - start);
 		int uploadSpeed = (int) (totalBytesFromPeer/difference);
 		this.peer.setUploadSpeed(uploadSpeed);
 	}
-	
+
 	public void resetTotalBytesToPeer() {
 		this.totalBytesToPeer = 0;
 	}
-	
+
 	public void resetTotalBytesFromPeer() {
 		this.totalBytesFromPeer = 0;
 	}
-	
+
 
 }
@@ -1,9 +1,10 @@
 package ru.bit.torrent;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
 
 /**
@@ -85,16 +86,15 @@ public class Peer {
     private Socket socket;
     
     /**
-     * An array list of ints which correspond to the pieces available to us in the bitfield, 
-     * for this particular peer.
+     * The non-blocking channel behind socket. The PeerEngine does all reads and writes through it.
      */
-    public ArrayList<Integer> availablePieces;
-
+    private SocketChannel channel;
+    
     /**
-     * A MessageHandler Thread attached to the Peer
+     * The pieces available to us from this particular peer, from its bitfield and the HAVE messages since.
      */
-    private Thread messageHandler;
- 
+    public PieceSet availablePieces;
+
     /**
      * a MessageHandler Object which is needed to pass along information from PerformanceAnalyzer
      */
@@ -120,6 +120,11 @@ public class Peer {
      */
     private int uploadSpeed;
     
+    /**
+     * How many block requests our MessageHandler currently keeps in flight to this peer.
+     */
+    private int requestQueueDepth;
+    
 	/**
      * Flag to whether or not we have sent this peer a handshake.
      */
@@ -139,16 +144,17 @@ public class Peer {
 	/**
      * Accepts a dictionary containing peer info that creates a unique peer object.
      * @param peerMap
+     * @param numPieces the number of pieces in the torrent.
      */
-	public Peer(Map<ByteBuffer, Object> peerMap) {
+	public Peer(Map<ByteBuffer, Object> peerMap, int numPieces) {
 		
 		//Temporary byte buffers converted into byte[]'s that contain peer info.
 		ByteBuffer bbPeerID = (ByteBuffer)peerMap.get(KEY_PEERID);
 		ByteBuffer bbPeerIP = (ByteBuffer)peerMap.get(KEY_IP);
-		this.port = (Integer)peerMap.get(KEY_PORT);
+		this.port = ((Long)peerMap.get(KEY_PORT)).intValue();
 		this.peerID = bbPeerID.array();
 		this.ip = new String(bbPeerIP.array());
-		this.availablePieces = new ArrayList<Integer>();
+		this.availablePieces = new PieceSet(numPieces);
 
 		//Peer status initialized to choked and uninterested.
 		this.amChoking = true;
@@ -165,12 +171,13 @@ public class Peer {
 	 * @param port
 	 * @param peerID
 	 * @param ip
+	 * @param numPieces the number of pieces in the torrent.
 	 */
-	public Peer(int port, String ip, byte[] peerID){
+	public Peer(int port, String ip, byte[] peerID, int numPieces){
 		this.port = port;
 		this.peerID = peerID;
 		this.ip = ip;
-		this.availablePieces = new ArrayList<Integer>();
+		this.availablePieces = new PieceSet(numPieces);
 
 		//Peer status initialized to choked and uninterested.
 		this.amChoking = true;
@@ -181,18 +188,16 @@ public class Peer {
 	}
 	
 	/**
-	 * Allows client to establish a TCP connection with this peer.
-	 * @return	true if successful connection or false if otherwise.
+	 * Starts a non-blocking TCP connection to this peer. The PeerEngine finishes the connection once the channel
+	 * becomes connectable.
+	 * @return	true if the connection was established immediately, false if it is still pending.
+	 * @throws IOException if the connection could not be started.
 	 */
-	public boolean connect(){
-		try {
-			socket = new Socket(this.ip, this.port);
-			socket.setSoTimeout(120000);
-		} catch (Exception e) {
-			System.err.println("Unable to establish TCP connection to peer: " + this.toString());
-			e.printStackTrace();
-		}
-		return false;
+	public boolean connect() throws IOException{
+		channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		socket = channel.socket();
+		return channel.connect(new InetSocketAddress(this.ip, this.port));
 	}
 	
 	/**
@@ -201,8 +206,8 @@ public class Peer {
 	 */
 	public void disconnect(){
 		try {
-			socket.close();
 			this.amConnected = false;
+			channel.close();
 		} catch (IOException e) {
 			//won't happen
 		} catch (NullPointerException npe) {
@@ -210,58 +215,24 @@ public class Peer {
 		}
 	}
 	
-	/**
-	 * Looks through Peer's available pieces and returns the index of piece our client still needs.
-	 * If the peer doesn't have any more pieces we need, returns -1.
-	 * 
-	 * @param completedPieces	A byte array representing all the pieces we've got so far.
-	 * @return
-	 */
-	public int getNeededPieceIndex(boolean[] completedPieces, boolean[] piecesInProg){
-		for(int i= 0; i < availablePieces.size(); i++){
-			if(completedPieces[availablePieces.get(i)] == false && piecesInProg[availablePieces.get(i)] == false){
-				return availablePieces.get(i);
-			}
-		}
-		System.out.println("Peer: " + this.toString() + " has no pieces the client needs.");
-		return -1;
-	}
-	
 	/**
 	 * Populates the list of available pieces this peer has from the bitfield he's sent.
+	 * @return false if the bitfield is the wrong length for the torrent.
 	 */
-	private void parseBitfield(){  
-		StringBuffer sb = new StringBuffer();
-		sb.append("Peer " + this.toString() + " currently has pieces: ");
-        for(int bitIndex = 0; bitIndex < this.bitfield.length * 8 ; bitIndex++){
-            if(getBit(this.bitfield, bitIndex) == 1){
-            	sb.append(bitIndex + ", ");
-            	this.availablePieces.add(bitIndex);
-            }
-
-        }
-        System.out.println(sb);
+	private boolean parseBitfield(){  
+		if (!this.availablePieces.setBitfield(this.bitfield))
+			return false;
+		System.out.println("Peer " + this.toString() + " currently has pieces: " + this.availablePieces);
+		return true;
 	}
 	
 	/**
 	 * Adds a single index to this peer's available piece list; typically will be called in response to a Have message.
+	 * @return false if the peer had already told us it has the piece.
+	 * @throws IndexOutOfBoundsException if the torrent has no such piece.
 	 */
-	public void addAvailablePiece(int pieceIndex){
-		this.availablePieces.add(pieceIndex);
-	}
-	
-	/**
-	 * Gets a single bit from a byte array.
-	 * @param data
-	 * @param pos
-	 * @return
-	 */
-	private static int getBit(byte[] data, int pos) {
-        int posByte = pos/8; 
-        int posBit = pos%8;
-        byte valByte = data[posByte];
-        int valInt = valByte>>(8-(posBit+1)) & 0x0001;
-        return valInt;
+	public boolean addAvailablePiece(int pieceIndex){
+		return this.availablePieces.set(pieceIndex);
 	}
 	
 	public byte[] getPeerID() {
@@ -280,6 +251,10 @@ public class Peer {
 		return socket;
 	}
 	
+	public SocketChannel getChannel() {
+		return channel;
+	}
+	
     public boolean amChoking(){
     	return amChoking;
     }
@@ -310,7 +285,7 @@ public class Peer {
      */
     public void setChoking(boolean bool){
     	amChoking = bool;
-    	if (!bool)
+    	if (!bool && this.mH != null)
     	{
     		this.mH.resetUploadStats();
     	}
@@ -342,10 +317,11 @@ public class Peer {
     
     /**
      * Sets the bitfield of this peer.
+     * @return false if the bitfield is the wrong length for the torrent, in which case the peer's pieces are unchanged.
      */
-    public void setBitfield(byte[] bitfield){
+    public boolean setBitfield(byte[] bitfield){
     	this.bitfield = bitfield;
-    	parseBitfield();
+    	return parseBitfield();
     }
     
     /**
@@ -381,20 +357,16 @@ public class Peer {
 	}
 	
 	/**
-	 * Relays peers Socket from SocketListener
-	 * @param socket
+	 * Relays peers channel from SocketListener
+	 * @param channel
 	 */
-
-	public void setSocket(Socket socket) {
-		this.socket = socket;
-	}
-	
-	public Thread getMessageHandler() {
-		return messageHandler;
+	public void setChannel(SocketChannel channel) {
+		this.channel = channel;
+		this.socket = channel.socket();
 	}
 
-	public void setMessageHandler(Thread messageHandler) {
-		this.messageHandler = messageHandler;
+	public MessageHandler getmH() {
+		return mH;
 	}
 
 	public void setmH(MessageHandler mH) {
@@ -417,6 +389,14 @@ public class Peer {
 		this.uploadSpeed = uploadSpeed;
 	}
 	
+	public int getRequestQueueDepth() {
+		return requestQueueDepth;
+	}
+
+	public void setRequestQueueDepth(int requestQueueDepth) {
+		this.requestQueueDepth = requestQueueDepth;
+	}
+	
 	public void setPa(PerformanceAnalyzer pa) {
 		this.pa = pa;
 	}
@@ -445,7 +425,40 @@ public class Peer {
 	}
 
 	/**
-	 * An ArrayList of Messages that represents of a queue of messages that need to be sent out to this peer.
+	 * Adds a message to this peer's queue and lets its PeerEngine know there is something to send. A REQUEST is
+	 * refused once MESSAGE_QUEUE_HIGH_WATER messages are waiting, and can be tried again later. Any other message
+	 * has to be sent, so if it doesn't fit, the peer isn't keeping up with what we send and is disconnected.
+	 * @param message
+	 * @return false if the message wasn't queued, in which case the caller mustn't act as though it was sent.
+	 */
+	public boolean queueMessage(Message message) {
+		if (message.id == Message.REQUEST && this.messageQueue.size() >= Manager.MESSAGE_QUEUE_HIGH_WATER)
+			return false;
+		if (!this.messageQueue.offer(message)) {
+			System.err.println("Outgoing queue for peer " + this + " is full, disconnecting from peer.");
+			if (this.mH != null)
+				this.mH.requestClose();
+			return false;
+		}
+		if (this.mH != null)
+			this.mH.wakeWriter();
+		return true;
+	}
+
+	/**
+	 * Cancels a queued REQUEST or PIECE message for the given block before it is sent, in response to a cancel.
+	 * @param id Message.REQUEST or Message.PIECE
+	 * @param index
+	 * @param begin
+	 * @return the message that was cancelled, or null if none was.
+	 */
+	public Message cancelQueuedMessage(byte id, int index, int begin) {
+		return messageQueue.cancel(id, index, begin);
+	}
+
+	/**
+	 * The queue of messages that need to be sent out to this peer. Producers on any thread add to it through
+	 * queueMessage(); the PeerEngine drains it.
 	 */
-	public ArrayList<Message> messageQueue = new ArrayList<Message>();
+	public MessageQueue messageQueue = new MessageQueue(Manager.MESSAGE_QUEUE_CAPACITY);
 }
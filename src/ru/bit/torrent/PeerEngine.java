@@ -0,0 +1,219 @@
+package ru.bit.torrent;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * PeerEngine is an event-driven I/O loop built on a {@link Selector}. Instead of dedicating a MessageHandler thread
+ * and a MessageSender thread to every peer, the Manager creates a small, fixed number of engines and spreads the peer
+ * connections across them. Each engine multiplexes all of its non-blocking SocketChannels on one thread and hands
+ * connect, read and write readiness to the MessageHandler attached to the channel's key.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class PeerEngine implements Runnable {
+
+	/**
+	 * How long a single select may block, in milliseconds. Bounds how late the once-a-second housekeeping can run.
+	 */
+	private static final long SELECT_TIMEOUT = 250L;
+
+	/**
+	 * How often speed statistics are published and idle connections are checked, in milliseconds.
+	 */
+	private static final long TICK_INTERVAL = 1000L;
+
+	/**
+	 * How often, in milliseconds, handlers that have run out of tokens (see TokenBucket) are retried.
+	 */
+	private static final long THROTTLE_INTERVAL = 20L;
+
+	/**
+	 * The Manager that owns this engine.
+	 */
+	private Manager manager;
+
+	/**
+	 * The selector all of this engine's peer channels are registered with.
+	 */
+	private Selector selector;
+
+	/**
+	 * Handlers waiting to be registered with the selector. Registration must happen on the engine thread.
+	 */
+	private ConcurrentLinkedQueue<MessageHandler> pendingRegistrations;
+
+	/**
+	 * Handlers that have had messages queued since the last select and need OP_WRITE turned on. Interest ops are only
+	 * ever changed from the engine thread, so other threads go through this queue.
+	 */
+	private ConcurrentLinkedQueue<MessageHandler> pendingWrites;
+
+	/**
+	 * Handlers that have stopped reading or writing until their rate limit has tokens again. Only touched on the
+	 * engine thread.
+	 */
+	private LinkedHashSet<MessageHandler> throttled;
+
+	/**
+	 * The last time housekeeping was run.
+	 */
+	private long lastTick;
+
+	/**
+	 * @param manager
+	 * @throws IOException if the selector could not be opened.
+	 */
+	public PeerEngine(Manager manager) throws IOException {
+		this.manager = manager;
+		this.selector = Selector.open();
+		this.pendingRegistrations = new ConcurrentLinkedQueue<MessageHandler>();
+		this.pendingWrites = new ConcurrentLinkedQueue<MessageHandler>();
+		this.throttled = new LinkedHashSet<MessageHandler>();
+		this.lastTick = System.currentTimeMillis();
+	}
+
+	/**
+	 * Hands a peer connection to this engine. May be called from any thread.
+	 * @param mH
+	 */
+	public void register(MessageHandler mH) {
+		pendingRegistrations.add(mH);
+		selector.wakeup();
+	}
+
+	/**
+	 * Asks the engine to start writing the messages queued for this handler's peer. May be called from any thread.
+	 * @param mH
+	 */
+	public void requestWrite(MessageHandler mH) {
+		pendingWrites.add(mH);
+		selector.wakeup();
+	}
+
+	/**
+	 * Retries a handler that has run out of tokens every THROTTLE_INTERVAL until it's no longer throttled. Called on
+	 * the engine thread.
+	 * @param mH
+	 */
+	public void throttle(MessageHandler mH) {
+		throttled.add(mH);
+	}
+
+	/**
+	 * Registers every handler handed to us since the last select.
+	 */
+	private void processRegistrations() {
+		MessageHandler mH;
+		while ((mH = pendingRegistrations.poll()) != null) {
+			try {
+				mH.attach(this, selector);
+			} catch (IOException e) {
+				System.err.println("Unable to establish TCP connection to peer: " + mH.getPeer());
+				mH.closeConnections();
+			}
+		}
+	}
+
+	/**
+	 * Turns on OP_WRITE for every handler that has had messages queued since the last select.
+	 */
+	private void processWriteRequests() {
+		MessageHandler mH;
+		while ((mH = pendingWrites.poll()) != null) {
+			mH.enableWrite();
+		}
+	}
+
+	/**
+	 * Dispatches the readiness of a single key to its MessageHandler.
+	 * @param key
+	 */
+	private void handleKey(SelectionKey key) {
+		MessageHandler mH = (MessageHandler) key.attachment();
+		try {
+			if (key.isValid() && key.isConnectable())
+				mH.onConnectable();
+			if (key.isValid() && key.isReadable())
+				mH.onReadable();
+			if (key.isValid() && key.isWritable())
+				mH.onWritable();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error communicating with peer " + mH.getPeer() + "... disconnecting from peer.");
+			mH.closeConnections();
+		}
+	}
+
+	/**
+	 * Gives every throttled handler the chance to start reading or writing again.
+	 */
+	private void retryThrottled() {
+		Iterator<MessageHandler> it = throttled.iterator();
+		while (it.hasNext()) {
+			if (it.next().retryThrottled())
+				it.remove();
+		}
+	}
+
+	/**
+	 * Publishes speed statistics and drops idle peers, roughly once a second.
+	 */
+	private void tick() {
+		long now = System.currentTimeMillis();
+		if (now - lastTick < TICK_INTERVAL)
+			return;
+		lastTick = now;
+		for (SelectionKey key : selector.keys()) {
+			if (!key.isValid())
+				continue;
+			MessageHandler mH = (MessageHandler) key.attachment();
+			try {
+				mH.tick(now);
+			} catch (IOException e) {
+				mH.closeConnections();
+			}
+		}
+	}
+
+	/**
+	 * The run() method of this runnable - selects until the user initiates the shutdown sequence.
+	 */
+	@Override
+	public void run() {
+		while (!manager.stopThreads) {
+			try {
+				selector.select(throttled.isEmpty() ? SELECT_TIMEOUT : THROTTLE_INTERVAL);
+				retryThrottled();
+				processRegistrations();
+				processWriteRequests();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					handleKey(key);
+				}
+				tick();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		//close every channel still registered with us, then the selector itself
+		for (SelectionKey key : selector.keys()) {
+			((MessageHandler) key.attachment()).closeConnections();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			//won't happen
+		}
+	}
+}
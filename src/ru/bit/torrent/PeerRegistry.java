@@ -0,0 +1,156 @@
+package ru.bit.torrent;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Every peer we know of, indexed by peer ID and by ip:port. The tracker, the SocketListener, the PeerEngines, the
+ * PerformanceAnalyzer and the GUI all share it, so lookups and iteration never lock and never throw a
+ * ConcurrentModificationException: iterating sees a weakly consistent view, and {@link #snapshot()} copies the
+ * peers out when a stable list is needed. Adding and removing lock, so the two indexes always agree.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class PeerRegistry implements Iterable<Peer> {
+
+	/**
+	 * Callbacks for peers connecting and disconnecting. They run on whichever thread made the change, so they should
+	 * be quick.
+	 */
+	public interface PeerListener {
+
+		/**
+		 * A peer has been handed to a PeerEngine.
+		 * @param peer
+		 */
+		void peerConnected(Peer peer);
+
+		/**
+		 * A peer has been disconnected and removed from the registry.
+		 * @param peer
+		 */
+		void peerDisconnected(Peer peer);
+	}
+
+	/**
+	 * The peers, keyed by peer ID.
+	 */
+	private ConcurrentHashMap<String, Peer> byId;
+
+	/**
+	 * The peers, keyed by "ip:port".
+	 */
+	private ConcurrentHashMap<String, Peer> byAddress;
+
+	private CopyOnWriteArrayList<PeerListener> listeners;
+
+	public PeerRegistry() {
+		this.byId = new ConcurrentHashMap<String, Peer>();
+		this.byAddress = new ConcurrentHashMap<String, Peer>();
+		this.listeners = new CopyOnWriteArrayList<PeerListener>();
+	}
+
+	private static String idKey(byte[] peerID) {
+		return new String(peerID, StandardCharsets.ISO_8859_1);
+	}
+
+	private static String addressKey(String ip, int port) {
+		return ip + ":" + port;
+	}
+
+	/**
+	 * Adds a peer unless we already have one with the same peer ID or address.
+	 * @param peer
+	 * @return true if the peer was added.
+	 */
+	public synchronized boolean add(Peer peer) {
+		String id = idKey(peer.getPeerID());
+		String address = addressKey(peer.getIp(), peer.getPort());
+		if (byId.containsKey(id) || byAddress.containsKey(address))
+			return false;
+		byId.put(id, peer);
+		byAddress.put(address, peer);
+		return true;
+	}
+
+	/**
+	 * Removes a peer and tells the listeners it has disconnected. Does nothing if the peer isn't registered.
+	 * @param peer
+	 */
+	public void remove(Peer peer) {
+		synchronized (this) {
+			if (!byId.remove(idKey(peer.getPeerID()), peer))
+				return;
+			byAddress.remove(addressKey(peer.getIp(), peer.getPort()), peer);
+		}
+		for (PeerListener listener : listeners)
+			listener.peerDisconnected(peer);
+	}
+
+	/**
+	 * Tells the listeners a registered peer has been connected.
+	 * @param peer
+	 */
+	public void connected(Peer peer) {
+		for (PeerListener listener : listeners)
+			listener.peerConnected(peer);
+	}
+
+	/**
+	 * @param peer
+	 * @return true if we have a peer with the same peer ID or address.
+	 */
+	public boolean contains(Peer peer) {
+		return byId.containsKey(idKey(peer.getPeerID())) || byAddress.containsKey(addressKey(peer.getIp(), peer.getPort()));
+	}
+
+	/**
+	 * @param peerID
+	 * @return the peer with this ID, or null.
+	 */
+	public Peer get(byte[] peerID) {
+		return byId.get(idKey(peerID));
+	}
+
+	/**
+	 * @param ip
+	 * @param port
+	 * @return the peer at this address, or null.
+	 */
+	public Peer get(String ip, int port) {
+		return byAddress.get(addressKey(ip, port));
+	}
+
+	public int size() {
+		return byId.size();
+	}
+
+	/**
+	 * @return a copy of the current peers, safe to index into and hold on to.
+	 */
+	public ArrayList<Peer> snapshot() {
+		return new ArrayList<Peer>(byId.values());
+	}
+
+	/**
+	 * Iterates over the peers without locking; peers added or removed meanwhile may or may not be seen.
+	 */
+	@Override
+	public Iterator<Peer> iterator() {
+		return byId.values().iterator();
+	}
+
+	public void addListener(PeerListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(PeerListener listener) {
+		listeners.remove(listener);
+	}
+}
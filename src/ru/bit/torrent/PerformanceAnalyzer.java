@@ -6,88 +6,10 @@ public class PerformanceAnalyzer implements Runnable {
 	
 	private Manager manager;
 	
-	private int totalNumPieces;
-	
-	private boolean peersPopulated;
-	
-	public PerformanceAnalyzer(Manager manager, int totalNumPieces) {
+	public PerformanceAnalyzer(Manager manager) {
 		this.manager = manager;
-		this.totalNumPieces = totalNumPieces;
-		this.peersPopulated = false;
-		waitForPeersToPopulate();
-		prioritizePieces();
 	}
 
-	/**
-	 * Iterates over all peers to determine which pieces they have
-	 * and keeps count of how many peers have the piece at that index.
-	 * Then, it arranges those indexes from lowest to highest
-	 * so, if only 1 peer has piece index 3 and 5 peers have the pieces
-	 * at index 0, 1, 2, and 4, the resulting array would be
-	 * [3, 0, 1, 2, 4]
-	 */
-	public void prioritizePieces() {
-		while (!peersPopulated)
-			try {
-				Thread.sleep(100L);
-			} catch (InterruptedException e) {}
-		ArrayList<Integer> unsortedNeededPieces = manager.getUnsortedNeededPieces();
-		int[] pieceIndexCounts = new int[totalNumPieces];
-		for (Peer p : manager.peers)
-		{
-			if (p.amConnected())
-			{
-				for (int i = 0; i < p.availablePieces.size(); i++ )
-				{
-					if(unsortedNeededPieces.contains(p.availablePieces.get(i))) //if we need the piece that the peer has
-							pieceIndexCounts[p.availablePieces.get(i)]++; //iterate that index in pieceIndexCounts		
-				}
-			}
-		}
-
-		//to ease sorting operations, I am using an arraylist here.
-		ArrayList<Integer> piecesByRarity = new ArrayList<Integer>();
-		int currentlyAddingPiecesWithXPeers = 0;
-		while (piecesByRarity.size() < unsortedNeededPieces.size()) {
-			for (int i = 0; i < pieceIndexCounts.length; i++)
-			{
-				if (pieceIndexCounts[i] == currentlyAddingPiecesWithXPeers && unsortedNeededPieces.contains(i))
-				{
-					piecesByRarity.add(i);
-					pieceIndexCounts[i] = -1; //speed boost, so that we don't check this piece again.
-				}
-			}
-			currentlyAddingPiecesWithXPeers++;
-		}
-		
-		System.out.print("The pieces, ordered by rarity, are: ");
-		for (int i : piecesByRarity)
-			System.out.print(i + ", ");
-		System.out.println();
-		
-		manager.piecesByRarity = piecesByRarity;
-	}
-	
-	/**
-	 * Waits while peers' available pieces populates, before trying to prioritize them.
-	 */
-	public void waitForPeersToPopulate() {
-		while (!peersPopulated) {
-			while (manager.peers.size() < 1)
-				try {
-					Thread.sleep(10L);
-				} catch (InterruptedException e) {}
-			for (Peer p : manager.peers)
-			{
-				if (p.availablePieces.size() > 0)
-				{
-					this.peersPopulated = true;
-					break;
-				}
-			}
-		}
-	}
-	
 	/**
 	 * Iterates through peer list and determines the peer with the slowest upload speed. 
 	 * Depending on whether we have the full torrent file downloaded or not
@@ -134,7 +56,9 @@ public class PerformanceAnalyzer implements Runnable {
 		if (slowest != null && !slowest.amChoking() && manager.numUnchoked >= 3)
 		{
 			System.out.println("Choking Peer: " + slowest.toString());
-			slowest.messageQueue.add(new Message(Message.CHOKE));
+			//if the CHOKE can't be queued the peer is being disconnected, which takes it off numUnchoked
+			if (!slowest.queueMessage(new Message(Message.CHOKE)))
+				return null;
 			slowest.setChoking(true);
 			manager.numUnchoked--;
 			return slowest;
@@ -148,25 +72,26 @@ public class PerformanceAnalyzer implements Runnable {
 	 */
 	private void unchokeRandom(Peer dontUnchoke){
 		ArrayList<Peer> chokedPeers = new ArrayList<Peer>();
-		for(int i=0; i < manager.peers.size(); i++){
-			if(manager.peers.get(i).amChoking() && manager.peers.get(i).isInterested() && !manager.peers.get(i).equals(dontUnchoke)){
-				chokedPeers.add(manager.peers.get(i));
+		for(Peer p : manager.peers){
+			if(p.amChoking() && p.isInterested() && !p.equals(dontUnchoke)){
+				chokedPeers.add(p);
 			}
 		}
+		if(chokedPeers.isEmpty()){
+			return;
+		}
 		
 		//Credit this random number code to StackOverflow.com
 		int min = 0;
 		int max = chokedPeers.size()-1;
 		int randomIndex = min + (int)(Math.random() * ((max - min) + 1));
 
-		//TODO: only thing i'm concerned about is that this message won't get sent until end of processMessage cycle
-		//If we're choking this peer, it means we're waiting to read from socket; socket waits can be up to
-		//120 seconds while we need to do this unchoke/choke business every 30 seconds.. could be an issue
 		if(manager.numUnchoked < 6){
 			System.out.println("Unchoking " + chokedPeers.get(randomIndex)+ " at random.");
-			chokedPeers.get(randomIndex).messageQueue.add(new Message(Message.UNCHOKE));
-			chokedPeers.get(randomIndex).setChoking(false);
-			manager.numUnchoked++;
+			if (chokedPeers.get(randomIndex).queueMessage(new Message(Message.UNCHOKE))) {
+				chokedPeers.get(randomIndex).setChoking(false);
+				manager.numUnchoked++;
+			}
 		}
 
 	}
@@ -190,7 +115,6 @@ public class PerformanceAnalyzer implements Runnable {
 			//We want to make sure we don't unchoke the peer we just choked, so keep track of it.
 			Peer ret = chokeSlowestPeer();
 			unchokeRandom(ret);
-			prioritizePieces();
 		}
 	}
 }
@@ -0,0 +1,165 @@
+package ru.bit.torrent;
+
+import java.util.Arrays;
+
+/**
+ * Keeps count of how many connected peers have each piece, updated incrementally from BITFIELD and HAVE messages and
+ * from peer disconnects, so the rarest piece we need is always known without rebuilding anything.
+ *
+ * Every piece we still need sits in a bucket for its count: a doubly-linked list threaded through the next/prev
+ * arrays, headed by bucketHeads[count]. A count change moves the piece to the neighbouring bucket in O(1), and the
+ * rarest needed piece is the head of the lowest non-empty bucket above zero.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class PieceAvailability {
+
+	/**
+	 * Marks the end of a bucket's list.
+	 */
+	private static final int NONE = -1;
+
+	/**
+	 * How many connected peers have each piece.
+	 */
+	private int[] counts;
+
+	/**
+	 * The next piece in the same bucket, or NONE.
+	 */
+	private int[] next;
+
+	/**
+	 * The previous piece in the same bucket, or NONE.
+	 */
+	private int[] prev;
+
+	/**
+	 * Whether each piece is still in a bucket (we still need it).
+	 */
+	private boolean[] needed;
+
+	/**
+	 * The first piece in the bucket for each count, or NONE. Grows as more peers connect.
+	 */
+	private int[] bucketHeads;
+
+	/**
+	 * @param myPieces the pieces we already have, which are never bucketed.
+	 */
+	public PieceAvailability(boolean[] myPieces) {
+		int numPieces = myPieces.length;
+		this.counts = new int[numPieces];
+		this.next = new int[numPieces];
+		this.prev = new int[numPieces];
+		this.needed = new boolean[numPieces];
+		this.bucketHeads = new int[8];
+		Arrays.fill(bucketHeads, NONE);
+		//link backwards so each bucket lists pieces in index order
+		for (int i = numPieces - 1; i >= 0; i--) {
+			if (!myPieces[i]) {
+				needed[i] = true;
+				link(i);
+			}
+		}
+	}
+
+	/**
+	 * Pushes a piece onto the front of the bucket for its count.
+	 */
+	private void link(int piece) {
+		int count = counts[piece];
+		if (count >= bucketHeads.length) {
+			int oldLength = bucketHeads.length;
+			bucketHeads = Arrays.copyOf(bucketHeads, Math.max(count + 1, oldLength * 2));
+			Arrays.fill(bucketHeads, oldLength, bucketHeads.length, NONE);
+		}
+		prev[piece] = NONE;
+		next[piece] = bucketHeads[count];
+		if (bucketHeads[count] != NONE)
+			prev[bucketHeads[count]] = piece;
+		bucketHeads[count] = piece;
+	}
+
+	/**
+	 * Takes a piece out of the bucket for its count.
+	 */
+	private void unlink(int piece) {
+		if (prev[piece] != NONE)
+			next[prev[piece]] = next[piece];
+		else
+			bucketHeads[counts[piece]] = next[piece];
+		if (next[piece] != NONE)
+			prev[next[piece]] = prev[piece];
+	}
+
+	/**
+	 * Adds or removes one peer's copy of a piece.
+	 */
+	private void adjust(int piece, int delta) {
+		if (piece < 0 || piece >= counts.length)
+			return;
+		if (needed[piece])
+			unlink(piece);
+		counts[piece] = Math.max(0, counts[piece] + delta);
+		if (needed[piece])
+			link(piece);
+	}
+
+	/**
+	 * A peer has told us, in a HAVE message, that it has a piece.
+	 * @param piece
+	 */
+	public synchronized void peerHasPiece(int piece) {
+		adjust(piece, 1);
+	}
+
+	/**
+	 * A peer has sent its bitfield; counts every piece in it.
+	 * @param pieces the pieces the peer has
+	 */
+	public synchronized void addPeer(PieceSet pieces) {
+		for (int piece = pieces.nextSetBit(0); piece != -1; piece = pieces.nextSetBit(piece + 1))
+			adjust(piece, 1);
+	}
+
+	/**
+	 * A peer has disconnected; its pieces no longer count.
+	 * @param pieces the pieces the peer had
+	 */
+	public synchronized void removePeer(PieceSet pieces) {
+		for (int piece = pieces.nextSetBit(0); piece != -1; piece = pieces.nextSetBit(piece + 1))
+			adjust(piece, -1);
+	}
+
+	/**
+	 * We have a piece now, so it no longer needs to be ranked.
+	 * @param piece
+	 */
+	public synchronized void pieceCompleted(int piece) {
+		if (!needed[piece])
+			return;
+		unlink(piece);
+		needed[piece] = false;
+	}
+
+	/**
+	 * Returns the rarest piece we need that the given peer has and that isn't excluded, walking the buckets from the
+	 * fewest peers up. Pieces nobody has are never returned.
+	 * @param peer
+	 * @param exclude pieces to skip, such as those already in progress
+	 * @return the piece index, or -1 if there is none.
+	 */
+	public synchronized int rarestPiece(Peer peer, boolean[] exclude) {
+		for (int count = 1; count < bucketHeads.length; count++) {
+			for (int piece = bucketHeads[count]; piece != NONE; piece = next[piece]) {
+				if (!exclude[piece] && peer.availablePieces.get(piece))
+					return piece;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,276 @@
+package ru.bit.torrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps recently uploaded pieces in memory, so the pieces many peers ask for are read from the disk once rather
+ * than once per request. Pieces are read whole into direct buffers from a BufferPool, and the least recently used
+ * pieces are evicted once the cache holds more than its capacity.
+ *
+ * Each cached piece counts the transfers using it; an evicted piece's buffer only goes back to the pool once the last
+ * of them finishes. Pieces we have never change, so the cache never has to be invalidated.
+ *
+ * A requested piece that isn't cached is read in with load() on a DiskIO thread (see FileAccess.prepareBlock) before
+ * its blocks are sent, so the whole piece is read at once and the rest of its blocks are served from memory. Sending
+ * never reads a piece in: it runs on a PeerEngine thread, so if the piece has been evicted again in the meantime,
+ * transferTo() says so and the block is sent from the file instead.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class PieceCache {
+
+	/**
+	 * A cached piece.
+	 */
+	private static class Entry {
+
+		final int index;
+
+		final ByteBuffer data;
+
+		/**
+		 * True once the piece has been read in. Set holding the entry's lock, which is held while it's read, but can
+		 * be checked without it.
+		 */
+		volatile boolean loaded;
+
+		/**
+		 * How many transfers are using the entry. Guarded by the entries map.
+		 */
+		int refs;
+
+		/**
+		 * True once the entry has been evicted; its buffer is released when the last transfer finishes.
+		 */
+		boolean evicted;
+
+		Entry(int index, ByteBuffer data) {
+			this.index = index;
+			this.data = data;
+		}
+	}
+
+	private FileAccess fa;
+
+	private Manager manager;
+
+	/**
+	 * The most pieces kept in memory.
+	 */
+	private final int maxPieces;
+
+	/**
+	 * Cached pieces by index, least recently used first.
+	 */
+	private LinkedHashMap<Integer, Entry> entries;
+
+	private BufferPool buffers;
+
+	/**
+	 * Blocks served from a piece that was already in memory.
+	 */
+	private AtomicLong hits = new AtomicLong();
+
+	/**
+	 * Pieces that had to be read from the disk.
+	 */
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param fa where pieces are read from.
+	 * @param manager
+	 * @param torrentInfo
+	 * @param capacity the most bytes of pieces kept in memory.
+	 */
+	public PieceCache(FileAccess fa, Manager manager, TorrentInfo torrentInfo, long capacity) {
+		this.fa = fa;
+		this.manager = manager;
+		this.maxPieces = (int) Math.max(1, capacity / torrentInfo.piece_length);
+		this.entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+		this.buffers = new BufferPool(torrentInfo.piece_length, 4);
+	}
+
+	/**
+	 * Sends as much of a block as the target will take, if its piece is in memory.
+	 * @param pieceIndex
+	 * @param begin offset within the piece
+	 * @param length
+	 * @param target
+	 * @return the number of bytes sent, possibly 0 if the target is a non-blocking channel that is full, or -1 if the
+	 * piece isn't in memory, in which case nothing is sent.
+	 * @throws IOException
+	 */
+	public long transferTo(int pieceIndex, int begin, int length, WritableByteChannel target) throws IOException {
+		Entry entry = acquireLoaded(pieceIndex);
+		if (entry == null)
+			return -1;
+		try {
+			return target.write(view(entry, begin, length));
+		} finally {
+			release(entry);
+		}
+	}
+
+	/**
+	 * Copies a block into a buffer.
+	 * @param pieceIndex
+	 * @param begin offset within the piece
+	 * @param length
+	 * @param dst receives {@code length} bytes at its position, which is advanced past them.
+	 * @throws IOException
+	 */
+	public void read(int pieceIndex, int begin, int length, ByteBuffer dst) throws IOException {
+		Entry entry = acquire(pieceIndex, true);
+		try {
+			dst.put(view(entry, begin, length));
+		} finally {
+			release(entry);
+		}
+	}
+
+	/**
+	 * @param pieceIndex
+	 * @return true if the piece is in memory, so its blocks can be sent without touching the disk.
+	 */
+	public boolean isLoaded(int pieceIndex) {
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(pieceIndex);
+		}
+		//doesn't wait for a piece that is being read
+		return entry != null && entry.loaded;
+	}
+
+	/**
+	 * Reads a piece into the cache if it isn't there already.
+	 * @param pieceIndex
+	 * @throws IOException
+	 */
+	public void load(int pieceIndex) throws IOException {
+		//the block it's loaded for counts as a hit when it's sent
+		release(acquire(pieceIndex, false));
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gives every buffer back.
+	 */
+	public void close() {
+		synchronized (entries) {
+			for (Entry entry : entries.values()) {
+				entry.evicted = true;
+				if (entry.refs == 0)
+					buffers.release(entry.data);
+			}
+			entries.clear();
+		}
+	}
+
+	private ByteBuffer view(Entry entry, int begin, int length) {
+		ByteBuffer view = entry.data.duplicate();
+		view.limit(begin + length);
+		view.position(begin);
+		return view;
+	}
+
+	/**
+	 * Finds a piece in the cache, reading it in if it isn't there, and marks it in use.
+	 * @param countHit whether finding the piece already in memory counts as a hit.
+	 */
+	private Entry acquire(int pieceIndex, boolean countHit) throws IOException {
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(pieceIndex);
+			if (entry == null) {
+				entry = new Entry(pieceIndex, buffers.acquire());
+				entries.put(pieceIndex, entry);
+				evict();
+			}
+			entry.refs++;
+		}
+		//read outside of the entries lock, so only transfers of this piece wait for it
+		synchronized (entry) {
+			if (entry.loaded) {
+				if (countHit)
+					hits.incrementAndGet();
+				return entry;
+			}
+			misses.incrementAndGet();
+			try {
+				int length = manager.picker.pieceLength(pieceIndex);
+				ByteBuffer data = entry.data.duplicate();
+				data.clear();
+				fa.readBlock(pieceIndex, 0, length, data);
+				entry.data.clear().limit(length);
+				entry.loaded = true;
+			} catch (IOException e) {
+				remove(entry);
+				release(entry);
+				throw e;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Finds a piece in the cache and marks it in use, but only if it has already been read in.
+	 * @return null if it hasn't. That isn't counted as a miss, as only reading the piece in is.
+	 */
+	private Entry acquireLoaded(int pieceIndex) {
+		synchronized (entries) {
+			Entry entry = entries.get(pieceIndex);
+			if (entry == null || !entry.loaded)
+				return null;
+			entry.refs++;
+			hits.incrementAndGet();
+			return entry;
+		}
+	}
+
+	private void release(Entry entry) {
+		synchronized (entries) {
+			if (--entry.refs == 0 && entry.evicted)
+				buffers.release(entry.data);
+		}
+	}
+
+	/**
+	 * Drops a piece that couldn't be read, so the next request tries again.
+	 */
+	private void remove(Entry entry) {
+		synchronized (entries) {
+			if (entries.get(entry.index) == entry)
+				entries.remove(entry.index);
+			entry.evicted = true;
+		}
+	}
+
+	/**
+	 * Drops the least recently used pieces until no more than maxPieces are cached. Must hold the entries lock.
+	 */
+	private void evict() {
+		Iterator<Entry> eldest = entries.values().iterator();
+		while (entries.size() > maxPieces && eldest.hasNext()) {
+			Entry entry = eldest.next();
+			eldest.remove();
+			entry.evicted = true;
+			if (entry.refs == 0)
+				buffers.release(entry.data);
+		}
+	}
+}
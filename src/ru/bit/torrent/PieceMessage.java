@@ -24,6 +24,12 @@ public class PieceMessage extends Message{
 	
 	byte[] block;
 	
+	/**
+	 * For a message decoded from a peer, the block as a view of the MessageHandler's read buffer instead of a copy
+	 * (block is then null). Only valid while the message is being processed.
+	 */
+	ByteBuffer blockView;
+	
 	public PieceMessage(int index, int begin, byte[] block){
 		super(Message.PIECE);
 		this.index = index;
@@ -31,18 +37,46 @@ public class PieceMessage extends Message{
 		this.block = block;
 	}
 	
+	/**
+	 * Points the message at a block in a read buffer, for the MessageDecoder.
+	 * @param view
+	 */
+	void setBlockView(ByteBuffer view){
+		this.block = null;
+		this.blockView = view;
+	}
+	
+	/**
+	 * @return the length of the block, whether it is held as an array or a view.
+	 */
+	@Override
+	public int blockLength(){
+		return (block != null) ? block.length : blockView.remaining();
+	}
+	
+	@Override
+	boolean isBlock(byte id, int index, int begin) {
+		return id == Message.PIECE && this.index == index && this.begin == begin;
+	}
+	
 	public String toString(){
 		return super.toString() + "@ index: " + index + ", begin: " + begin;
 	}
 	
 	@Override
-	public byte[] generateByteArray(){
-		ByteBuffer bb = ByteBuffer.allocate(13 + block.length);
-		bb.putInt(9 + block.length);
+	public int encodedLength(){
+		return 13 + blockLength();
+	}
+	
+	@Override
+	public void encode(ByteBuffer bb){
+		bb.putInt(9 + blockLength());
 		bb.put(Message.PIECE);
 		bb.putInt(index);
 		bb.putInt(begin);
-		bb.put(block);
-		return bb.array();
+		if (block != null)
+			bb.put(block);
+		else
+			bb.put(blockView.duplicate());
 	}
 }
@@ -0,0 +1,318 @@
+package ru.bit.torrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * PiecePicker decides which 16KB block each MessageHandler should request next. It keeps the state of every block of
+ * every piece in progress, so several unchoked peers can fill different blocks of the same piece at once. Blocks are
+ * written to their place in the file as they arrive rather than assembled in memory, and each piece's PieceVerifier
+ * hashes them as they come, so the piece is ready to be checked the moment its last block lands.
+ *
+ * All methods are synchronized, since handlers on every PeerEngine thread share one picker.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class PiecePicker {
+
+	/**
+	 * The size of every block we request, except possibly the last block of the last piece.
+	 */
+	public static final int BLOCK_SIZE = 16384;
+
+	/**
+	 * A block that nobody has requested yet (or whose request was abandoned).
+	 */
+	private static final byte FREE = 0;
+
+	/**
+	 * A block that has been requested from a peer and hasn't arrived yet.
+	 */
+	private static final byte REQUESTED = 1;
+
+	/**
+	 * A block that has arrived and been copied into the piece's buffer.
+	 */
+	private static final byte RECEIVED = 2;
+
+	/**
+	 * A piece that is being downloaded, possibly from several peers.
+	 */
+	public class PartialPiece {
+
+		int index;
+
+		int length;
+
+		/**
+		 * FREE, REQUESTED or RECEIVED for every block of the piece. Guarded by the PiecePicker.
+		 */
+		byte[] blockStates;
+
+		/**
+		 * How many peers each REQUESTED block has been requested from: one, or more in endgame. The block is only
+		 * FREE again once none of them will send it. Guarded by the PiecePicker.
+		 */
+		short[] requesters;
+
+		/**
+		 * The number of blocks in the RECEIVED state.
+		 */
+		int blocksReceived;
+
+		/**
+		 * Hashes the piece's blocks as they arrive.
+		 */
+		private PieceVerifier verifier;
+
+		PartialPiece(int index, int length) {
+			this.index = index;
+			this.length = length;
+			this.blockStates = new byte[(length + BLOCK_SIZE - 1) / BLOCK_SIZE];
+			this.requesters = new short[blockStates.length];
+			this.blocksReceived = 0;
+			this.verifier = new PieceVerifier(torrentInfo.piece_hashes[index], length);
+		}
+
+		int blockLength(int block) {
+			return Math.min(BLOCK_SIZE, length - block * BLOCK_SIZE);
+		}
+
+		/**
+		 * Writes a block to the file and hands it to the piece's verifier.
+		 * @param block
+		 * @param data
+		 * @return true once every block of the piece has been hashed.
+		 * @throws IOException
+		 */
+		boolean store(int block, ByteBuffer data) throws IOException {
+			ByteBuffer hashView = data.duplicate();
+			manager.fa.writeBlock(index, block * BLOCK_SIZE, data);
+			return verifier.update(block * BLOCK_SIZE, hashView);
+		}
+
+		/**
+		 * Finishes the piece's hash and compares it with the one from the torrent.
+		 * @return true if the piece is valid.
+		 */
+		boolean verify() {
+			return verifier.verify();
+		}
+	}
+
+	private Manager manager;
+
+	private TorrentInfo torrentInfo;
+
+	/**
+	 * The pieces currently being downloaded, keyed by index, oldest first so that started pieces are finished first.
+	 */
+	private LinkedHashMap<Integer, PartialPiece> inProgress;
+	
+	/**
+	 * Set once every block we still need has been requested from somebody. From then on, blocks already requested
+	 * from one peer are requested from every other peer that has them too, so the download isn't held up by the
+	 * slowest peer; the duplicates are cancelled as soon as each block arrives.
+	 */
+	private boolean endgame;
+	
+	/**
+	 * The blocks we still need that aren't requested from anybody: every block of a needed piece nobody has started,
+	 * and every FREE block of a piece in progress. Endgame starts when it reaches 0.
+	 */
+	private int unrequestedBlocks;
+
+	public PiecePicker(Manager manager, TorrentInfo torrentInfo) {
+		this.manager = manager;
+		this.torrentInfo = torrentInfo;
+		this.inProgress = new LinkedHashMap<Integer, PartialPiece>();
+		this.endgame = false;
+		recount();
+	}
+	
+	/**
+	 * Counts the unrequested blocks again from scratch, for when Manager.myPieces has been replaced by the pieces
+	 * we already had on disk.
+	 */
+	public synchronized void recount() {
+		unrequestedBlocks = 0;
+		for (int i = 0; i < manager.myPieces.length; i++) {
+			if (!manager.myPieces[i] && !manager.piecesInProg[i])
+				unrequestedBlocks += (pieceLength(i) + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		}
+		for (PartialPiece piece : inProgress.values()) {
+			for (byte state : piece.blockStates) {
+				if (state == FREE)
+					unrequestedBlocks++;
+			}
+		}
+	}
+
+	/**
+	 * Calculates the length of a piece (it'll typically just be the regular piece length, but if it's the last
+	 * piece it's going to be a bit smaller).
+	 * @param pieceIndex
+	 * @return
+	 */
+	public int pieceLength(int pieceIndex) {
+		if (pieceIndex == torrentInfo.piece_hashes.length - 1 && torrentInfo.file_length % torrentInfo.piece_length != 0)
+			return (int) (torrentInfo.file_length % torrentInfo.piece_length);
+		return torrentInfo.piece_length;
+	}
+
+	/**
+	 * Picks the next block to request from a peer: first a free block of a piece already in progress that the peer
+	 * has, otherwise the first block of the rarest piece the peer has that nobody has started yet. In endgame, a
+	 * block already requested from another peer.
+	 * @param peer
+	 * @param alreadyRequested the blocks already requested from this peer, which are never picked again.
+	 * @return a request for the block, which is now marked as requested, or null if the peer has nothing we can ask for.
+	 */
+	public synchronized RequestMessage pickBlock(Peer peer, ArrayList<RequestMessage> alreadyRequested) {
+		for (PartialPiece piece : inProgress.values()) {
+			if (!peer.availablePieces.get(piece.index))
+				continue;
+			for (int block = 0; block < piece.blockStates.length; block++) {
+				if (piece.blockStates[block] == FREE)
+					return request(piece, block);
+			}
+		}
+
+		int rarest = manager.availability.rarestPiece(peer, manager.piecesInProg);
+		if (rarest != -1) {
+			PartialPiece piece = new PartialPiece(rarest, pieceLength(rarest));
+			inProgress.put(rarest, piece);
+			manager.piecesInProg[rarest] = true;
+			return request(piece, 0);
+		}
+		
+		if (!endgame && unrequestedBlocks <= 0) {
+			System.out.println("Every remaining block has been requested, entering endgame mode.");
+			endgame = true;
+		}
+		if (endgame) {
+			for (PartialPiece piece : inProgress.values()) {
+				if (!peer.availablePieces.get(piece.index))
+					continue;
+				for (int block = 0; block < piece.blockStates.length; block++) {
+					if (piece.blockStates[block] == REQUESTED && !contains(alreadyRequested, piece.index, block * BLOCK_SIZE))
+						return request(piece, block);
+				}
+			}
+		}
+		return null;
+	}
+	
+	private static boolean contains(ArrayList<RequestMessage> requests, int index, int begin) {
+		for (RequestMessage request : requests) {
+			if (request.index == index && request.begin == begin)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @return true once every block we still need has been requested from at least one peer.
+	 */
+	public synchronized boolean isEndgame() {
+		return endgame;
+	}
+
+	/**
+	 * Marks a block as requested from one more peer and builds the request for it.
+	 */
+	private RequestMessage request(PartialPiece piece, int block) {
+		if (piece.blockStates[block] == FREE)
+			unrequestedBlocks--;
+		piece.blockStates[block] = REQUESTED;
+		piece.requesters[block]++;
+		return new RequestMessage(piece.index, block * BLOCK_SIZE, piece.blockLength(block));
+	}
+
+	/**
+	 * Returns true if the peer has any piece we don't have yet, whether or not all of its blocks are taken.
+	 * @param peer
+	 * @return
+	 */
+	public synchronized boolean peerHasNeededPiece(Peer peer) {
+		return peer.availablePieces.hasAnyNotIn(manager.havePieces);
+	}
+
+	/**
+	 * Marks a received block as received and writes it to the file. The disk write and hashing happen outside the
+	 * picker's lock.
+	 * @param index
+	 * @param begin
+	 * @param block
+	 * @return the piece, if this was its last missing block, otherwise null.
+	 * @throws IOException if the block couldn't be written.
+	 */
+	public PartialPiece blockReceived(int index, int begin, ByteBuffer block) throws IOException {
+		PartialPiece piece;
+		int b;
+		synchronized (this) {
+			piece = inProgress.get(index);
+			if (piece == null || begin % BLOCK_SIZE != 0)
+				return null;
+			b = begin / BLOCK_SIZE;
+			if (b >= piece.blockStates.length || piece.blockStates[b] == RECEIVED || block.remaining() != piece.blockLength(b))
+				return null;
+			if (piece.blockStates[b] == FREE)
+				unrequestedBlocks--;
+			piece.blockStates[b] = RECEIVED;
+			piece.requesters[b] = 0;
+			piece.blocksReceived++;
+		}
+		return piece.store(b, block) ? piece : null;
+	}
+
+	/**
+	 * Puts blocks that were requested from a peer but will never arrive from it (we were choked or the peer
+	 * disconnected) back up for grabs, unless they're still requested from another peer in endgame.
+	 * @param requests
+	 */
+	public synchronized void releaseBlocks(ArrayList<RequestMessage> requests) {
+		for (RequestMessage request : requests) {
+			PartialPiece piece = inProgress.get(request.index);
+			if (piece == null)
+				continue;
+			int b = request.begin / BLOCK_SIZE;
+			if (piece.blockStates[b] == REQUESTED && --piece.requesters[b] <= 0) {
+				piece.requesters[b] = 0;
+				piece.blockStates[b] = FREE;
+				unrequestedBlocks++;
+			}
+		}
+	}
+
+	/**
+	 * Forgets a piece that has been verified and saved.
+	 * @param index
+	 */
+	public synchronized void pieceFinished(int index) {
+		inProgress.remove(index);
+	}
+
+	/**
+	 * Frees every block of a piece that failed verification, or couldn't be written, so it is downloaded again.
+	 * @param index
+	 */
+	public synchronized void pieceFailed(int index) {
+		PartialPiece piece = inProgress.get(index);
+		if (piece == null)
+			return;
+		piece.verifier.reset();
+		for (int b = 0; b < piece.blockStates.length; b++) {
+			if (piece.blockStates[b] != FREE)
+				unrequestedBlocks++;
+			piece.blockStates[b] = FREE;
+			piece.requesters[b] = 0;
+		}
+		piece.blocksReceived = 0;
+	}
+}
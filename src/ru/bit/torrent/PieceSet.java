@@ -0,0 +1,203 @@
+package ru.bit.torrent;
+
+/**
+ * A set of piece indexes packed into a {@code long[]}, one bit per piece, in the same order as a BITFIELD message:
+ * piece 0 is the most significant bit of the first word. A bitfield off the wire can then be loaded eight bytes at a
+ * time, and questions like "which pieces does this peer have that we don't" are answered a word at a time instead of
+ * a piece at a time.
+ *
+ * The set holds a fixed number of pieces, the torrent's piece count, so an index or bitfield off the wire can't make
+ * it grow, and no bit past the last piece is ever set.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class PieceSet {
+
+	/**
+	 * The pieces in this set; piece i is bit (63 - i % 64) of word i / 64.
+	 */
+	private long[] words;
+
+	/**
+	 * The number of pieces the set can hold.
+	 */
+	private final int numPieces;
+
+	/**
+	 * @param numPieces the number of pieces the set can hold.
+	 */
+	public PieceSet(int numPieces) {
+		this.numPieces = numPieces;
+		this.words = new long[(numPieces + 63) >>> 6];
+	}
+
+	/**
+	 * @param pieces
+	 * @return a set holding every index that is true in {@code pieces}.
+	 */
+	public static PieceSet fromBooleans(boolean[] pieces) {
+		PieceSet set = new PieceSet(pieces.length);
+		for (int i = 0; i < pieces.length; i++) {
+			if (pieces[i])
+				set.set(i);
+		}
+		return set;
+	}
+
+	private static long mask(int piece) {
+		return 1L << (63 - (piece & 63));
+	}
+
+	/**
+	 * @return the number of pieces the set can hold.
+	 */
+	public int size() {
+		return numPieces;
+	}
+
+	/**
+	 * @param piece
+	 * @return true if {@code piece} is an index the set can hold.
+	 */
+	public boolean inRange(int piece) {
+		return piece >= 0 && piece < numPieces;
+	}
+
+	/**
+	 * Replaces the contents of the set with the pieces in a bitfield, as sent in a BITFIELD message. The spare bits
+	 * at the end of the last byte are left out.
+	 * @param bitfield
+	 * @return false, leaving the set as it was, if the bitfield isn't exactly one bit per piece rounded up to a byte.
+	 */
+	public synchronized boolean setBitfield(byte[] bitfield) {
+		if (bitfield.length != (numPieces + 7) >>> 3)
+			return false;
+		long[] loaded = new long[words.length];
+		for (int i = 0; i < bitfield.length; i++)
+			loaded[i >>> 3] |= (bitfield[i] & 0xFFL) << (56 - ((i & 7) << 3));
+		if ((numPieces & 63) != 0)
+			loaded[loaded.length - 1] &= -1L << (64 - (numPieces & 63));
+		this.words = loaded;
+		return true;
+	}
+
+	/**
+	 * Adds a piece to the set.
+	 * @param piece
+	 * @return false if the piece was already in the set.
+	 * @throws IndexOutOfBoundsException if the piece isn't one the set can hold.
+	 */
+	public synchronized boolean set(int piece) {
+		if (!inRange(piece))
+			throw new IndexOutOfBoundsException("Piece " + piece + " out of " + numPieces);
+		int w = piece >>> 6;
+		if ((words[w] & mask(piece)) != 0)
+			return false;
+		words[w] |= mask(piece);
+		return true;
+	}
+
+	/**
+	 * Removes a piece from the set.
+	 * @param piece
+	 */
+	public synchronized void clear(int piece) {
+		if (inRange(piece))
+			words[piece >>> 6] &= ~mask(piece);
+	}
+
+	/**
+	 * @param piece
+	 * @return true if the piece is in the set.
+	 */
+	public synchronized boolean get(int piece) {
+		return inRange(piece) && (words[piece >>> 6] & mask(piece)) != 0;
+	}
+
+	/**
+	 * @return the number of pieces in the set.
+	 */
+	public synchronized int cardinality() {
+		int count = 0;
+		for (long word : words)
+			count += Long.bitCount(word);
+		return count;
+	}
+
+	/**
+	 * @return true if the set is empty.
+	 */
+	public synchronized boolean isEmpty() {
+		for (long word : words) {
+			if (word != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param from
+	 * @return the lowest piece in the set at or after {@code from}, or -1 if there is none.
+	 */
+	public int nextSetBit(int from) {
+		return nextSetBitAndNot(null, from);
+	}
+
+	/**
+	 * Finds the lowest piece at or after {@code from} that is in this set but not in {@code other}, a word at a time.
+	 * @param other the pieces to leave out, or null to leave none out.
+	 * @param from
+	 * @return the piece, or -1 if there is none.
+	 */
+	public int nextSetBitAndNot(PieceSet other, int from) {
+		//work on snapshots rather than holding both locks, so two sets compared against each other can't deadlock
+		long[] words = words();
+		long[] theirs = (other == null) ? null : other.words();
+		int w = from >>> 6;
+		if (from < 0 || w >= words.length)
+			return -1;
+		long word = andNot(words[w], theirs, w) & (-1L >>> (from & 63));
+		while (true) {
+			if (word != 0)
+				return (w << 6) + Long.numberOfLeadingZeros(word);
+			if (++w >= words.length)
+				return -1;
+			word = andNot(words[w], theirs, w);
+		}
+	}
+
+	/**
+	 * @param other
+	 * @return true if this set has any piece {@code other} doesn't.
+	 */
+	public boolean hasAnyNotIn(PieceSet other) {
+		return nextSetBitAndNot(other, 0) != -1;
+	}
+
+	private static long andNot(long word, long[] theirs, int w) {
+		if (theirs == null || w >= theirs.length)
+			return word;
+		return word & ~theirs[w];
+	}
+
+	/**
+	 * @return the backing words, read under this set's lock so another thread always sees a fully loaded array.
+	 */
+	private synchronized long[] words() {
+		return words;
+	}
+
+	/**
+	 * Lists the pieces in the set, e.g. "0, 3, 7, ".
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = nextSetBit(0); i != -1; i = nextSetBit(i + 1))
+			sb.append(i).append(", ");
+		return sb.toString();
+	}
+}
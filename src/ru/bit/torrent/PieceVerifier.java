@@ -0,0 +1,197 @@
+package ru.bit.torrent;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Checks one piece against its SHA-1 from the torrent while the piece is still arriving. Blocks are fed to the digest
+ * as they are received. A block that arrives ahead of its turn is kept until the blocks before it have been hashed,
+ * and only those are buffered. By the time the last block lands, all that's left is to finish the digest.
+ *
+ * SHA-1 digests are expensive to look up, so they are pooled and reused from piece to piece.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class PieceVerifier {
+
+	/**
+	 * The length of a SHA-1 hash.
+	 */
+	public static final int HASH_LENGTH = 20;
+
+	/**
+	 * Idle digests, shared by every verifier.
+	 */
+	private static final ConcurrentLinkedQueue<MessageDigest> digests = new ConcurrentLinkedQueue<MessageDigest>();
+
+	/**
+	 * The piece's hash from the torrent (one of TorrentInfo.piece_hashes, which is never modified).
+	 */
+	private final ByteBuffer expected;
+
+	/**
+	 * The length of the piece.
+	 */
+	private final int length;
+
+	/**
+	 * The digest of the piece so far, or null once it has been finished and given back.
+	 */
+	private MessageDigest digest;
+
+	/**
+	 * How many bytes, from the start of the piece, have been hashed.
+	 */
+	private int hashed;
+
+	/**
+	 * Copies of the blocks that arrived ahead of their turn, keyed by offset.
+	 */
+	private TreeMap<Integer, ByteBuffer> outOfOrder;
+
+	/**
+	 * Where the finished digest is put to be compared.
+	 */
+	private byte[] result;
+
+	/**
+	 * @param expected the piece's hash from the torrent.
+	 * @param length the piece's length.
+	 */
+	public PieceVerifier(ByteBuffer expected, int length) {
+		this.expected = expected;
+		this.length = length;
+		this.outOfOrder = new TreeMap<Integer, ByteBuffer>();
+		this.result = new byte[HASH_LENGTH];
+		this.digest = acquireDigest();
+	}
+
+	/**
+	 * Feeds a block to the digest, or keeps a copy of it if the blocks before it haven't all been hashed yet.
+	 * @param begin the block's offset within the piece
+	 * @param block the block's bytes; its position is left untouched.
+	 * @return true once the whole piece has been hashed.
+	 */
+	public synchronized boolean update(int begin, ByteBuffer block) {
+		if (begin < hashed || outOfOrder.containsKey(begin))
+			return isComplete();
+		if (begin > hashed) {
+			ByteBuffer copy = ByteBuffer.allocate(block.remaining());
+			copy.put(block.duplicate());
+			copy.flip();
+			outOfOrder.put(begin, copy);
+			return false;
+		}
+		hashed += block.remaining();
+		digest.update(block.duplicate());
+		//hash whatever was waiting on this block
+		ByteBuffer next;
+		while ((next = outOfOrder.remove(hashed)) != null) {
+			hashed += next.remaining();
+			digest.update(next);
+		}
+		return isComplete();
+	}
+
+	/**
+	 * @return true once the whole piece has been hashed.
+	 */
+	public synchronized boolean isComplete() {
+		return hashed >= length;
+	}
+
+	/**
+	 * Finishes the digest and compares it with the piece's hash. The digest goes back to the pool, so the verifier
+	 * can't be used again until it is reset.
+	 * @return true if the piece is valid.
+	 */
+	public synchronized boolean verify() {
+		if (digest == null || !isComplete())
+			return false;
+		try {
+			digest.digest(result, 0, HASH_LENGTH);
+		} catch (DigestException e) {
+			return false;
+		} finally {
+			releaseDigest(digest);
+			digest = null;
+		}
+		return matches(result, expected);
+	}
+
+	/**
+	 * Starts over, for a piece that is being downloaded again.
+	 */
+	public synchronized void reset() {
+		if (digest == null)
+			digest = acquireDigest();
+		else
+			digest.reset();
+		hashed = 0;
+		outOfOrder.clear();
+	}
+
+	/**
+	 * Gives the digest back to the pool if the piece is being abandoned before it was verified.
+	 */
+	public synchronized void release() {
+		if (digest != null) {
+			releaseDigest(digest);
+			digest = null;
+		}
+		outOfOrder.clear();
+	}
+
+	/**
+	 * Checks a whole piece that is already in memory.
+	 * @param expected the piece's hash from the torrent.
+	 * @param piece the piece's bytes; its position is left untouched.
+	 * @return true if the piece is valid.
+	 */
+	public static boolean verify(ByteBuffer expected, ByteBuffer piece) {
+		MessageDigest digest = acquireDigest();
+		try {
+			digest.update(piece.duplicate());
+			return matches(digest.digest(), expected);
+		} finally {
+			releaseDigest(digest);
+		}
+	}
+
+	/**
+	 * Compares a hash with one of the torrent's piece hashes without copying it.
+	 */
+	static boolean matches(byte[] hash, ByteBuffer expected) {
+		if (expected.remaining() != HASH_LENGTH)
+			return false;
+		int base = expected.position();
+		for (int i = 0; i < HASH_LENGTH; i++) {
+			if (hash[i] != expected.get(base + i))
+				return false;
+		}
+		return true;
+	}
+
+	private static MessageDigest acquireDigest() {
+		MessageDigest digest = digests.poll();
+		if (digest != null)
+			return digest;
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available.", e);
+		}
+	}
+
+	private static void releaseDigest(MessageDigest digest) {
+		digest.reset();
+		digests.offer(digest);
+	}
+}
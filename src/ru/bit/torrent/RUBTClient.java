@@ -78,7 +78,7 @@ public class RUBTClient {
 		}
 		
 		try{
-			System.out.println("Enter \"quit\" to exit at any time.");
+			System.out.println("Enter \"quit\" to exit at any time, or \"limit up|down global|torrent|peer <kB/s>\" to limit traffic.");
 			Thread.sleep(2000L);
 			Manager manager = new Manager(this.fileName, this.torrentInfo, this.peerID);
 		}catch(IOException e){
@@ -16,6 +16,11 @@ public class RequestMessage extends Message {
 	
 	int index;
 	
+	/**
+	 * When this request was queued, in milliseconds. Used to measure the block's round trip.
+	 */
+	long queuedAt;
+	
 	public RequestMessage(int index, int begin, int length){
 		super(Message.REQUEST);
 		this.index = index;
@@ -23,19 +28,26 @@ public class RequestMessage extends Message {
 		this.length = length;
 	}
 	
+	@Override
+	public int encodedLength(){
+		return 17;
+	}
+	
 	/**
-	 * Generates a RequestMessage object in byte array format. 
-	 * @return
+	 * Writes a RequestMessage object in byte format.
 	 */
 	@Override
-	public byte[] generateByteArray(){
-		ByteBuffer bb = ByteBuffer.allocate(17);
+	public void encode(ByteBuffer bb){
 		bb.putInt(13);
 		bb.put(this.id);
 		bb.putInt(this.index);
 		bb.putInt(this.begin);
 		bb.putInt(this.length);
-		return bb.array();
+	}
+	
+	@Override
+	boolean isBlock(byte id, int index, int begin) {
+		return id == Message.REQUEST && this.index == index && this.begin == begin;
 	}
 	
 	public String toString(){
@@ -0,0 +1,256 @@
+package ru.bit.torrent;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The fast-resume record kept next to the download (<download file> + ".resume"). It holds the pieces we had when it
+ * was written, along with the download's size and modification time(s) and a checksum of the record itself.
+ *
+ * A clean record is written when nothing is being written to the download: once the pieces have been checked on
+ * start-up, and when the client exits, after the download has been closed. On start-up a clean record is trusted as
+ * long as the download hasn't changed since, so the pieces don't have to be hashed again.
+ *
+ * While pieces are being completed the record is also rewritten every RESUME_SAVE_INTERVAL, so a crash doesn't lose
+ * the whole download. The next block written changes the modification time, so such a record can't be checked against
+ * it; instead only the pieces it lists are hashed on start-up (see FileAccess.tallyPieces), which is still far fewer
+ * than all of them early on, and costs no more than a full check later.
+ *
+ * If the record is missing, damaged, for another torrent, or a clean record's download has been touched since,
+ * FileAccess falls back to re-checking every piece.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class ResumeData implements Runnable {
+
+	/**
+	 * Identifies a fast-resume record ("RUBR").
+	 */
+	private static final int MAGIC = 0x52554252;
+
+	private static final int VERSION = 2;
+
+	private Manager manager;
+
+	private TorrentInfo torrentInfo;
+
+	/**
+	 * The file(s) the torrent downloads to.
+	 */
+	private File[] downloads;
+
+	/**
+	 * The record itself.
+	 */
+	private File file;
+
+	/**
+	 * True once a piece has been completed since the record was last written.
+	 */
+	private volatile boolean dirty;
+
+	/**
+	 * True if the record last loaded was written while downloading, so the pieces it lists have to be checked.
+	 */
+	private boolean unchecked;
+
+	/**
+	 * Set by stop(); the writer waits on the record between saves.
+	 */
+	private boolean stopped;
+
+	/**
+	 * @param manager
+	 * @param torrentInfo
+	 */
+	public ResumeData(Manager manager, TorrentInfo torrentInfo) {
+		this.manager = manager;
+		this.torrentInfo = torrentInfo;
+		this.downloads = FileAccess.downloadFiles(manager.getDlPath(), torrentInfo);
+		this.file = new File(manager.getDlPath() + ".resume");
+	}
+
+	/**
+	 * Reads the record back.
+	 * @return the pieces we had when the record was written, or null if the record can't be used. If needsCheck()
+	 * is then true, the pieces have to be hashed before they're trusted.
+	 */
+	public boolean[] load() {
+		unchecked = false;
+		if (!file.exists())
+			return null;
+		byte[] record;
+		try {
+			record = Files.readAllBytes(file.toPath());
+		} catch (IOException e) {
+			System.err.println("Unable to read " + file + ": " + e.getMessage());
+			return null;
+		}
+		if (record.length < 4)
+			return null;
+		ByteBuffer in = ByteBuffer.wrap(record);
+		CRC32 crc = new CRC32();
+		crc.update(record, 0, record.length - 4);
+		if ((int) crc.getValue() != in.getInt(record.length - 4)) {
+			System.out.println("Fast-resume record is damaged, ignoring it.");
+			return null;
+		}
+		try {
+			if (in.getInt() != MAGIC || in.getInt() != VERSION)
+				return null;
+			byte[] infoHash = new byte[in.getInt()];
+			in.get(infoHash);
+			if (!ByteBuffer.wrap(infoHash).equals(torrentInfo.info_hash.duplicate()))
+				return null;
+			boolean clean = in.get() != 0;
+			long length = in.getLong();
+			long modified = in.getLong();
+			if (clean && (length != length() || modified != lastModified())) {
+				System.out.println("Download has changed since the fast-resume record was written, ignoring it.");
+				return null;
+			}
+			int numPieces = in.getInt();
+			if (numPieces != torrentInfo.piece_hashes.length)
+				return null;
+			byte[] bitfield = new byte[(numPieces + 7) / 8];
+			in.get(bitfield);
+			boolean[] pieces = new boolean[numPieces];
+			for (int i = 0; i < numPieces; i++)
+				pieces[i] = (bitfield[i >>> 3] & (0x80 >>> (i & 7))) != 0;
+			unchecked = !clean;
+			return pieces;
+		} catch (RuntimeException e) {
+			//BufferUnderflowException, or a NegativeArraySizeException from a bad hash length
+			return null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the record last loaded was written while downloading, so the pieces it listed have to be
+	 * hashed before they're trusted.
+	 */
+	public boolean needsCheck() {
+		return unchecked;
+	}
+
+	/**
+	 * Writes the record. It is written to a temporary file first and moved into place, so a crash part way through
+	 * leaves the previous record rather than a damaged one.
+	 * @param pieces the pieces we have. Pieces must only be added to it once they've been written to the download.
+	 * @param clean true if nothing is being written to the download, so the record can be trusted for as long as the
+	 * download's size and modification time stay the same; false if the pieces must be checked on loading.
+	 * @throws IOException
+	 */
+	public synchronized void save(boolean[] pieces, boolean clean) throws IOException {
+		dirty = false;
+		long length = length();
+		long modified = lastModified();
+		byte[] bitfield = BitfieldMessage.convert(pieces.clone());
+		ByteBuffer infoHash = torrentInfo.info_hash.duplicate();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(41 + infoHash.remaining() + bitfield.length);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(infoHash.remaining());
+		while (infoHash.hasRemaining())
+			out.write(infoHash.get());
+		out.writeBoolean(clean);
+		out.writeLong(length);
+		out.writeLong(modified);
+		out.writeInt(pieces.length);
+		out.write(bitfield);
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeInt((int) crc.getValue());
+		out.flush();
+
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(temp);
+		try {
+			bytes.writeTo(fos);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Notes that a piece has been completed, so the record is rewritten on the next interval.
+	 */
+	public void pieceCompleted() {
+		dirty = true;
+	}
+
+	/**
+	 * Stops the periodic saves. Manager.exit() writes the last record itself once the download has been closed.
+	 * The writer isn't interrupted, as that would close a FileChannel it's forcing.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		notifyAll();
+	}
+
+	/**
+	 * Rewrites the record every RESUME_SAVE_INTERVAL, if any pieces have been completed since it was last written.
+	 */
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				long wake = System.currentTimeMillis() + Manager.RESUME_SAVE_INTERVAL;
+				long wait;
+				while (!stopped && (wait = wake - System.currentTimeMillis()) > 0) {
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (stopped)
+					return;
+			}
+			if (!dirty)
+				continue;
+			try {
+				//the pieces listed must be on disk; their blocks were written before they were marked as ours
+				manager.fa.force();
+				save(manager.myPieces, false);
+			} catch (IOException e) {
+				System.err.println("Unable to write " + file + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return the total length of the download's files.
+	 */
+	private long length() {
+		long length = 0;
+		for (File download : downloads)
+			length += download.length();
+		return length;
+	}
+
+	/**
+	 * @return the download's modification time, to the precision the file system keeps. For a multi-file torrent, a
+	 * hash of every file's modification time, so touching any of them changes it. A file that hasn't been created yet
+	 * (see FileAccess.ALLOCATE_LAZY) counts as 0.
+	 * @throws IOException
+	 */
+	private long lastModified() throws IOException {
+		long modified = 0;
+		for (File download : downloads)
+			modified = 31 * modified + (download.exists() ? Files.getLastModifiedTime(download.toPath()).to(TimeUnit.NANOSECONDS) : 0);
+		return modified;
+	}
+}
@@ -4,8 +4,17 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 
+/**
+ * Reads commands from the console while the client runs:
+ * 
+ * quit - exits.
+ * limit up|down global|torrent|peer <kB/s> - changes an upload or download limit; 0 removes it.
+ * limits - prints the limits.
+ */
 public class RuntimeCommands implements Runnable {
 	
+	private static final String USAGE = "Commands: quit, limits, limit up|down global|torrent|peer <kB/s> (0 for unlimited)";
+	
 	private Manager manager;
 	
 	public RuntimeCommands(Manager manager) {
@@ -19,6 +28,7 @@ public class RuntimeCommands implements Runnable {
 			userInput = br.readLine();
 			while (!userInput.equals(null) && !userInput.equals("quit"))
 			{
+				command(userInput.trim());
 				userInput = br.readLine();
 			}	
 			manager.exit();
@@ -30,4 +40,29 @@ public class RuntimeCommands implements Runnable {
 		}
 		
 	}
+	
+	/**
+	 * Carries out any command but quit.
+	 * @param command
+	 */
+	private void command(String command) {
+		String[] words = command.split("\\s+");
+		if (words[0].equals("limits")) {
+			System.out.println("Rate limits: " + manager.describeRateLimits());
+		} else if (words[0].equals("limit") && words.length == 4 && (words[1].equals("up") || words[1].equals("down"))) {
+			try {
+				long rate = Long.parseLong(words[3]) * 1024;
+				if (rate < 0)
+					throw new NumberFormatException();
+				manager.setRateLimit(words[1].equals("up"), words[2], rate);
+				System.out.println("Rate limits: " + manager.describeRateLimits());
+			} catch (NumberFormatException e) {
+				System.out.println("Not a rate: " + words[3]);
+			} catch (IllegalArgumentException e) {
+				System.out.println(e.getMessage() + " " + USAGE);
+			}
+		} else if (command.length() > 0) {
+			System.out.println(USAGE);
+		}
+	}
 }
@@ -2,6 +2,12 @@ package ru.bit.torrent;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
 
 /**
  * 
@@ -15,7 +21,40 @@ public class SocketListener implements Runnable {
 	
 	private Manager manager;
 	
-	private ServerSocket listeningSocket;
+	private ServerSocketChannel listeningSocket;
+	
+	/**
+	 * How long (ms) a connection has to send its handshake before it's dropped.
+	 */
+	private static final long HANDSHAKE_TIMEOUT = 10000L;
+	
+	/**
+	 * How long (ms) a single select may block, which bounds how late stale handshakes are dropped.
+	 */
+	private static final long SELECT_TIMEOUT = 1000L;
+	
+	/**
+	 * The listening socket and every connection still sending its handshake are registered with this selector, so a
+	 * connection that sends its handshake slowly, or never, doesn't hold up the others.
+	 */
+	private Selector selector;
+	
+	/**
+	 * A connection's handshake, as far as it has arrived.
+	 */
+	private static class Handshake {
+		
+		final ByteBuffer buffer = ByteBuffer.allocate(68);
+		
+		/**
+		 * When (ms) the connection was accepted.
+		 */
+		final long accepted;
+		
+		Handshake(long accepted) {
+			this.accepted = accepted;
+		}
+	}
 	
 	public SocketListener(Manager manager, TorrentInfo torrentInfo)
 	{
@@ -46,11 +85,12 @@ public class SocketListener implements Runnable {
 		} catch (NullPointerException npe) {
 			// this will likely be called. Let's not print a stack trace.
 		}
+		if (selector != null)
+			selector.wakeup();
 	}
 
 	@Override
 	public void run() {
-		Peer potentialPeer = null;
 		int i;
 		for(i=6881; i <=65536; i++)
 		{
@@ -58,43 +98,129 @@ public class SocketListener implements Runnable {
 				break;
 	    }
 		manager.setListeningPort(i);
-		ServerSocket listeningSocket = null;
+		ServerSocketChannel listeningSocket = null;
 		try {
-			listeningSocket = new ServerSocket(i);
+			listeningSocket = ServerSocketChannel.open();
+			listeningSocket.socket().bind(new InetSocketAddress(i));
+			listeningSocket.configureBlocking(false);
+			this.selector = Selector.open();
+			listeningSocket.register(selector, SelectionKey.OP_ACCEPT);
 			this.listeningSocket = listeningSocket;
 		} catch (IOException e1) {
 			// TODO Auto-generated catch block
 			e1.printStackTrace();
+			return;
 		}
 		
-		Socket clientSocket = null;
-		while(!manager.stopThreads) //need to break at some point, and close inputstream
+		while(!manager.stopThreads)
 		{
-			try {	
-				clientSocket = listeningSocket.accept();
-				DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
-				byte[] handshake = new byte[68];
-				dis.readFully(handshake);
-				byte[] peerID = new byte[20];
-				System.arraycopy(handshake, handshake.length-20, peerID, 0, 20);
-				potentialPeer = new Peer(clientSocket.getPort(), clientSocket.getInetAddress().getHostAddress(), peerID);
-				potentialPeer.setSocket(clientSocket);
-				potentialPeer.receivedHandshake = true;
-				System.out.println("Received handshake from peer " + potentialPeer);
-				byte[] peerHash = new byte[20];
-				System.arraycopy(handshake, (handshake.length-41), peerHash, 0, 20);
-				if(!Tracker.containsPeer(manager.peers, potentialPeer)){
-					manager.peers.add(potentialPeer);
-					Thread messageHandler = new Thread(new MessageHandler(manager, potentialPeer, torrentInfo));
-					Runtime.getRuntime().addShutdownHook(messageHandler);
-					potentialPeer.setMessageHandler(messageHandler);
-					messageHandler.start();
-				} else {
-					System.out.println("We're already connected to this peer.");
+			try {
+				selector.select(SELECT_TIMEOUT);
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				try {
+					if (key.isValid() && key.isAcceptable())
+						accept();
+					else if (key.isValid() && key.isReadable())
+						readHandshake(key);
+				} catch (IOException e) {
+					//no print stacktrace
+					drop(key);
 				}
+			}
+			dropStale(System.currentTimeMillis());
+		}
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() != null)
+				drop(key);
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			//won't happen
+		}
+	}
+	
+	/**
+	 * Accepts every waiting connection and starts waiting for its handshake.
+	 * @throws IOException
+	 */
+	private void accept() throws IOException {
+		SocketChannel clientSocket;
+		while ((clientSocket = listeningSocket.accept()) != null) {
+			try {
+				clientSocket.configureBlocking(false);
+				clientSocket.register(selector, SelectionKey.OP_READ, new Handshake(System.currentTimeMillis()));
 			} catch (IOException e) {
-				//no print stacktrace
+				clientSocket.close();
 			}
 		}
 	}
+	
+	/**
+	 * Reads what has arrived of a connection's handshake, and once it's all there checks it and hands the connection
+	 * to the Manager. Anything the peer sent after its handshake is left in the socket for its MessageHandler.
+	 * @param key
+	 * @throws IOException
+	 */
+	private void readHandshake(SelectionKey key) throws IOException {
+		SocketChannel clientSocket = (SocketChannel) key.channel();
+		ByteBuffer handshake = ((Handshake) key.attachment()).buffer;
+		if (clientSocket.read(handshake) == -1)
+			throw new EOFException();
+		if (handshake.hasRemaining())
+			return;
+		//the engine takes the channel from here
+		key.cancel();
+		handshake.flip();
+		byte[] peerID = new byte[20];
+		System.arraycopy(handshake.array(), handshake.capacity()-20, peerID, 0, 20);
+		if (!Message.receiveHandshake(handshake, torrentInfo.info_hash.array())) {
+			System.err.println("Handshake from " + clientSocket.socket().getInetAddress().getHostAddress() + " unsuccessful. Info hashes did not match.");
+			clientSocket.close();
+			return;
+		}
+		Socket socket = clientSocket.socket();
+		Peer potentialPeer = new Peer(socket.getPort(), socket.getInetAddress().getHostAddress(), peerID, torrentInfo.piece_hashes.length);
+		potentialPeer.setChannel(clientSocket);
+		potentialPeer.receivedHandshake = true;
+		System.out.println("Received handshake from peer " + potentialPeer);
+		if(manager.peers.add(potentialPeer)){
+			manager.attachPeer(potentialPeer);
+		} else {
+			System.out.println("We're already connected to this peer.");
+			clientSocket.close();
+		}
+	}
+	
+	/**
+	 * Closes connections that haven't sent their whole handshake within HANDSHAKE_TIMEOUT.
+	 * @param now
+	 */
+	private void dropStale(long now) {
+		for (SelectionKey key : selector.keys()) {
+			Handshake handshake = (Handshake) key.attachment();
+			if (handshake != null && key.isValid() && now - handshake.accepted > HANDSHAKE_TIMEOUT)
+				drop(key);
+		}
+	}
+	
+	/**
+	 * Closes a connection that hasn't finished its handshake.
+	 * @param key
+	 */
+	private void drop(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			//nothing more to do
+		}
+	}
 }
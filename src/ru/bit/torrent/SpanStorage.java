@@ -0,0 +1,286 @@
+package ru.bit.torrent;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps a multi-file torrent's download in its files, which are treated as one contiguous stream of bytes in the
+ * order they're listed in the torrent. An absolute offset is mapped to a file by a binary search over the offset
+ * each file starts at, so finding the file costs O(log files); a read or write that crosses from one file into the
+ * next is split into one span per file.
+ *
+ * Only {@code maxOpen} files are kept open at once. Each open file counts the operations using it, and when another
+ * one is needed the least recently used file is closed, or, if it's still in use, as soon as the last operation on
+ * it finishes. Files are read and written with positional FileChannel calls, which need no lock.
+ *
+ * With lazy allocation (FileAccess.ALLOCATE_LAZY) a file, and its directory, is only created when a block is first
+ * written to it; until then reading from it fails.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class SpanStorage implements Storage {
+
+	/**
+	 * An open file.
+	 */
+	private static class Handle {
+
+		final FileChannel channel;
+
+		/**
+		 * How many operations are using the file. Guarded by the handles map.
+		 */
+		int refs;
+
+		/**
+		 * True once the handle has been evicted; it's closed when the last operation using it finishes.
+		 */
+		boolean retired;
+
+		Handle(FileChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	private File[] files;
+
+	/**
+	 * The offset, in the stream of every file, that each file starts at; one extra entry holds the total length.
+	 */
+	private long[] starts;
+
+	private final int maxOpen;
+
+	/**
+	 * How the files are allocated; see Manager.ALLOCATION_MODE.
+	 */
+	private final int allocation;
+
+	/**
+	 * The open files by index, least recently used first.
+	 */
+	private LinkedHashMap<Integer, Handle> handles;
+
+	/**
+	 * @param files the files of the download, in torrent order.
+	 * @param lengths the length of each file.
+	 * @param maxOpen the most files kept open at once.
+	 * @param allocation one of FileAccess's allocation modes.
+	 */
+	public SpanStorage(File[] files, long[] lengths, int maxOpen, int allocation) {
+		this.files = files;
+		this.starts = new long[files.length + 1];
+		for (int i = 0; i < files.length; i++)
+			starts[i + 1] = starts[i] + lengths[i];
+		this.maxOpen = maxOpen;
+		this.allocation = allocation;
+		this.handles = new LinkedHashMap<Integer, Handle>(16, 0.75f, true);
+	}
+
+	/**
+	 * Creates any file (and directory) that doesn't exist yet, and gives every existing file its length from the
+	 * torrent. Files allocated lazily are left until they're written, except empty ones, which never will be.
+	 * @throws IOException
+	 */
+	public void allocate() throws IOException {
+		for (int i = 0; i < files.length; i++) {
+			long length = starts[i + 1] - starts[i];
+			if (files[i].exists() ? files[i].length() == length : allocation == FileAccess.ALLOCATE_LAZY && length > 0)
+				continue;
+			create(i).close();
+		}
+	}
+
+	/**
+	 * Creates a file and its directory if need be and allocates it.
+	 * @return the file, open for reading and writing.
+	 */
+	private RandomAccessFile create(int file) throws IOException {
+		File parent = files[file].getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Unable to create directory " + parent + ".");
+		RandomAccessFile raf = new RandomAccessFile(files[file], "rw");
+		try {
+			//a lazily created file is still given its full length, sparsely, so its other blocks can be read back
+			FileAccess.allocate(raf, starts[file + 1] - starts[file],
+					allocation == FileAccess.ALLOCATE_LAZY ? FileAccess.ALLOCATE_SPARSE : allocation);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+		return raf;
+	}
+
+	public void read(long position, ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			int file = fileAt(position);
+			ByteBuffer span = span(dst, file, position);
+			Handle handle = acquire(file, false);
+			try {
+				long offset = position - starts[file];
+				while (span.hasRemaining()) {
+					int read = handle.channel.read(span, offset);
+					if (read == -1)
+						throw new EOFException(files[file] + " is shorter than the torrent says.");
+					offset += read;
+				}
+			} finally {
+				release(handle);
+			}
+			position += span.position() - dst.position();
+			dst.position(span.position());
+		}
+	}
+
+	public void write(long position, ByteBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			int file = fileAt(position);
+			ByteBuffer span = span(src, file, position);
+			Handle handle = acquire(file, true);
+			try {
+				long offset = position - starts[file];
+				while (span.hasRemaining())
+					offset += handle.channel.write(span, offset);
+			} finally {
+				release(handle);
+			}
+			position += span.position() - src.position();
+			src.position(span.position());
+		}
+	}
+
+	/**
+	 * Sends from a single file at a time; the caller keeps calling until the region has been sent.
+	 */
+	public long transferTo(long position, int length, WritableByteChannel target) throws IOException {
+		int file = fileAt(position);
+		Handle handle = acquire(file, false);
+		try {
+			long count = Math.min(length, starts[file + 1] - position);
+			return handle.channel.transferTo(position - starts[file], count, target);
+		} finally {
+			release(handle);
+		}
+	}
+
+	public void force() throws IOException {
+		ArrayList<Handle> open;
+		synchronized (handles) {
+			open = new ArrayList<Handle>(handles.values());
+			for (Handle handle : open)
+				handle.refs++;
+		}
+		for (Handle handle : open) {
+			try {
+				handle.channel.force(false);
+			} finally {
+				release(handle);
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		synchronized (handles) {
+			for (Handle handle : handles.values()) {
+				handle.retired = true;
+				if (handle.refs == 0)
+					closeQuietly(handle);
+			}
+			handles.clear();
+		}
+	}
+
+	/**
+	 * Finds the file holding {@code position}: the last file starting at or before it. Empty files start where the
+	 * next one does, so they're never picked.
+	 */
+	private int fileAt(long position) throws IOException {
+		if (position < 0 || position >= starts[files.length])
+			throw new EOFException("Position " + position + " is outside of the download (" + starts[files.length] + " bytes).");
+		int low = 0;
+		int high = files.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (starts[mid] <= position)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		return low;
+	}
+
+	/**
+	 * @return the part of {@code buffer} that falls within the file, as a view sharing its position.
+	 */
+	private ByteBuffer span(ByteBuffer buffer, int file, long position) {
+		ByteBuffer span = buffer.duplicate();
+		long inFile = starts[file + 1] - position;
+		if (span.remaining() > inFile)
+			span.limit(span.position() + (int) inFile);
+		return span;
+	}
+
+	/**
+	 * Finds a file's handle, opening the file if need be, and marks it in use. A lazily allocated file is created if
+	 * it's about to be written.
+	 */
+	private Handle acquire(int file, boolean write) throws IOException {
+		synchronized (handles) {
+			Handle handle = handles.get(file);
+			if (handle == null) {
+				RandomAccessFile raf;
+				if (files[file].exists())
+					raf = new RandomAccessFile(files[file], "rw");
+				else if (write)
+					raf = create(file);
+				else
+					throw new EOFException(files[file] + " hasn't been written yet.");
+				handle = new Handle(raf.getChannel());
+				handles.put(file, handle);
+				evict();
+			}
+			handle.refs++;
+			return handle;
+		}
+	}
+
+	private void release(Handle handle) {
+		synchronized (handles) {
+			if (--handle.refs == 0 && handle.retired)
+				closeQuietly(handle);
+		}
+	}
+
+	/**
+	 * Closes the least recently used files until no more than maxOpen are open. Must hold the handles lock.
+	 */
+	private void evict() {
+		Iterator<Handle> eldest = handles.values().iterator();
+		while (handles.size() > maxOpen && eldest.hasNext()) {
+			Handle handle = eldest.next();
+			eldest.remove();
+			handle.retired = true;
+			if (handle.refs == 0)
+				closeQuietly(handle);
+		}
+	}
+
+	private static void closeQuietly(Handle handle) {
+		try {
+			handle.channel.close();
+		} catch (IOException e) {
+			System.err.println("Unable to close file: " + e.getMessage());
+		}
+	}
+}
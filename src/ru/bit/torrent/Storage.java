@@ -0,0 +1,52 @@
+package ru.bit.torrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Where FileAccess keeps the bytes of the download, addressed by absolute offset. Every method may be called from
+ * several threads at once; implementations don't share a file pointer, so reads and writes of different regions
+ * don't wait on each other.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public interface Storage {
+
+	/**
+	 * Reads until {@code dst} is full.
+	 * @param position offset in the download
+	 * @param dst
+	 * @throws IOException if the download ends first.
+	 */
+	void read(long position, ByteBuffer dst) throws IOException;
+
+	/**
+	 * Writes everything remaining in {@code src}.
+	 * @param position offset in the download
+	 * @param src
+	 * @throws IOException
+	 */
+	void write(long position, ByteBuffer src) throws IOException;
+
+	/**
+	 * Sends as much of a region as the target will take.
+	 * @param position offset in the download
+	 * @param length
+	 * @param target
+	 * @return the number of bytes sent, possibly 0 if the target is a non-blocking channel that is full.
+	 * @throws IOException
+	 */
+	long transferTo(long position, int length, WritableByteChannel target) throws IOException;
+
+	/**
+	 * Makes sure everything written so far has reached the disk.
+	 * @throws IOException
+	 */
+	void force() throws IOException;
+
+	void close() throws IOException;
+}
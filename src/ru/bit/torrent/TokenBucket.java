@@ -0,0 +1,145 @@
+package ru.bit.torrent;
+
+/**
+ * Limits the rate bytes are sent or received at. The bucket fills with tokens, one per byte, at its rate, up to a
+ * burst of about BURST_TIME worth, and every byte sent or received takes one out.
+ *
+ * Buckets form a hierarchy: each peer's bucket has the torrent's bucket as its parent, which has the global bucket as
+ * its own. Bytes are taken from a bucket and every bucket above it at once, so a peer is held to the lowest of its
+ * own, its torrent's and the global limit, and the peers of a torrent share its limit. A rate of 0 means unlimited;
+ * such a bucket is skipped. Rates can be changed at any time, from any thread.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class TokenBucket {
+
+	/**
+	 * How long (ms) a full bucket lasts at its rate; keeps bursts short so a limited link isn't flooded.
+	 */
+	private static final long BURST_TIME = 100L;
+
+	/**
+	 * The smallest burst, so a whole block (and its header) always fits.
+	 */
+	private static final long MIN_BURST = 2 * (13 + 32768);
+
+	/**
+	 * Every bucket is changed under this one lock, so taking from a whole hierarchy is atomic. Buckets are only
+	 * touched once per block or read, so it's never held for long.
+	 */
+	private static final Object lock = new Object();
+
+	private final TokenBucket parent;
+
+	/**
+	 * Bytes per second, or 0 for unlimited.
+	 */
+	private long rate;
+
+	private long burst;
+
+	/**
+	 * May go below 0 when bytes are taken after the fact (see take()); the debt is paid off before more can go.
+	 */
+	private double tokens;
+
+	/**
+	 * When tokens were last added (ns).
+	 */
+	private long refilled;
+
+	/**
+	 * @param parent the bucket above this one, or null.
+	 * @param rate bytes per second, or 0 for unlimited.
+	 */
+	public TokenBucket(TokenBucket parent, long rate) {
+		this.parent = parent;
+		this.refilled = System.nanoTime();
+		setRate(rate);
+		this.tokens = burst;
+	}
+
+	/**
+	 * @param rate bytes per second, or 0 for unlimited.
+	 */
+	public void setRate(long rate) {
+		synchronized (lock) {
+			refill(System.nanoTime());
+			this.rate = Math.max(0, rate);
+			this.burst = Math.max(MIN_BURST, this.rate * BURST_TIME / 1000);
+			tokens = Math.min(tokens, burst);
+		}
+	}
+
+	public long getRate() {
+		synchronized (lock) {
+			return rate;
+		}
+	}
+
+	/**
+	 * Takes {@code bytes} tokens from this bucket and every one above it, if they all have that many.
+	 * @param bytes
+	 * @return false if any of them doesn't, in which case nothing is taken.
+	 */
+	public boolean tryTake(int bytes) {
+		synchronized (lock) {
+			if (available() < bytes)
+				return false;
+			take(bytes);
+			return true;
+		}
+	}
+
+	/**
+	 * Takes {@code bytes} tokens from this bucket and every one above it, whether or not they have them, for bytes
+	 * that have already gone; any bucket left short pays it back before it gives out more.
+	 * @param bytes
+	 */
+	public void take(int bytes) {
+		synchronized (lock) {
+			for (TokenBucket bucket = this; bucket != null; bucket = bucket.parent) {
+				if (bucket.rate > 0)
+					bucket.tokens -= bytes;
+			}
+		}
+	}
+
+	/**
+	 * @return the most bytes that can be taken right now from this bucket and every one above it, or Long.MAX_VALUE
+	 * if none of them is limited.
+	 */
+	public long available() {
+		synchronized (lock) {
+			long now = System.nanoTime();
+			long available = Long.MAX_VALUE;
+			for (TokenBucket bucket = this; bucket != null; bucket = bucket.parent) {
+				if (bucket.rate == 0)
+					continue;
+				bucket.refill(now);
+				available = Math.min(available, (long) Math.max(0, bucket.tokens));
+			}
+			return available;
+		}
+	}
+
+	/**
+	 * Must hold the lock.
+	 */
+	private void refill(long now) {
+		if (rate > 0)
+			tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+		refilled = now;
+	}
+
+	/**
+	 * @param rate bytes per second, or 0.
+	 * @return the rate in kB/s, for printing.
+	 */
+	public static String describe(long rate) {
+		return rate == 0 ? "unlimited" : (rate / 1024) + " kB/s";
+	}
+}
@@ -48,8 +48,8 @@ public class ToolKit
             printString((ByteBuffer) o, true, 0);
         else if (o instanceof byte[])
             printString((byte[]) o, true, 0);
-        else if (o instanceof Integer)
-            printInteger((Integer) o, 0);
+        else if (o instanceof Long)
+            printInteger((Long) o, 0);
         else if (o instanceof ArrayList)
             printList((ArrayList) o, 0);
         else if (o instanceof HashMap)
@@ -71,8 +71,8 @@ public class ToolKit
             printString((ByteBuffer) o, true, depth + 1);
         else if (o instanceof byte[])
             printString((byte[]) o, true, depth + 1);
-        else if (o instanceof Integer)
-            printInteger((Integer) o, depth + 1);
+        else if (o instanceof Long)
+            printInteger((Long) o, depth + 1);
         else if (o instanceof ArrayList)
             printList((ArrayList) o, depth + 1);
         else if (o instanceof HashMap)
@@ -128,7 +128,7 @@ public class ToolKit
      * @param i the integer to print.
      * @param depth the depth of the object within other objects, used for indenting.
      */
-    public static void printInteger(Integer i, int depth)
+    public static void printInteger(Long i, int depth)
     {
         for (int k = 0; k < depth; k++)
             System.out.print("  ");
@@ -19,18 +19,20 @@
 
 package ru.bit.torrent;
 
+import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 import java.util.Map;
 
 /**
  * This is a data structure class that extracts basic information from a bencoded torrent metainfo
- * file and stores it in public fields.&nbsp; Note that this class only works for torrent metainfo files
- * for a single-file torrent.
+ * file and stores it in public fields.&nbsp; Both single-file torrents and multi-file torrents (an info
+ * dictionary with a {@code files} list) are supported.
  * 
  * @author Robert Moore II
  *
@@ -67,6 +69,18 @@ public class TorrentInfo
     public final static ByteBuffer KEY_PIECE_LENGTH = ByteBuffer.wrap(new byte[]
     { 'p', 'i', 'e', 'c', 'e', ' ', 'l', 'e', 'n', 'g', 't', 'h' });
 	
+    /**
+     * Key used to retrieve the list of files of a multi-file torrent.
+     */
+    public final static ByteBuffer KEY_FILES = ByteBuffer.wrap(new byte[]
+    { 'f', 'i', 'l', 'e', 's' });
+
+    /**
+     * Key used to retrieve the path of one file of a multi-file torrent, as a list of path components.
+     */
+    public final static ByteBuffer KEY_PATH = ByteBuffer.wrap(new byte[]
+    { 'p', 'a', 't', 'h' });
+	
 	/**
 	 * ByteBuffer to retrieve the announce URL from the metainfo dictionary.
 	 */
@@ -108,14 +122,26 @@ public class TorrentInfo
 	public final int piece_length;
 	
 	/**
-	 * The name of the file referenced in the torrent metainfo file.
+	 * The name of the file referenced in the torrent metainfo file, or of the directory for a multi-file torrent.
 	 */
 	public final String file_name;
 	
 	/**
-	 * The length of the file in bytes.
+	 * The length of the file in bytes.&nbsp; For a multi-file torrent, the total length of every file, which are
+	 * treated as one contiguous stream of pieces.
+	 */
+	public final long file_length;
+	
+	/**
+	 * The path of each file of a multi-file torrent relative to the download directory, with the platform's
+	 * separator; a single-file torrent has one entry, its file name.
 	 */
-	public final int file_length;
+	public final String[] file_paths;
+	
+	/**
+	 * The length of each file in file_paths.
+	 */
+	public final long[] file_lengths;
 	
 	/**
 	 * The SHA-1 hashes of each piece of the file.
@@ -181,9 +207,11 @@ public class TorrentInfo
 		}
 		
 		// Extract the piece length from the info dictionary
-		Integer piece_length = (Integer)this.info_map.get(TorrentInfo.KEY_PIECE_LENGTH);
+		Long piece_length = (Long)this.info_map.get(TorrentInfo.KEY_PIECE_LENGTH);
 		if(piece_length == null)
 			throw new BencodingException("Could not extract piece length from info dictionary.  Corrupt file?");
+		if(piece_length.longValue() <= 0 || piece_length.longValue() > Integer.MAX_VALUE)
+			throw new BencodingException("Piece length " + piece_length + " is out of range.  Corrupt file?");
 		this.piece_length = piece_length.intValue();
 		
 		// Extract the file name from the info dictionary
@@ -198,11 +226,37 @@ public class TorrentInfo
 			throw new BencodingException(uee.getLocalizedMessage());
 		}
 		
-		// Extract the file length from the info dictionary
-		Integer file_length = (Integer)this.info_map.get(TorrentInfo.KEY_LENGTH);
-		if(file_length == null)
-			throw new BencodingException("Could not extract file length from info dictionary.  Corrupt file?");
-		this.file_length = file_length.intValue();
+		// Extract the file length from the info dictionary, or the lengths and paths of every file of a multi-file torrent
+		List<Object> files = (List<Object>)this.info_map.get(TorrentInfo.KEY_FILES);
+		if(files == null)
+		{
+			Long file_length = (Long)this.info_map.get(TorrentInfo.KEY_LENGTH);
+			if(file_length == null)
+				throw new BencodingException("Could not extract file length from info dictionary.  Corrupt file?");
+			this.file_length = file_length.longValue();
+			this.file_paths = new String[] { this.file_name };
+			this.file_lengths = new long[] { this.file_length };
+		}
+		else
+		{
+			if(files.isEmpty())
+				throw new BencodingException("Files list in info dictionary is empty.  Corrupt file?");
+			this.file_paths = new String[files.size()];
+			this.file_lengths = new long[files.size()];
+			long total = 0;
+			for(int i = 0; i < files.size(); i++)
+			{
+				Map<ByteBuffer,Object> file = (Map<ByteBuffer,Object>)files.get(i);
+				Long length = (Long)file.get(TorrentInfo.KEY_LENGTH);
+				List<Object> path = (List<Object>)file.get(TorrentInfo.KEY_PATH);
+				if(length == null || length.longValue() < 0 || path == null || path.isEmpty())
+					throw new BencodingException("File " + i + " in info dictionary has no length or path.  Corrupt file?");
+				this.file_lengths[i] = length.longValue();
+				this.file_paths[i] = decodePath(path);
+				total += length.longValue();
+			}
+			this.file_length = total;
+		}
 		
 		// Extract the piece hashes from the info dictionary
 		ByteBuffer all_hashes = (ByteBuffer)this.info_map.get(TorrentInfo.KEY_PIECES);
@@ -224,4 +278,40 @@ public class TorrentInfo
 			this.piece_hashes[i] = ByteBuffer.wrap(temp_buff);
 		}
 	}
+	
+	/**
+	 * @return true if the torrent has a {@code files} list rather than a single file.
+	 */
+	public boolean isMultiFile()
+	{
+		return this.info_map.containsKey(TorrentInfo.KEY_FILES);
+	}
+	
+	/**
+	 * Joins the components of a file's path, refusing any that would lead outside of the download directory.
+	 * @param path
+	 * @return
+	 * @throws BencodingException
+	 */
+	private static String decodePath(List<Object> path) throws BencodingException
+	{
+		StringBuilder sb = new StringBuilder();
+		for(Object component : path)
+		{
+			String name;
+			try {
+				name = new String(((ByteBuffer)component).array(), "UTF-8");
+			}
+			catch(UnsupportedEncodingException uee)
+			{
+				throw new BencodingException(uee.getLocalizedMessage());
+			}
+			if(name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0)
+				throw new BencodingException("Illegal path component \"" + name + "\" in files list.  Corrupt file?");
+			if(sb.length() > 0)
+				sb.append(File.separatorChar);
+			sb.append(name);
+		}
+		return sb.toString();
+	}
 }
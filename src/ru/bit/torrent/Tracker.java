@@ -44,17 +44,17 @@ public class Tracker implements Runnable {
 	/**
 	 * The total amount uploaded so far, encoded in base ten ASCII.
 	 */
-	private int uploaded;
+	private long uploaded;
 	
 	/**
 	 * Downloaded, initialized at 0.
 	 */
-	private int downloaded = 0;
+	private long downloaded = 0;
 	
 	/**
 	 * Amount of the file left to download, initialized at 0.
 	 */
-	private int left;
+	private long left;
 	
 	/**
 	 * This is an optional key which maps to started , completed , or stopped (or empty , which is the same as not being present. 
@@ -226,7 +226,7 @@ public class Tracker implements Runnable {
 	private void decodeTrackerResponse() throws BencodingException, IOException{
 		
 		this.trackerResponseMap = (Map<ByteBuffer, Object>)Bencoder2.decode(this.trackerResponse);
-		this.interval = (Integer)(this.trackerResponseMap.get(KEY_INTERVAL));
+		this.interval = ((Long)this.trackerResponseMap.get(KEY_INTERVAL)).intValue();
 		
 		// peerMapList is a list of dictionaries corresponding to peers, 
 		// each of which contains the keys peer id , IP , and port , 
@@ -236,25 +236,11 @@ public class Tracker implements Runnable {
 		ArrayList< Map<ByteBuffer, Object>> peerMapList = (ArrayList< Map<ByteBuffer, Object>>)this.trackerResponseMap.get(KEY_PEERS);
 		
 		//Loops through the list of peer dictionaries and uses the info to construct a list of Peer objects.
+		//Peers we already know of are weeded out by the Manager's PeerRegistry.
+		this.peers = new ArrayList<Peer>();
 		for(int mapIndex = 0; mapIndex < peerMapList.size(); mapIndex++){
-			Peer newPeer = new Peer(peerMapList.get(mapIndex));
-			if(!Tracker.containsPeer( peers, newPeer )){
-				this.peers.add(newPeer);
-			}
-		}
-	}
-	
-	//TODO: horribly inefficient hack- would be much better to replace the arrayList of peers we use for a hashmap, this doesn't belong in tracker either but i dont know where else to put it
-	/**
-	 * Looks thru array list to see if the specified peer's ID has a match; returns true if we have the peer in the list and false otherwise.
-	 */
-	public static boolean containsPeer(ArrayList<Peer> peerList, Peer peer){
-		for(Peer p: peerList){
-			if(Arrays.equals(p.getPeerID(), peer.getPeerID())){
-				return true;
-			}
+			this.peers.add(new Peer(peerMapList.get(mapIndex), torrentInfo.piece_hashes.length));
 		}
-		return false;
 	}
 	
 	public ArrayList<Peer> getPeerList(){
@@ -270,8 +256,8 @@ public class Tracker implements Runnable {
 	 * @return
 	 */
 	@SuppressWarnings("unused")
-	private int calculateLeft(){
-		int have = 0;
+	private long calculateLeft(){
+		long have = 0;
 		//iterate thru all but last piece
 		for(int i=0 ; i < manager.myPieces.length - 1; i++){
 			if(manager.myPieces[i]){
@@ -285,7 +271,7 @@ public class Tracker implements Runnable {
 		return torrentInfo.file_length - have;
 	}
 	
-	private int calculateLeft2() {
+	private long calculateLeft2() {
 		return (torrentInfo.file_length - this.downloaded);
 	}
 	
@@ -320,14 +306,14 @@ public class Tracker implements Runnable {
 	/**
 	 * Adds specified amount to total downloaded.
 	 */
-	public synchronized void addToDownloaded(int amount){
+	public synchronized void addToDownloaded(long amount){
 		this.downloaded += amount;
 	}
 	
 	/**
 	 * Adds specified amount to total uploaded.
 	 */
-	public synchronized void addToUploaded(int amount){
+	public synchronized void addToUploaded(long amount){
 		this.uploaded += amount;
 	}
 	
@@ -348,15 +334,15 @@ public class Tracker implements Runnable {
 	}
 	
 	
-	public int getUploaded(){
+	public long getUploaded(){
 		return uploaded;
 	}
 	
-	public int getDownloaded(){
+	public long getDownloaded(){
 		return downloaded;
 	}
 	
-	public int getLeft(){
+	public long getLeft(){
 		//TODO: isDownloadComplete sends sets a EVENT_STOPPED if it is, which we only want to send ONCE, the FIRST time we finish download
 		if (manager.isDownloadComplete())
 		{
@@ -367,7 +353,7 @@ public class Tracker implements Runnable {
 			return calculateLeft2();
 	}
 
-	public void setUploaded(int uploaded) {
+	public void setUploaded(long uploaded) {
 		this.uploaded = uploaded;
 	}
 	
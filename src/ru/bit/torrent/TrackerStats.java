@@ -11,20 +11,20 @@ public class TrackerStats {
 	private File file;
 	
 	/**
-	 * Integer corresponding to the total number of bytes uploaded
+	 * The total number of bytes uploaded
 	 */
-	private int uploaded;
+	private long uploaded;
 	
 	/**
-	 * Integer corresponding to the total number of bytes downloaded
+	 * The total number of bytes downloaded
 	 */
-	private int downloaded;
+	private long downloaded;
 	
 	/**
-	 * Integer corresponding to the total number of bytes our client
+	 * The total number of bytes our client
 	 * has yet to download
 	 */
-	private int left;
+	private long left;
 	
 	/**
 	 * The tracker instantiated by Manager
@@ -65,7 +65,7 @@ public class TrackerStats {
 	public void readStats() throws IOException {
 		BufferedReader br = new BufferedReader(new FileReader(this.file));
 		String uploadedStr = br.readLine();
-		this.uploaded = Integer.parseInt(uploadedStr.substring(10, uploadedStr.length()));
+		this.uploaded = Long.parseLong(uploadedStr.substring(10, uploadedStr.length()).trim());
 		tracker.setUploaded(this.uploaded);
 		this.downloaded = 0;
 		this.left = tracker.getLeft();
@@ -75,24 +75,24 @@ public class TrackerStats {
 	 * Adds bytes to the number of bytes uploaded. 
 	 * @param numBytes
 	 */
-	public int getUploaded() {
+	public long getUploaded() {
 		return this.uploaded;
 	}
 	
-	public void addToUploaded(int numBytes) {
+	public void addToUploaded(long numBytes) {
 		this.uploaded += numBytes;
 	}
 	
-	public void incrementDownloaded(int numBytes) {
+	public void incrementDownloaded(long numBytes) {
 		this.downloaded += numBytes;
 		this.left -= numBytes;
 	}
 	
-	public void setDownloaded(int numBytes) {
+	public void setDownloaded(long numBytes) {
 		this.downloaded = numBytes;
 	}
 	
-	public int getDownloaded() {
+	public long getDownloaded() {
 		return this.downloaded;
 	}
 	/**
@@ -0,0 +1,399 @@
+package ru.bit.torrent;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Holds received blocks in memory until a dedicated "Disk Writer" thread writes them, so a slow disk never stalls
+ * the PeerEngine threads reading from sockets. Blocks are copied into pooled buffers and kept sorted by their offset
+ * in the file; the writer takes everything pending at once and gathers each run of contiguous blocks into a single
+ * large write, which is done as a DiskIO job alongside the other disk work.
+ *
+ * The cache holds at most about {@code capacity} bytes. Once it's full, MessageHandlers stop reading from their
+ * peers (see isFull()), which pushes back on the peers through TCP, and are woken to read again once the writer has
+ * emptied half of it.
+ *
+ * A piece must not be announced before its blocks are on disk, so whatever has to happen once a piece has been
+ * written is handed to afterWritten() and run by the writer once every block submitted before it has been written.
+ * A piece's blocks can be written in several batches, so the ranges of writes that failed are remembered until the
+ * listener of a piece overlapping them is told, even if its own batch was written.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class WriteCache implements Runnable {
+
+	/**
+	 * Told when the blocks submitted before it have been written, or couldn't be.
+	 */
+	public interface WriteListener {
+
+		void written();
+
+		void failed(IOException e);
+	}
+
+	/**
+	 * How long (ms) the writer lets blocks collect before writing them, unless the cache is filling up or a piece is
+	 * waiting on them.
+	 */
+	private static final long FLUSH_DELAY = 100L;
+
+	/**
+	 * The largest single write.
+	 */
+	private static final int MAX_RUN = 1024 * 1024;
+
+	private Storage storage;
+
+	private DiskIO disk;
+
+	private final long capacity;
+
+	private BufferPool buffers;
+
+	/**
+	 * Blocks waiting to be written, by offset in the file. Guarded by the cache itself.
+	 */
+	private TreeMap<Long, ByteBuffer> pending = new TreeMap<Long, ByteBuffer>();
+
+	/**
+	 * When (ms) the oldest pending block was submitted; the writer writes it no more than FLUSH_DELAY later. Guarded
+	 * by the cache itself.
+	 */
+	private long firstPending;
+
+	/**
+	 * A listener and the range of the file it's waiting on.
+	 */
+	private static class Waiter {
+
+		final long position;
+
+		final long length;
+
+		final WriteListener listener;
+
+		Waiter(long position, long length, WriteListener listener) {
+			this.position = position;
+			this.length = length;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * Listeners waiting on the blocks submitted before them. Guarded by the cache itself.
+	 */
+	private ArrayList<Waiter> listeners = new ArrayList<Waiter>();
+
+	/**
+	 * Ranges of the file whose writes failed, start to end, not yet reported to a listener overlapping them. Only
+	 * touched by the writer.
+	 */
+	private TreeMap<Long, Long> failedRanges = new TreeMap<Long, Long>();
+
+	/**
+	 * Bytes submitted and not yet written, including the ones being written.
+	 */
+	private volatile long pendingBytes;
+
+	/**
+	 * Handlers that stopped reading because the cache was full.
+	 */
+	private Set<MessageHandler> waiting = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Buffers contiguous blocks are gathered in to be written together.
+	 */
+	private BufferPool runs;
+
+	private boolean closing;
+
+	private Thread writer;
+
+	/**
+	 * @param storage where the blocks are written.
+	 * @param disk does the writes.
+	 * @param capacity the most bytes held before readers are paused.
+	 */
+	public WriteCache(Storage storage, DiskIO disk, long capacity) {
+		this.storage = storage;
+		this.disk = disk;
+		this.capacity = capacity;
+		this.buffers = new BufferPool(PiecePicker.BLOCK_SIZE, (int) (capacity / PiecePicker.BLOCK_SIZE));
+		this.runs = new BufferPool(MAX_RUN, 4);
+		this.writer = new Thread(this);
+		writer.setName("Disk Writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Copies a block into the cache. Never blocks; a block at the same offset that hasn't been written yet is
+	 * replaced.
+	 * @param position offset in the file
+	 * @param block the block's bytes, which are consumed.
+	 */
+	public void submit(long position, ByteBuffer block) {
+		ByteBuffer copy = block.remaining() <= PiecePicker.BLOCK_SIZE ? buffers.acquire()
+				: ByteBuffer.allocateDirect(block.remaining());
+		copy.put(block);
+		copy.flip();
+		synchronized (this) {
+			if (pending.isEmpty()) {
+				//the writer sleeps until there's something to write; from now it waits FLUSH_DELAY at most
+				firstPending = System.currentTimeMillis();
+				notify();
+			}
+			ByteBuffer replaced = pending.put(position, copy);
+			pendingBytes += copy.remaining();
+			if (replaced != null) {
+				pendingBytes -= replaced.remaining();
+				buffers.release(replaced);
+			}
+			if (pendingBytes >= capacity / 4)
+				notify();
+		}
+	}
+
+	/**
+	 * Calls the listener, on the writer thread, once every block submitted so far has been written. It is failed if
+	 * any block in its range couldn't be written, whenever that was.
+	 * @param position offset in the file of the range the listener is waiting on, e.g. a piece.
+	 * @param length
+	 * @param listener
+	 */
+	public synchronized void afterWritten(long position, long length, WriteListener listener) {
+		listeners.add(new Waiter(position, length, listener));
+		notify();
+	}
+
+	/**
+	 * @return true if readers should stop until the writer catches up.
+	 */
+	public boolean isFull() {
+		return pendingBytes >= capacity;
+	}
+
+	/**
+	 * @return true once a paused reader can start again.
+	 */
+	public boolean hasRoom() {
+		return pendingBytes < capacity / 2;
+	}
+
+	/**
+	 * Wakes a handler that has stopped reading because the cache is full, once there's room again. May be called from
+	 * any thread.
+	 * @param mH
+	 */
+	public void wakeWhenRoom(MessageHandler mH) {
+		waiting.add(mH);
+		//the writer may have made room since the handler looked
+		if (hasRoom() && waiting.remove(mH))
+			mH.wakeWriter();
+	}
+
+	public void run() {
+		while (true) {
+			TreeMap<Long, ByteBuffer> batch;
+			ArrayList<Waiter> done;
+			synchronized (this) {
+				while (!closing && listeners.isEmpty() && (pending.isEmpty() || pendingBytes < capacity / 4)) {
+					long wait = pending.isEmpty() ? 0 : firstPending + FLUSH_DELAY - System.currentTimeMillis();
+					if (!pending.isEmpty() && wait <= 0)
+						break;
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						closing = true;
+					}
+				}
+				if (closing && pending.isEmpty() && listeners.isEmpty())
+					return;
+				batch = pending;
+				pending = new TreeMap<Long, ByteBuffer>();
+				done = listeners;
+				listeners = new ArrayList<Waiter>();
+			}
+
+			IOException failure = null;
+			try {
+				flush(batch);
+			} catch (IOException e) {
+				System.err.println("Unable to write to the file: " + e.getMessage());
+				failure = e;
+			} catch (InterruptedException e) {
+				failure = new InterruptedIOException("Interrupted while writing to the file.");
+				synchronized (this) {
+					closing = true;
+				}
+			}
+			long written = 0;
+			for (ByteBuffer block : batch.values()) {
+				written += block.limit();
+				buffers.release(block);
+			}
+			synchronized (this) {
+				pendingBytes -= written;
+			}
+
+			for (Waiter waiter : done) {
+				if (!takeFailure(waiter.position, waiter.position + waiter.length))
+					waiter.listener.written();
+				else
+					waiter.listener.failed(failure != null ? failure : new IOException("Part of the piece couldn't be written."));
+			}
+			if (hasRoom()) {
+				for (MessageHandler mH : waiting) {
+					if (waiting.remove(mH))
+						mH.wakeWriter();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the blocks, gathering each run of contiguous blocks into one write, and waits for every write to finish.
+	 * The range of every write that fails, or is never queued, is remembered in failedRanges.
+	 */
+	private void flush(TreeMap<Long, ByteBuffer> batch) throws IOException, InterruptedException {
+		ArrayList<Future<?>> writes = new ArrayList<Future<?>>();
+		//the offset and length of each write
+		ArrayList<long[]> ranges = new ArrayList<long[]>();
+		//every run taken from the pool, written or not
+		ArrayList<ByteBuffer> acquired = new ArrayList<ByteBuffer>();
+		long runStart = -1;
+		ByteBuffer run = null;
+		boolean queued = false;
+		try {
+			for (Map.Entry<Long, ByteBuffer> entry : batch.entrySet()) {
+				long position = entry.getKey();
+				ByteBuffer block = entry.getValue().duplicate();
+				if (run != null && (position != runStart + run.position() || block.remaining() > run.remaining())) {
+					run.flip();
+					ranges.add(new long[] { runStart, run.remaining() });
+					writes.add(write(runStart, run));
+					run = null;
+				}
+				if (block.remaining() > MAX_RUN) {
+					ranges.add(new long[] { position, block.remaining() });
+					writes.add(write(position, block));
+					continue;
+				}
+				if (run == null) {
+					run = runs.acquire();
+					acquired.add(run);
+					runStart = position;
+				}
+				run.put(block);
+			}
+			if (run != null) {
+				run.flip();
+				ranges.add(new long[] { runStart, run.remaining() });
+				writes.add(write(runStart, run));
+			}
+			queued = true;
+		} finally {
+			//every write queued has to finish before its buffers are released, even if queueing the rest failed
+			IOException failure = null;
+			for (int i = 0; i < writes.size(); i++) {
+				try {
+					waitFor(writes.get(i));
+				} catch (IOException e) {
+					failure = e;
+					long[] range = ranges.get(i);
+					failedRanges.put(range[0], range[0] + range[1]);
+				}
+			}
+			for (ByteBuffer buffer : acquired)
+				runs.release(buffer);
+			if (!queued) {
+				//we don't know how far we got, so none of the batch counts as written
+				for (Map.Entry<Long, ByteBuffer> entry : batch.entrySet())
+					failedRanges.put(entry.getKey(), entry.getKey() + entry.getValue().limit());
+			}
+			if (failure != null)
+				throw failure;
+		}
+	}
+
+	/**
+	 * Forgets any failed writes in a range.
+	 * @return true if there were any.
+	 */
+	private boolean takeFailure(long start, long end) {
+		boolean failed = false;
+		Iterator<Long> ends = failedRanges.headMap(end, false).values().iterator();
+		while (ends.hasNext()) {
+			if (ends.next() > start) {
+				ends.remove();
+				failed = true;
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Queues a write of the buffer's remaining bytes.
+	 */
+	private Future<?> write(final long position, final ByteBuffer buffer) throws InterruptedException {
+		return disk.submit(DiskIO.WRITE, position, new Callable<Void>() {
+			public Void call() throws IOException {
+				storage.write(position, buffer);
+				return null;
+			}
+		}, null);
+	}
+
+	/**
+	 * Waits for a write, however long it takes; an interrupt is kept for the writer to see afterwards.
+	 */
+	private static void waitFor(Future<?> write) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					write.get();
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					throw new IOException(e.getCause());
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes whatever is still pending and stops the writer.
+	 */
+	public void close() {
+		synchronized (this) {
+			closing = true;
+			notify();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -76,12 +76,10 @@ public class PeerDisplay extends JFrame implements Runnable{
 
 	@SuppressWarnings("unchecked")
 	private void updateList() {
-		for(int i=0; i < manager.peers.size(); i++){
+		for(Peer p : manager.peers){
 			//if it's a new peer
-			//System.err.println("MARCO");
-			if(peerMap.put(new String(this.manager.peers.get(i).getPeerID()), this.manager.peers.get(i)) == null){
-				//System.err.println("POLO");
-				peersPanel.listModel.addElement(new String(this.manager.peers.get(i).getPeerID()));
+			if(peerMap.put(new String(p.getPeerID()), p) == null){
+				peersPanel.listModel.addElement(new String(p.getPeerID()));
 			}
 		}
 	}
@@ -142,14 +140,11 @@ public class PeerDisplay extends JFrame implements Runnable{
 			peerInfoPanel.isInterested.setText("<html><b>Is Interested:</b> <font color=\"red\"> Uninterested </font></html>");
 		}
 		
-		String pieces = "";
-		for(int i=0; i < selectedPeer.availablePieces.size(); i++){
-			pieces = pieces + selectedPeer.availablePieces.get(i) + ", ";
-		}
-		peerInfoPanel.theirPieces.setText("Pieces: " + pieces);
+		peerInfoPanel.theirPieces.setText("Pieces: " + selectedPeer.availablePieces);
 		
 		peerInfoPanel.uploadSpeed.setText("<html><b>Upload Speed:</b> " + selectedPeer.getUploadSpeed() + "</html>");
 		peerInfoPanel.downloadSpeed.setText("<html><b>Download Speed:</b> " + selectedPeer.getDownloadSpeed() + "</html>");
+		peerInfoPanel.requestQueueDepth.setText("<html><b>Request Queue:</b> " + selectedPeer.getRequestQueueDepth() + "</html>");
 	}
 	
 	/**
@@ -20,6 +20,7 @@ public class PeerInfoPanel extends JPanel {
 	JLabel areInterested;
 	JLabel uploadSpeed;
 	JLabel downloadSpeed;
+	JLabel requestQueueDepth;
 	JTextArea theirPieces;
 	
 	public PeerInfoPanel(PeerDisplay peerDisplay){
@@ -34,6 +35,7 @@ public class PeerInfoPanel extends JPanel {
 		theirPieces.setWrapStyleWord(true);
 		uploadSpeed = new JLabel("<html><b>Upload Speed:</b> </html>");
 		downloadSpeed = new JLabel("<html><b>Download Speed:</b> </html>");
+		requestQueueDepth = new JLabel("<html><b>Request Queue:</b> </html>");
 		
 		labelLayOut();
 	}
@@ -48,6 +50,7 @@ public class PeerInfoPanel extends JPanel {
 		add(theirPieces);
 		add(uploadSpeed);
 		add(downloadSpeed);
+		add(requestQueueDepth);
 	}
 
 }
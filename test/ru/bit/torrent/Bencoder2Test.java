@@ -0,0 +1,69 @@
+package ru.bit.torrent;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class Bencoder2Test {
+
+	private static ByteBuffer string(String s) {
+		return ByteBuffer.wrap(s.getBytes());
+	}
+
+	@Test
+	public void decodesIntegersPast32Bits() throws BencodingException {
+		assertEquals(Long.valueOf(5000000000L), Bencoder2.decode("i5000000000e".getBytes()));
+		assertEquals(Long.valueOf(-9000000000L), Bencoder2.decode("i-9000000000e".getBytes()));
+	}
+
+	@Test
+	public void encodesIntegersPast32Bits() throws BencodingException {
+		assertArrayEquals("i5000000000e".getBytes(), Bencoder2.encode(Long.valueOf(5000000000L)));
+	}
+
+	@Test
+	public void encodesStringsWithTheirLength() throws BencodingException {
+		assertArrayEquals("4:spam".getBytes(), Bencoder2.encode(string("spam")));
+		assertArrayEquals("0:".getBytes(), Bencoder2.encode(string("")));
+		assertArrayEquals("12:piece length".getBytes(), Bencoder2.encode(string("piece length")));
+	}
+
+	@Test
+	public void encodesDictionariesWithSortedKeys() throws BencodingException {
+		HashMap<ByteBuffer, Object> dictionary = new HashMap<ByteBuffer, Object>();
+		dictionary.put(string("length"), Long.valueOf(3000000000L));
+		dictionary.put(string("a"), string("b"));
+		assertArrayEquals("d1:a1:b6:lengthi3000000000ee".getBytes(), Bencoder2.encode(dictionary));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void roundTrips() throws BencodingException {
+		ArrayList<Object> list = new ArrayList<Object>();
+		list.add(Long.valueOf(1L << 40));
+		list.add(string("x"));
+		HashMap<ByteBuffer, Object> dictionary = new HashMap<ByteBuffer, Object>();
+		dictionary.put(string("list"), list);
+		Map<ByteBuffer, Object> decoded = (Map<ByteBuffer, Object>) Bencoder2.decode(Bencoder2.encode(dictionary));
+		List<Object> decodedList = (List<Object>) decoded.get(string("list"));
+		assertEquals(Long.valueOf(1L << 40), decodedList.get(0));
+		assertEquals(string("x"), decodedList.get(1));
+	}
+
+	@Test(expected = BencodingException.class)
+	public void refusesAnIntegerWithLetters() throws BencodingException {
+		Bencoder2.decode("i12x4e".getBytes());
+	}
+}
@@ -0,0 +1,173 @@
+package ru.bit.torrent;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class DiskIOTest {
+
+	private DiskIO disk;
+
+	@After
+	public void tearDown() throws InterruptedException {
+		disk.shutdown();
+		disk.awaitTermination();
+	}
+
+	/**
+	 * Queues a job that holds its disk thread until the latch is counted down.
+	 */
+	private Future<Void> block(long position, final CountDownLatch gate, final CountDownLatch started) throws InterruptedException {
+		return disk.submit(DiskIO.READ, position, new Callable<Void>() {
+			public Void call() throws InterruptedException {
+				started.countDown();
+				gate.await();
+				return null;
+			}
+		}, null);
+	}
+
+	private Callable<Long> record(final long position, final List<Long> order) {
+		return new Callable<Long>() {
+			public Long call() {
+				synchronized (order) {
+					order.add(position);
+				}
+				return position;
+			}
+		};
+	}
+
+	@Test
+	public void takesJobsInElevatorOrder() throws Exception {
+		disk = new DiskIO(1, 16);
+		CountDownLatch gate = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		block(50, gate, started);
+		started.await();
+		List<Long> order = new ArrayList<Long>();
+		ArrayList<Future<Long>> jobs = new ArrayList<Future<Long>>();
+		for (long position : new long[] { 70, 10, 60, 30, 80, 50 })
+			jobs.add(disk.submit(DiskIO.READ, position, record(position, order), null));
+		gate.countDown();
+		for (Future<Long> job : jobs)
+			job.get(10, TimeUnit.SECONDS);
+		//from where the disk was, up to the end, then back round from the start
+		assertEquals(Arrays.asList(50L, 60L, 70L, 80L, 10L, 30L), order);
+	}
+
+	@Test
+	public void offerRefusesJobsWhenFull() throws Exception {
+		disk = new DiskIO(1, 2);
+		CountDownLatch gate = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		block(0, gate, started);
+		started.await();
+		List<Long> order = new ArrayList<Long>();
+		assertNotNull(disk.offer(DiskIO.WRITE, 1, record(1, order), null));
+		assertNotNull(disk.offer(DiskIO.WRITE, 2, record(2, order), null));
+		assertEquals(2, disk.getQueueDepth());
+		assertNull(disk.offer(DiskIO.WRITE, 3, record(3, order), null));
+		gate.countDown();
+	}
+
+	@Test
+	public void callbackIsToldTheResult() throws Exception {
+		disk = new DiskIO(2, 16);
+		final CountDownLatch done = new CountDownLatch(2);
+		final Object[] results = new Object[2];
+		disk.submit(DiskIO.READ, 0, record(7, new ArrayList<Long>()), new DiskIO.Callback<Long>() {
+			public void completed(Long result) {
+				results[0] = result;
+				done.countDown();
+			}
+
+			public void failed(Exception e) {
+				done.countDown();
+			}
+		});
+		disk.submit(DiskIO.READ, 0, new Callable<Long>() {
+			public Long call() throws IOException {
+				throw new IOException("Bad sector.");
+			}
+		}, new DiskIO.Callback<Long>() {
+			public void completed(Long result) {
+				done.countDown();
+			}
+
+			public void failed(Exception e) {
+				results[1] = e;
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(Long.valueOf(7), results[0]);
+		assertTrue(results[1] instanceof IOException);
+	}
+
+	@Test
+	public void hashesPieces() throws Exception {
+		disk = new DiskIO(2, 16);
+		final byte[] piece = "some piece of the download".getBytes();
+		ByteBuffer expected = ByteBuffer.wrap(MessageDigest.getInstance("SHA-1").digest(piece));
+		Callable<ByteBuffer> read = new Callable<ByteBuffer>() {
+			public ByteBuffer call() {
+				return ByteBuffer.wrap(piece);
+			}
+		};
+		assertTrue(disk.hash(0, expected, read).get());
+		assertFalse(disk.hash(0, ByteBuffer.wrap(new byte[20]), read).get());
+	}
+
+	@Test
+	public void finishesQueuedJobsThenFailsNewOnes() throws Exception {
+		disk = new DiskIO(1, 16);
+		CountDownLatch gate = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		block(0, gate, started);
+		started.await();
+		List<Long> order = new ArrayList<Long>();
+		Future<Long> queued = disk.submit(DiskIO.WRITE, 5, record(5, order), null);
+		disk.shutdown();
+		gate.countDown();
+		assertEquals(Long.valueOf(5), queued.get(10, TimeUnit.SECONDS));
+
+		final Exception[] failure = new Exception[1];
+		Future<Long> late = disk.submit(DiskIO.WRITE, 6, record(6, order), new DiskIO.Callback<Long>() {
+			public void completed(Long result) {
+			}
+
+			public void failed(Exception e) {
+				failure[0] = e;
+			}
+		});
+		try {
+			late.get();
+			fail("ran a job submitted after shutdown");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertTrue(failure[0] instanceof IOException);
+		assertNull(disk.offer(DiskIO.WRITE, 7, record(7, order), null));
+		assertEquals(Arrays.asList(5L), order);
+	}
+}
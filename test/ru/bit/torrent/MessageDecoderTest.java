@@ -0,0 +1,113 @@
+package ru.bit.torrent;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class MessageDecoderTest {
+
+	private MessageDecoder decoder;
+
+	private ByteBuffer in;
+
+	@Before
+	public void setUp() {
+		decoder = new MessageDecoder();
+		in = ByteBuffer.allocate(1024);
+	}
+
+	private void receive(Message... messages) {
+		for (Message message : messages)
+			message.encode(in);
+	}
+
+	@Test
+	public void decodesEachKindOfMessage() throws IOException {
+		receive(new Message(Message.KEEPALIVE), new Message(Message.CHOKE), new HaveMessage(9),
+				new RequestMessage(3, 16384, 100), new CancelMessage(4, 32768, 200));
+		in.flip();
+		assertEquals(Message.KEEPALIVE, decoder.decode(in).id);
+		assertEquals(Message.CHOKE, decoder.decode(in).id);
+		assertEquals(9, ((HaveMessage) decoder.decode(in)).pieceIndex);
+		RequestMessage request = (RequestMessage) decoder.decode(in);
+		assertEquals(3, request.index);
+		assertEquals(16384, request.begin);
+		assertEquals(100, request.length);
+		CancelMessage cancel = (CancelMessage) decoder.decode(in);
+		assertEquals(4, cancel.index);
+		assertEquals(32768, cancel.begin);
+		assertEquals(200, cancel.length);
+		assertNull(decoder.decode(in));
+	}
+
+	@Test
+	public void reusesOneMessagePerType() throws IOException {
+		receive(new HaveMessage(1), new HaveMessage(2));
+		in.flip();
+		HaveMessage first = (HaveMessage) decoder.decode(in);
+		assertEquals(1, first.pieceIndex);
+		assertSame(first, decoder.decode(in));
+		assertEquals(2, first.pieceIndex);
+	}
+
+	@Test
+	public void pieceBlockIsAViewOfTheReadBuffer() throws IOException {
+		receive(new PieceMessage(5, 16384, new byte[] { 1, 2, 3 }), new HaveMessage(6));
+		in.flip();
+		PieceMessage piece = (PieceMessage) decoder.decode(in);
+		assertEquals(5, piece.index);
+		assertEquals(16384, piece.begin);
+		assertEquals(3, piece.blockLength());
+		assertNull(piece.block);
+		assertEquals(2, piece.blockView.get(1));
+		//the view shares the read buffer's bytes
+		in.put(13 + 1, (byte) 42);
+		assertEquals(42, piece.blockView.get(1));
+		assertEquals(6, ((HaveMessage) decoder.decode(in)).pieceIndex);
+	}
+
+	@Test
+	public void waitsForTheRestOfAMessage() throws IOException {
+		receive(new RequestMessage(1, 2, 3));
+		in.flip();
+		in.limit(10);
+		assertNull(decoder.decode(in));
+		assertEquals(0, in.position());
+		in.limit(17);
+		assertEquals(Message.REQUEST, decoder.decode(in).id);
+		assertEquals(17, in.position());
+	}
+
+	@Test
+	public void skipsMessagesItDoesntKnow() throws IOException {
+		in.putInt(3).put(Message.PORT).putShort((short) 6881);
+		receive(new HaveMessage(7));
+		in.flip();
+		assertEquals(Message.PORT, decoder.decode(in).id);
+		assertEquals(7, ((HaveMessage) decoder.decode(in)).pieceIndex);
+	}
+
+	@Test(expected = IOException.class)
+	public void refusesALengthLargerThanTheBuffer() throws IOException {
+		in.putInt(1021).put(Message.PIECE);
+		in.flip();
+		decoder.decode(in);
+	}
+
+	@Test(expected = IOException.class)
+	public void refusesAFixedLengthMessageOfTheWrongLength() throws IOException {
+		in.putInt(6).put(Message.HAVE).putInt(1).put((byte) 0);
+		in.flip();
+		decoder.decode(in);
+	}
+}
@@ -0,0 +1,120 @@
+package ru.bit.torrent;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class MessageQueueTest {
+
+	@Test
+	public void roundsCapacityUpToAPowerOfTwo() {
+		assertEquals(8, new MessageQueue(5).capacity());
+		assertEquals(8, new MessageQueue(8).capacity());
+		assertEquals(2, new MessageQueue(0).capacity());
+	}
+
+	@Test
+	public void takesMessagesInOrder() {
+		MessageQueue queue = new MessageQueue(4);
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+		for (int i = 0; i < 3; i++)
+			assertTrue(queue.offer(new HaveMessage(i)));
+		assertEquals(3, queue.size());
+		for (int i = 0; i < 3; i++)
+			assertEquals(i, ((HaveMessage) queue.poll()).pieceIndex);
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void refusesMessagesWhenFull() {
+		MessageQueue queue = new MessageQueue(4);
+		for (int i = 0; i < 4; i++)
+			assertTrue(queue.offer(new HaveMessage(i)));
+		assertFalse(queue.offer(new HaveMessage(4)));
+		assertEquals(0, ((HaveMessage) queue.poll()).pieceIndex);
+		assertTrue(queue.offer(new HaveMessage(4)));
+	}
+
+	@Test
+	public void wrapsAroundManyTimes() {
+		MessageQueue queue = new MessageQueue(4);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(queue.offer(new HaveMessage(2 * i)));
+			assertTrue(queue.offer(new HaveMessage(2 * i + 1)));
+			assertEquals(2 * i, ((HaveMessage) queue.poll()).pieceIndex);
+			assertEquals(2 * i + 1, ((HaveMessage) queue.poll()).pieceIndex);
+		}
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void cancelledMessagesAreSkipped() {
+		MessageQueue queue = new MessageQueue(8);
+		RequestMessage first = new RequestMessage(1, 0, 16384);
+		RequestMessage second = new RequestMessage(1, 16384, 16384);
+		queue.offer(first);
+		queue.offer(second);
+		queue.offer(new HaveMessage(7));
+		assertSame(second, queue.cancel(Message.REQUEST, 1, 16384));
+		//already cancelled, and a PIECE for the block was never queued
+		assertNull(queue.cancel(Message.REQUEST, 1, 16384));
+		assertNull(queue.cancel(Message.PIECE, 1, 0));
+		assertSame(first, queue.poll());
+		assertEquals(Message.HAVE, queue.poll().id);
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void sentMessagesCantBeCancelled() {
+		MessageQueue queue = new MessageQueue(8);
+		queue.offer(new RequestMessage(2, 0, 16384));
+		assertNotNull(queue.poll());
+		assertNull(queue.cancel(Message.REQUEST, 2, 0));
+	}
+
+	@Test
+	public void everyMessageFromSeveralProducersArrivesOnceInOrder() throws InterruptedException {
+		final int producers = 4;
+		final int perProducer = 20000;
+		final MessageQueue queue = new MessageQueue(64);
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			threads[p] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						while (!queue.offer(new HaveMessage(producer * perProducer + i)))
+							Thread.yield();
+					}
+				}
+			});
+			threads[p].start();
+		}
+		int[] next = new int[producers];
+		int received = 0;
+		long deadline = System.currentTimeMillis() + 30000;
+		while (received < producers * perProducer && System.currentTimeMillis() < deadline) {
+			Message message = queue.poll();
+			if (message == null) {
+				Thread.yield();
+				continue;
+			}
+			int index = ((HaveMessage) message).pieceIndex;
+			int producer = index / perProducer;
+			assertEquals(next[producer]++, index % perProducer);
+			received++;
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(producers * perProducer, received);
+		assertNull(queue.poll());
+	}
+}
@@ -0,0 +1,109 @@
+package ru.bit.torrent;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class PieceAvailabilityTest {
+
+	private static final int PIECES = 6;
+
+	private PieceAvailability availability;
+
+	private boolean[] none;
+
+	@Before
+	public void setUp() {
+		availability = new PieceAvailability(new boolean[PIECES]);
+		none = new boolean[PIECES];
+	}
+
+	private static PieceSet pieces(int... indexes) {
+		PieceSet set = new PieceSet(PIECES);
+		for (int index : indexes)
+			set.set(index);
+		return set;
+	}
+
+	private static Peer peer(int... indexes) {
+		Peer peer = new Peer(6881, "127.0.0.1", new byte[20], PIECES);
+		for (int index : indexes)
+			peer.addAvailablePiece(index);
+		return peer;
+	}
+
+	@Test
+	public void picksTheRarestPieceThePeerHas() {
+		availability.addPeer(pieces(0, 1, 2));
+		availability.addPeer(pieces(0, 2));
+		availability.peerHasPiece(0);
+		assertEquals(1, availability.rarestPiece(peer(0, 1, 2), none));
+		assertEquals(2, availability.rarestPiece(peer(0, 2), none));
+	}
+
+	@Test
+	public void skipsExcludedPiecesAndPiecesNobodyHas() {
+		availability.addPeer(pieces(1, 2));
+		boolean[] exclude = new boolean[PIECES];
+		exclude[1] = true;
+		assertEquals(2, availability.rarestPiece(peer(0, 1, 2), exclude));
+		exclude[2] = true;
+		//piece 0 isn't counted, so it's never offered
+		assertEquals(-1, availability.rarestPiece(peer(0, 1, 2), exclude));
+	}
+
+	@Test
+	public void forgetsAPeerThatDisconnects() {
+		PieceSet gone = pieces(0, 1);
+		availability.addPeer(gone);
+		availability.addPeer(pieces(1));
+		availability.removePeer(gone);
+		assertEquals(1, availability.rarestPiece(peer(0, 1), none));
+	}
+
+	@Test
+	public void neverOffersCompletedPieces() {
+		availability.addPeer(pieces(0, 1));
+		availability.pieceCompleted(0);
+		assertEquals(1, availability.rarestPiece(peer(0, 1), none));
+		availability.pieceCompleted(1);
+		availability.peerHasPiece(1);
+		assertEquals(-1, availability.rarestPiece(peer(0, 1), none));
+	}
+
+	@Test
+	public void neverOffersPiecesWeStartedWith() {
+		boolean[] mine = new boolean[PIECES];
+		mine[0] = true;
+		availability = new PieceAvailability(mine);
+		availability.addPeer(pieces(0, 1));
+		assertEquals(1, availability.rarestPiece(peer(0, 1), none));
+	}
+
+	@Test
+	public void countsPastTheInitialBuckets() {
+		for (int i = 0; i < 20; i++)
+			availability.addPeer(pieces(0));
+		availability.addPeer(pieces(0, 1));
+		for (int i = 0; i < 15; i++)
+			availability.peerHasPiece(1);
+		assertEquals(1, availability.rarestPiece(peer(0, 1), none));
+		for (int i = 0; i < 10; i++)
+			availability.peerHasPiece(1);
+		assertEquals(0, availability.rarestPiece(peer(0, 1), none));
+	}
+
+	@Test
+	public void ignoresPiecesOutOfRange() {
+		availability.peerHasPiece(-1);
+		availability.peerHasPiece(PIECES);
+		assertEquals(-1, availability.rarestPiece(peer(0), none));
+	}
+}
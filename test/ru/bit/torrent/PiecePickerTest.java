@@ -0,0 +1,135 @@
+package ru.bit.torrent;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class PiecePickerTest {
+
+	private static final int PIECE_LENGTH = 2 * PiecePicker.BLOCK_SIZE;
+
+	private Manager manager;
+
+	private PiecePicker picker;
+
+	/**
+	 * Four pieces: three of two blocks and a last one of a single 100 byte block.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		manager = new Manager("test.bin", TestTorrents.singleFile(PIECE_LENGTH, 3L * PIECE_LENGTH + 100));
+		picker = manager.picker;
+	}
+
+	private Peer connect(int... pieces) {
+		Peer peer = new Peer(6881, "127.0.0.1", new byte[20], 4);
+		for (int piece : pieces)
+			peer.addAvailablePiece(piece);
+		manager.availability.addPeer(peer.availablePieces);
+		return peer;
+	}
+
+	private RequestMessage pick(Peer peer, ArrayList<RequestMessage> requested) {
+		RequestMessage request = picker.pickBlock(peer, requested);
+		if (request != null)
+			requested.add(request);
+		return request;
+	}
+
+	@Test
+	public void startsTheRarestPieceAndFinishesIt() {
+		Peer a = connect(0, 1, 2, 3);
+		connect(0, 1, 3);
+		ArrayList<RequestMessage> requested = new ArrayList<RequestMessage>();
+		RequestMessage first = pick(a, requested);
+		assertEquals(2, first.index);
+		assertEquals(0, first.begin);
+		assertEquals(PiecePicker.BLOCK_SIZE, first.length);
+		RequestMessage second = pick(a, requested);
+		assertEquals(2, second.index);
+		assertEquals(PiecePicker.BLOCK_SIZE, second.begin);
+	}
+
+	@Test
+	public void onlyPicksPiecesThePeerHas() {
+		Peer peer = connect(3);
+		RequestMessage request = pick(peer, new ArrayList<RequestMessage>());
+		assertEquals(3, request.index);
+		assertEquals(100, request.length);
+	}
+
+	@Test
+	public void releasedBlockIsPickedAgain() {
+		Peer a = connect(3);
+		ArrayList<RequestMessage> requested = new ArrayList<RequestMessage>();
+		RequestMessage request = pick(a, requested);
+		picker.releaseBlocks(requested);
+		RequestMessage again = picker.pickBlock(connect(3), new ArrayList<RequestMessage>());
+		assertEquals(request.index, again.index);
+		assertEquals(request.begin, again.begin);
+	}
+
+	@Test
+	public void noEndgameWhileOtherPiecesAreUnstarted() {
+		Peer peer = connect(3);
+		ArrayList<RequestMessage> requested = new ArrayList<RequestMessage>();
+		assertNotNull(pick(peer, requested));
+		//the other pieces haven't been requested from anybody, this peer just doesn't have them
+		assertNull(pick(peer, requested));
+		assertFalse(picker.isEndgame());
+	}
+
+	@Test
+	public void entersEndgameOnceEveryBlockIsRequested() {
+		Peer a = connect(0, 1, 2, 3);
+		ArrayList<RequestMessage> requested = new ArrayList<RequestMessage>();
+		for (int i = 0; i < 7; i++)
+			assertNotNull(pick(a, requested));
+		assertFalse(picker.isEndgame());
+		assertNull(pick(a, requested));
+		assertTrue(picker.isEndgame());
+
+		//another peer is now asked for blocks already requested from the first
+		Peer b = connect(0, 1, 2, 3);
+		ArrayList<RequestMessage> duplicates = new ArrayList<RequestMessage>();
+		for (int i = 0; i < 7; i++)
+			assertNotNull(pick(b, duplicates));
+		assertNull(pick(b, duplicates));
+	}
+
+	@Test
+	public void releasedBlockPostponesEndgame() {
+		Peer a = connect(0, 1, 2, 3);
+		ArrayList<RequestMessage> requested = new ArrayList<RequestMessage>();
+		for (int i = 0; i < 7; i++)
+			pick(a, requested);
+		ArrayList<RequestMessage> released = new ArrayList<RequestMessage>();
+		released.add(requested.remove(0));
+		picker.releaseBlocks(released);
+		RequestMessage again = pick(a, requested);
+		assertEquals(released.get(0).index, again.index);
+		assertEquals(released.get(0).begin, again.begin);
+		assertFalse(picker.isEndgame());
+		assertNull(pick(a, requested));
+		assertTrue(picker.isEndgame());
+	}
+
+	@Test
+	public void piecesAlreadyOnDiskDontHoldUpEndgame() {
+		manager.setMyPieces(new boolean[] { true, true, true, false });
+		Peer peer = connect(3);
+		ArrayList<RequestMessage> requested = new ArrayList<RequestMessage>();
+		assertNotNull(pick(peer, requested));
+		assertNull(pick(peer, requested));
+		assertTrue(picker.isEndgame());
+	}
+}
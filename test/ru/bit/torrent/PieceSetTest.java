@@ -0,0 +1,110 @@
+package ru.bit.torrent;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class PieceSetTest {
+
+	@Test
+	public void setGetAndClear() {
+		PieceSet set = new PieceSet(130);
+		assertTrue(set.isEmpty());
+		assertTrue(set.set(0));
+		assertTrue(set.set(63));
+		assertTrue(set.set(64));
+		assertTrue(set.set(129));
+		assertFalse(set.set(64));
+		assertTrue(set.get(63));
+		assertFalse(set.get(62));
+		assertEquals(4, set.cardinality());
+		set.clear(63);
+		assertFalse(set.get(63));
+		assertEquals(3, set.cardinality());
+		assertFalse(set.isEmpty());
+	}
+
+	@Test
+	public void indexesOutOfRange() {
+		PieceSet set = new PieceSet(10);
+		assertFalse(set.inRange(-1));
+		assertFalse(set.inRange(10));
+		assertFalse(set.get(10));
+		assertFalse(set.get(-1));
+		//clearing one is harmless
+		set.clear(10);
+		try {
+			set.set(10);
+			fail("set a piece past the end");
+		} catch (IndexOutOfBoundsException e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void loadsABitfieldMostSignificantBitFirst() {
+		PieceSet set = new PieceSet(12);
+		assertTrue(set.setBitfield(new byte[] { (byte) 0x81, (byte) 0x40 }));
+		assertEquals("0, 7, 9, ", set.toString());
+	}
+
+	@Test
+	public void dropsSpareBitsOfTheLastByte() {
+		PieceSet set = new PieceSet(10);
+		assertTrue(set.setBitfield(new byte[] { 0, (byte) 0xFF }));
+		assertEquals(2, set.cardinality());
+		assertEquals(-1, set.nextSetBit(10));
+	}
+
+	@Test
+	public void refusesABitfieldOfTheWrongLength() {
+		PieceSet set = new PieceSet(10);
+		set.set(3);
+		assertFalse(set.setBitfield(new byte[] { (byte) 0xFF }));
+		assertFalse(set.setBitfield(new byte[] { (byte) 0xFF, 0, 0 }));
+		//left as it was
+		assertEquals("3, ", set.toString());
+	}
+
+	@Test
+	public void loadsBitfieldsSpanningSeveralWords() {
+		byte[] bitfield = new byte[25];
+		bitfield[0] = (byte) 0x80;
+		bitfield[8] = 0x01;
+		bitfield[24] = (byte) 0x80;
+		PieceSet set = new PieceSet(193);
+		assertTrue(set.setBitfield(bitfield));
+		assertEquals("0, 71, 192, ", set.toString());
+	}
+
+	@Test
+	public void findsPiecesMissingFromAnotherSet() {
+		PieceSet theirs = new PieceSet(200);
+		PieceSet ours = new PieceSet(200);
+		theirs.set(5);
+		theirs.set(70);
+		theirs.set(199);
+		ours.set(5);
+		assertEquals(70, theirs.nextSetBitAndNot(ours, 0));
+		assertEquals(199, theirs.nextSetBitAndNot(ours, 71));
+		assertEquals(-1, theirs.nextSetBitAndNot(ours, 200));
+		assertTrue(theirs.hasAnyNotIn(ours));
+		ours.set(70);
+		ours.set(199);
+		assertFalse(theirs.hasAnyNotIn(ours));
+		assertEquals(5, theirs.nextSetBitAndNot(null, 0));
+	}
+
+	@Test
+	public void buildsFromBooleans() {
+		PieceSet set = PieceSet.fromBooleans(new boolean[] { false, true, false, true });
+		assertEquals(4, set.size());
+		assertEquals("1, 3, ", set.toString());
+	}
+}
@@ -0,0 +1,124 @@
+package ru.bit.torrent;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class ResumeDataTest {
+
+	private static final int PIECE_LENGTH = 16384;
+
+	private static final boolean[] PIECES = { true, false, true, true, false, false, false, false, true, false };
+
+	private File dir;
+
+	private File download;
+
+	private TorrentInfo torrentInfo;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("resume").toFile();
+		download = new File(dir, "test.bin");
+		torrentInfo = TestTorrents.singleFile(PIECE_LENGTH, 10L * PIECE_LENGTH - 1);
+		RandomAccessFile raf = new RandomAccessFile(download, "rw");
+		raf.setLength(torrentInfo.file_length);
+		raf.close();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	private ResumeData resumeData(TorrentInfo torrentInfo) {
+		return new ResumeData(new Manager(download.getPath(), torrentInfo), torrentInfo);
+	}
+
+	@Test
+	public void nothingToLoadAtFirst() {
+		assertNull(resumeData(torrentInfo).load());
+	}
+
+	@Test
+	public void cleanRecordIsTrusted() throws IOException {
+		resumeData(torrentInfo).save(PIECES, true);
+		ResumeData loaded = resumeData(torrentInfo);
+		assertArrayEquals(PIECES, loaded.load());
+		assertFalse(loaded.needsCheck());
+	}
+
+	@Test
+	public void recordWrittenWhileDownloadingMustBeChecked() throws IOException {
+		resumeData(torrentInfo).save(PIECES, false);
+		//the download is written to after the record, as it would be
+		RandomAccessFile raf = new RandomAccessFile(download, "rw");
+		raf.write(1);
+		raf.close();
+		download.setLastModified(download.lastModified() + 5000);
+		ResumeData loaded = resumeData(torrentInfo);
+		assertArrayEquals(PIECES, loaded.load());
+		assertTrue(loaded.needsCheck());
+	}
+
+	@Test
+	public void cleanRecordIsIgnoredOnceTheDownloadChanges() throws IOException {
+		resumeData(torrentInfo).save(PIECES, true);
+		download.setLastModified(download.lastModified() + 5000);
+		assertNull(resumeData(torrentInfo).load());
+	}
+
+	@Test
+	public void cleanRecordIsIgnoredIfTheDownloadIsResized() throws IOException {
+		resumeData(torrentInfo).save(PIECES, true);
+		long modified = download.lastModified();
+		RandomAccessFile raf = new RandomAccessFile(download, "rw");
+		raf.setLength(torrentInfo.file_length + 1);
+		raf.close();
+		download.setLastModified(modified);
+		assertNull(resumeData(torrentInfo).load());
+	}
+
+	@Test
+	public void damagedRecordIsIgnored() throws IOException {
+		resumeData(torrentInfo).save(PIECES, true);
+		RandomAccessFile raf = new RandomAccessFile(download.getPath() + ".resume", "rw");
+		raf.seek(raf.length() - 6);
+		int b = raf.read();
+		raf.seek(raf.length() - 6);
+		raf.write(b ^ 0x01);
+		raf.close();
+		assertNull(resumeData(torrentInfo).load());
+	}
+
+	@Test
+	public void recordForAnotherTorrentIsIgnored() throws Exception {
+		resumeData(torrentInfo).save(PIECES, true);
+		TorrentInfo other = TestTorrents.singleFile(2 * PIECE_LENGTH, torrentInfo.file_length);
+		assertNull(resumeData(other).load());
+	}
+
+	@Test
+	public void saveReplacesTheRecord() throws IOException {
+		ResumeData resumeData = resumeData(torrentInfo);
+		resumeData.save(new boolean[PIECES.length], false);
+		resumeData.save(PIECES, true);
+		assertArrayEquals(PIECES, resumeData(torrentInfo).load());
+		assertFalse(new File(download.getPath() + ".resume.tmp").exists());
+	}
+}
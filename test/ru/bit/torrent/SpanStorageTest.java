@@ -0,0 +1,139 @@
+package ru.bit.torrent;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class SpanStorageTest {
+
+	/**
+	 * a.bin, an empty file, sub/b.bin and c.bin: 40 bytes in all.
+	 */
+	private static final long[] LENGTHS = { 10, 0, 25, 5 };
+
+	private File dir;
+
+	private File[] files;
+
+	private SpanStorage storage;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("span").toFile();
+		files = new File[] { new File(dir, "a.bin"), new File(dir, "empty.bin"), new File(dir, "sub" + File.separator + "b.bin"),
+				new File(dir, "c.bin") };
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (storage != null)
+			storage.close();
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+
+	private SpanStorage open(int maxOpen, int allocation) throws IOException {
+		storage = new SpanStorage(files, LENGTHS, maxOpen, allocation);
+		storage.allocate();
+		return storage;
+	}
+
+	private static ByteBuffer counting(int from, int length) {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		for (int i = 0; i < length; i++)
+			buffer.put((byte) (from + i));
+		buffer.flip();
+		return buffer;
+	}
+
+	@Test
+	public void allocatesEveryFile() throws IOException {
+		open(4, FileAccess.ALLOCATE_SPARSE);
+		for (int i = 0; i < files.length; i++) {
+			assertTrue(files[i] + " wasn't created", files[i].exists());
+			assertEquals(LENGTHS[i], files[i].length());
+		}
+	}
+
+	@Test
+	public void writesAndReadsAcrossFiles() throws IOException {
+		open(4, FileAccess.ALLOCATE_FULL);
+		storage.write(0, counting(0, 40));
+		assertArrayEquals(counting(0, 10).array(), Files.readAllBytes(files[0].toPath()));
+		assertArrayEquals(counting(10, 25).array(), Files.readAllBytes(files[2].toPath()));
+		assertArrayEquals(counting(35, 5).array(), Files.readAllBytes(files[3].toPath()));
+
+		ByteBuffer read = ByteBuffer.allocate(20);
+		storage.read(8, read);
+		assertFalse(read.hasRemaining());
+		assertArrayEquals(counting(8, 20).array(), read.array());
+	}
+
+	@Test
+	public void keepsWorkingWithOneFileOpen() throws IOException {
+		open(1, FileAccess.ALLOCATE_SPARSE);
+		for (int i = 0; i < 40; i += 3)
+			storage.write(i, counting(i, Math.min(3, 40 - i)));
+		ByteBuffer read = ByteBuffer.allocate(40);
+		storage.read(0, read);
+		assertArrayEquals(counting(0, 40).array(), read.array());
+	}
+
+	@Test
+	public void lazyFilesAreCreatedWhenFirstWritten() throws IOException {
+		open(4, FileAccess.ALLOCATE_LAZY);
+		assertFalse(files[0].exists());
+		assertTrue("empty files are never written, so they're created up front", files[1].exists());
+		assertFalse(files[2].exists());
+		try {
+			storage.read(12, ByteBuffer.allocate(2));
+			fail("read a file that hasn't been written");
+		} catch (EOFException e) {
+			//expected
+		}
+		storage.write(12, counting(0, 2));
+		assertTrue(files[2].exists());
+		assertEquals(25, files[2].length());
+		assertFalse(files[3].exists());
+	}
+
+	@Test(expected = EOFException.class)
+	public void refusesPositionsPastTheEnd() throws IOException {
+		open(4, FileAccess.ALLOCATE_SPARSE);
+		storage.write(38, counting(0, 3));
+	}
+
+	@Test
+	public void transfersFromOneFileAtATime() throws IOException {
+		open(4, FileAccess.ALLOCATE_SPARSE);
+		storage.write(0, counting(0, 40));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(2, storage.transferTo(8, 10, Channels.newChannel(out)));
+		assertEquals(8, storage.transferTo(10, 8, Channels.newChannel(out)));
+		assertArrayEquals(counting(8, 10).array(), out.toByteArray());
+	}
+}
@@ -0,0 +1,73 @@
+package ru.bit.torrent;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Builds small torrents in memory for the tests. Piece hashes are all zero unless the test gives its own.
+ *
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class TestTorrents {
+
+	/**
+	 * @param pieceLength
+	 * @param length the length of the torrent's one file.
+	 * @return a single-file torrent named "test.bin".
+	 * @throws BencodingException
+	 */
+	public static TorrentInfo singleFile(int pieceLength, long length) throws BencodingException {
+		HashMap<ByteBuffer, Object> info = info(pieceLength, length);
+		info.put(TorrentInfo.KEY_LENGTH, Long.valueOf(length));
+		return build(info);
+	}
+
+	/**
+	 * @param pieceLength
+	 * @param lengths the length of each file.
+	 * @param paths the components of each file's path.
+	 * @return a multi-file torrent named "test.bin".
+	 * @throws BencodingException if a path is refused.
+	 */
+	public static TorrentInfo multiFile(int pieceLength, long[] lengths, String[][] paths) throws BencodingException {
+		long total = 0;
+		ArrayList<Object> files = new ArrayList<Object>();
+		for (int i = 0; i < lengths.length; i++) {
+			HashMap<ByteBuffer, Object> file = new HashMap<ByteBuffer, Object>();
+			file.put(TorrentInfo.KEY_LENGTH, Long.valueOf(lengths[i]));
+			ArrayList<Object> path = new ArrayList<Object>();
+			for (String component : paths[i])
+				path.add(string(component));
+			file.put(TorrentInfo.KEY_PATH, path);
+			files.add(file);
+			total += lengths[i];
+		}
+		HashMap<ByteBuffer, Object> info = info(pieceLength, total);
+		info.put(TorrentInfo.KEY_FILES, files);
+		return build(info);
+	}
+
+	private static HashMap<ByteBuffer, Object> info(int pieceLength, long length) {
+		int numPieces = (int) ((length + pieceLength - 1) / pieceLength);
+		HashMap<ByteBuffer, Object> info = new HashMap<ByteBuffer, Object>();
+		info.put(TorrentInfo.KEY_NAME, string("test.bin"));
+		info.put(TorrentInfo.KEY_PIECE_LENGTH, Long.valueOf(pieceLength));
+		info.put(TorrentInfo.KEY_PIECES, ByteBuffer.wrap(new byte[20 * numPieces]));
+		return info;
+	}
+
+	private static TorrentInfo build(HashMap<ByteBuffer, Object> info) throws BencodingException {
+		HashMap<ByteBuffer, Object> torrent = new HashMap<ByteBuffer, Object>();
+		torrent.put(TorrentInfo.KEY_ANNOUNCE, string("http://127.0.0.1:6969/announce"));
+		torrent.put(TorrentInfo.KEY_INFO, info);
+		return new TorrentInfo(Bencoder2.encode(torrent));
+	}
+
+	private static ByteBuffer string(String s) {
+		return ByteBuffer.wrap(s.getBytes());
+	}
+}
@@ -0,0 +1,100 @@
+package ru.bit.torrent;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class TokenBucketTest {
+
+	/**
+	 * The smallest burst any bucket allows: two blocks and their headers.
+	 */
+	private static final int MIN_BURST = 2 * (13 + 32768);
+
+	@Test
+	public void unlimitedBucketNeverRunsOut() {
+		TokenBucket bucket = new TokenBucket(null, 0);
+		assertEquals(Long.MAX_VALUE, bucket.available());
+		assertTrue(bucket.tryTake(Integer.MAX_VALUE));
+		bucket.take(Integer.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, bucket.available());
+	}
+
+	@Test
+	public void startsWithAFullBurst() {
+		//slow enough that nothing measurable refills during the test
+		TokenBucket bucket = new TokenBucket(null, 100);
+		assertEquals(MIN_BURST, bucket.available());
+		assertFalse(bucket.tryTake(MIN_BURST + 1));
+		assertEquals(MIN_BURST, bucket.available());
+		assertTrue(bucket.tryTake(MIN_BURST - 1000));
+		assertTrue(bucket.available() < 1100);
+	}
+
+	@Test
+	public void burstIsATenthOfASecondAtHighRates() {
+		TokenBucket bucket = new TokenBucket(null, 10 * 1024 * 1024);
+		long available = bucket.available();
+		assertTrue(available <= 1024 * 1024 + 1);
+		assertTrue(available >= 1024 * 1024 - 1);
+	}
+
+	@Test
+	public void bytesTakenAfterTheFactArePaidBack() {
+		TokenBucket bucket = new TokenBucket(null, 100);
+		bucket.take(MIN_BURST + 50000);
+		assertEquals(0, bucket.available());
+		assertFalse(bucket.tryTake(1));
+	}
+
+	@Test
+	public void refillsAtItsRate() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(null, 10 * 1024 * 1024);
+		bucket.take((int) bucket.available());
+		Thread.sleep(50);
+		long available = bucket.available();
+		//about 512 kB, allowing for a slow scheduler
+		assertTrue("refilled " + available, available > 200 * 1024);
+		assertTrue("refilled " + available, available <= 1024 * 1024 + 1);
+	}
+
+	@Test
+	public void parentLimitsEveryChild() {
+		TokenBucket global = new TokenBucket(null, 100);
+		TokenBucket first = new TokenBucket(global, 0);
+		TokenBucket second = new TokenBucket(global, 0);
+		assertEquals(MIN_BURST, first.available());
+		assertTrue(first.tryTake(MIN_BURST - 1000));
+		assertTrue(second.available() < 1100);
+		assertFalse(second.tryTake(5000));
+	}
+
+	@Test
+	public void childIsHeldToItsOwnLimitToo() {
+		TokenBucket global = new TokenBucket(null, 0);
+		TokenBucket peer = new TokenBucket(global, 100);
+		assertEquals(MIN_BURST, peer.available());
+		assertEquals(Long.MAX_VALUE, global.available());
+	}
+
+	@Test
+	public void removingTheLimitMakesItUnlimited() {
+		TokenBucket bucket = new TokenBucket(null, 100);
+		bucket.take(MIN_BURST);
+		bucket.setRate(0);
+		assertEquals(0, bucket.getRate());
+		assertEquals(Long.MAX_VALUE, bucket.available());
+	}
+
+	@Test
+	public void describesRates() {
+		assertEquals("unlimited", TokenBucket.describe(0));
+		assertEquals("50 kB/s", TokenBucket.describe(50 * 1024));
+	}
+}
@@ -0,0 +1,74 @@
+package ru.bit.torrent;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.Test;
+
+/**
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class TorrentInfoTest {
+
+	private static TorrentInfo withPath(String... path) throws BencodingException {
+		return TestTorrents.multiFile(16384, new long[] { 10 }, new String[][] { path });
+	}
+
+	@Test
+	public void singleFile() throws BencodingException {
+		TorrentInfo torrentInfo = TestTorrents.singleFile(16384, 40000);
+		assertFalse(torrentInfo.isMultiFile());
+		assertEquals(40000, torrentInfo.file_length);
+		assertEquals(3, torrentInfo.piece_hashes.length);
+		assertArrayEquals(new long[] { 40000 }, torrentInfo.file_lengths);
+	}
+
+	@Test
+	public void singleFileOver4GB() throws BencodingException {
+		long length = 5L * 1024 * 1024 * 1024 + 1;
+		TorrentInfo torrentInfo = TestTorrents.singleFile(4 * 1024 * 1024, length);
+		assertEquals(length, torrentInfo.file_length);
+		assertEquals(1281, torrentInfo.piece_hashes.length);
+	}
+
+	@Test
+	public void multiFile() throws BencodingException {
+		TorrentInfo torrentInfo = TestTorrents.multiFile(16384, new long[] { 10, 0, 30000 },
+				new String[][] { { "a.bin" }, { "empty" }, { "sub", "dir", "b.bin" } });
+		assertTrue(torrentInfo.isMultiFile());
+		assertEquals(30010, torrentInfo.file_length);
+		assertEquals(2, torrentInfo.piece_hashes.length);
+		assertEquals("a.bin", torrentInfo.file_paths[0]);
+		assertEquals("sub" + File.separator + "dir" + File.separator + "b.bin", torrentInfo.file_paths[2]);
+		assertArrayEquals(new long[] { 10, 0, 30000 }, torrentInfo.file_lengths);
+	}
+
+	@Test(expected = BencodingException.class)
+	public void refusesParentDirectory() throws BencodingException {
+		withPath("..", "etc", "passwd");
+	}
+
+	@Test(expected = BencodingException.class)
+	public void refusesCurrentDirectory() throws BencodingException {
+		withPath(".", "a.bin");
+	}
+
+	@Test(expected = BencodingException.class)
+	public void refusesEmptyComponent() throws BencodingException {
+		withPath("sub", "", "a.bin");
+	}
+
+	@Test(expected = BencodingException.class)
+	public void refusesSlashInAComponent() throws BencodingException {
+		withPath("sub/../../a.bin");
+	}
+
+	@Test(expected = BencodingException.class)
+	public void refusesBackslashInAComponent() throws BencodingException {
+		withPath("sub\\a.bin");
+	}
+}
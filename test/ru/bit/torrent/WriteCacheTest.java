@@ -0,0 +1,192 @@
+package ru.bit.torrent;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Dylan Murray
+ * @author Jonas Schreiber
+ * @author Charles Zuppe
+ *
+ */
+public class WriteCacheTest {
+
+	private static final int BLOCK = PiecePicker.BLOCK_SIZE;
+
+	/**
+	 * Keeps the download in memory and records every write.
+	 */
+	private static class MemoryStorage implements Storage {
+
+		final byte[] bytes = new byte[16 * BLOCK];
+
+		final ArrayList<long[]> writes = new ArrayList<long[]>();
+
+		/**
+		 * Writes starting at this offset fail, or none if -1.
+		 */
+		volatile long failAt = -1;
+
+		public synchronized void read(long position, ByteBuffer dst) {
+			dst.put(bytes, (int) position, dst.remaining());
+		}
+
+		public synchronized void write(long position, ByteBuffer src) throws IOException {
+			if (position == failAt)
+				throw new IOException("Disk full.");
+			writes.add(new long[] { position, src.remaining() });
+			src.get(bytes, (int) position, src.remaining());
+		}
+
+		public long transferTo(long position, int length, WritableByteChannel target) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void force() {
+		}
+
+		public void close() {
+		}
+
+		synchronized int writeCount() {
+			return writes.size();
+		}
+	}
+
+	/**
+	 * Remembers how a range was written.
+	 */
+	private static class Result implements WriteCache.WriteListener {
+
+		final CountDownLatch done = new CountDownLatch(1);
+
+		volatile IOException failure;
+
+		public void written() {
+			done.countDown();
+		}
+
+		public void failed(IOException e) {
+			failure = e;
+			done.countDown();
+		}
+
+		/**
+		 * @return true if the range was written.
+		 */
+		boolean await() throws InterruptedException {
+			assertTrue("listener wasn't called", done.await(10, TimeUnit.SECONDS));
+			return failure == null;
+		}
+	}
+
+	private MemoryStorage storage;
+
+	private DiskIO disk;
+
+	private WriteCache cache;
+
+	@Before
+	public void setUp() {
+		storage = new MemoryStorage();
+		disk = new DiskIO(2, 16);
+		cache = new WriteCache(storage, disk, 64L * BLOCK);
+	}
+
+	@After
+	public void tearDown() {
+		cache.close();
+		disk.shutdown();
+	}
+
+	private static ByteBuffer block(int value) {
+		byte[] bytes = new byte[BLOCK];
+		Arrays.fill(bytes, (byte) value);
+		return ByteBuffer.wrap(bytes);
+	}
+
+	private boolean waitForWrite(long position, long length) throws InterruptedException {
+		Result result = new Result();
+		cache.afterWritten(position, length, result);
+		return result.await();
+	}
+
+	@Test
+	public void contiguousBlocksAreWrittenTogether() throws InterruptedException {
+		//submitted out of order, within one batch
+		cache.submit(2 * BLOCK, block(3));
+		cache.submit(0, block(1));
+		cache.submit(BLOCK, block(2));
+		cache.submit(5 * BLOCK, block(6));
+		assertTrue(waitForWrite(0, 6 * BLOCK));
+		assertEquals(2, storage.writeCount());
+		assertArrayEquals(new long[] { 0, 3 * BLOCK }, storage.writes.get(0));
+		assertArrayEquals(new long[] { 5 * BLOCK, BLOCK }, storage.writes.get(1));
+		assertEquals(1, storage.bytes[0]);
+		assertEquals(2, storage.bytes[BLOCK]);
+		assertEquals(3, storage.bytes[3 * BLOCK - 1]);
+		assertEquals(0, storage.bytes[3 * BLOCK]);
+		assertEquals(6, storage.bytes[5 * BLOCK]);
+	}
+
+	@Test
+	public void laterBlockAtTheSameOffsetReplacesThePendingOne() throws InterruptedException {
+		cache.submit(0, block(1));
+		cache.submit(0, block(2));
+		assertTrue(waitForWrite(0, BLOCK));
+		assertEquals(1, storage.writeCount());
+		assertEquals(2, storage.bytes[0]);
+	}
+
+	@Test
+	public void failedWriteFailsOnlyTheRangesItCovers() throws InterruptedException {
+		storage.failAt = 0;
+		cache.submit(0, block(1));
+		cache.submit(4 * BLOCK, block(2));
+		Result first = new Result();
+		Result second = new Result();
+		cache.afterWritten(0, 2 * BLOCK, first);
+		cache.afterWritten(4 * BLOCK, 2 * BLOCK, second);
+		assertFalse(first.await());
+		assertTrue(second.await());
+		//the failure is told once
+		assertTrue(waitForWrite(0, 2 * BLOCK));
+	}
+
+	@Test
+	public void failureInAnEarlierBatchFailsALaterListener() throws InterruptedException {
+		storage.failAt = 0;
+		cache.submit(0, block(1));
+		//flushes the first block on its own
+		assertTrue(waitForWrite(4 * BLOCK, BLOCK));
+		storage.failAt = -1;
+		cache.submit(BLOCK, block(2));
+		assertFalse(waitForWrite(0, 2 * BLOCK));
+	}
+
+	@Test
+	public void writesFailOnceDiskIOHasShutDown() throws InterruptedException {
+		disk.shutdown();
+		cache.submit(0, block(1));
+		assertFalse(waitForWrite(0, BLOCK));
+		assertEquals(0, storage.writeCount());
+	}
+
+	@Test
+	public void closeWritesWhatIsPending() {
+		cache.submit(0, block(7));
+		cache.close();
+		assertEquals(7, storage.bytes[BLOCK - 1]);
+	}
+}